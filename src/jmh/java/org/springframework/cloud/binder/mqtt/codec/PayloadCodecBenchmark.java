@@ -0,0 +1,51 @@
+package org.springframework.cloud.binder.mqtt.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.MimeType;
+
+/** Outbound serialization of a small telemetry record with each of the built-in codecs. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadCodecBenchmark {
+
+  @Param({"application/json", "application/cbor", "application/x-jackson-smile"})
+  private String contentType;
+
+  private Map<String, Object> payload;
+  private MqttPayloadCodec codec;
+
+  @Setup
+  public void setUp() {
+    payload = new LinkedHashMap<>();
+    payload.put("deviceId", "device-1");
+    payload.put("temperature", 21.5);
+    payload.put("humidity", 48);
+    payload.put("timestamp", 1_700_000_000_000L);
+    codec =
+        new MqttPayloadCodecRegistry(new ObjectMapper()).getCodec(MimeType.valueOf(contentType));
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return codec.encode(payload);
+  }
+}
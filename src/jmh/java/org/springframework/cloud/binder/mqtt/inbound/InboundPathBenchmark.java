@@ -0,0 +1,205 @@
+package org.springframework.cloud.binder.mqtt.inbound;
+
+import com.hivemq.client.internal.checkpoint.Confirmable;
+import com.hivemq.client.internal.mqtt.message.publish.MqttPublish;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperties;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.Mqtt5UnsubscribeBuilder;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.springframework.cloud.binder.mqtt.support.ConnectionOptions;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+
+/**
+ * Receive path of {@link MqttV5MessageDrivenChannelAdapter} against a stubbed client: header
+ * extraction, payload conversion, and a burst of messages handed from the client callback through
+ * the dispatch threads to the output channel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InboundPathBenchmark {
+
+  private static final int BURST = 1000;
+  private static final String TOPIC = "site/1/telemetry";
+
+  @Param({"CONVERTED", "BYTE_BUFFER"})
+  private PayloadMode payloadMode;
+
+  private Mqtt5Publish publish;
+  private MqttV5MessageDrivenChannelAdapter adapter;
+  private Consumer<Mqtt5Publish> callback;
+  private final AtomicLong delivered = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StringBuilder json = new StringBuilder("{\"value\":\"");
+    while (json.length() < 254) {
+      json.append('x');
+    }
+    Confirmable confirmable =
+        new Confirmable() {
+          @Override
+          public long getId() {
+            return 0;
+          }
+
+          @Override
+          public boolean confirm() {
+            return true;
+          }
+        };
+    publish =
+        ((MqttPublish)
+                Mqtt5Publish.builder()
+                    .topic(TOPIC)
+                    .qos(MqttQos.AT_LEAST_ONCE)
+                    .payload(json.append("\"}").toString().getBytes(StandardCharsets.UTF_8))
+                    .contentType("application/json")
+                    .responseTopic("site/1/replies")
+                    .correlationData("request-1".getBytes(StandardCharsets.UTF_8))
+                    .userProperties(
+                        Mqtt5UserProperties.builder()
+                            .add("deviceId", "device-1")
+                            .add("firmware", "1.4.2")
+                            .build())
+                    .build())
+            .withConfirmable(confirmable);
+
+    MessageChannel outputChannel =
+        (message, timeout) -> {
+          delivered.incrementAndGet();
+          return true;
+        };
+    adapter = new MqttV5MessageDrivenChannelAdapter(new StubClientRegistry(), "bench", TOPIC);
+    adapter.setPayloadMode(payloadMode);
+    adapter.setOutputChannel(outputChannel);
+    adapter.afterPropertiesSet();
+    adapter.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    adapter.stop();
+  }
+
+  @Benchmark
+  public MessageHeaders extractHeaders() {
+    return adapter.extractedHeader(publish, null);
+  }
+
+  @Benchmark
+  public Message<?> toMessage() throws IOException {
+    return adapter.toMessage(publish, null);
+  }
+
+  /** Throughput of the callback to output channel handoff, in messages. */
+  @Benchmark
+  @OperationsPerInvocation(BURST)
+  public long receive() {
+    long target = delivered.get() + BURST;
+    for (int i = 0; i < BURST; i++) {
+      callback.accept(publish);
+    }
+    while (delivered.get() < target) {
+      Thread.onSpinWait();
+    }
+
+    return target;
+  }
+
+  private class StubClientRegistry extends MqttClientRegistry {
+
+    private final Mqtt5BlockingClient client = stubClient();
+
+    StubClientRegistry() {
+      super(new MqttBinderConfigurationProperties());
+    }
+
+    @Override
+    public Mqtt5BlockingClient acquire(
+        String clientId, String username, String password, ConnectionOptions restrictions) {
+      return client;
+    }
+
+    @Override
+    public void release(Mqtt5BlockingClient client) {}
+  }
+
+  private Mqtt5BlockingClient stubClient() {
+    Mqtt5AsyncClient asyncClient =
+        stub(
+            Mqtt5AsyncClient.class,
+            method ->
+                "subscribeWith".equals(method)
+                    ? builder(
+                        Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete.class,
+                        Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex.class)
+                    : builder(
+                        Mqtt5UnsubscribeBuilder.Send.Start.class,
+                        Mqtt5UnsubscribeBuilder.Send.Complete.class));
+
+    return stub(Mqtt5BlockingClient.class, method -> asyncClient);
+  }
+
+  /** Builder returning itself from every step, capturing the subscription callback. */
+  @SuppressWarnings("unchecked")
+  private Object builder(Class<?>... interfaces) {
+    Object[] self = new Object[1];
+    self[0] =
+        Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            interfaces,
+            (proxy, method, args) -> {
+              if ("callback".equals(method.getName())) {
+                callback = (Consumer<Mqtt5Publish>) args[0];
+              }
+              if ("send".equals(method.getName())) {
+                return new CompletableFuture<>();
+              }
+              return self[0];
+            });
+
+    return self[0];
+  }
+
+  /** Proxy answering every call with the answer for the method name. */
+  @SuppressWarnings("unchecked")
+  private <T> T stub(Class<T> type, Function<String, Object> answer) {
+    return (T)
+        Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> answer.apply(method.getName()));
+  }
+}
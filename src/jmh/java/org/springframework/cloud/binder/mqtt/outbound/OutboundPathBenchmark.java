@@ -0,0 +1,136 @@
+package org.springframework.cloud.binder.mqtt.outbound;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hivemq.client.internal.mqtt.message.publish.MqttPublishBuilder;
+import com.hivemq.client.internal.mqtt.message.publish.MqttPublishResult;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.binder.mqtt.codec.MqttPayloadCodecRegistry;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.springframework.cloud.binder.mqtt.properties.MqttSinkProperties;
+import org.springframework.cloud.binder.mqtt.support.ConnectionOptions;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Publish path of {@link MqttV5MessageHandler} against a stubbed client whose publishes are
+ * acknowledged immediately, from message to built PUBLISH. A {@code String} payload is only encoded
+ * as UTF-8, a POJO goes through the JSON codec, see {@code PayloadCodecBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutboundPathBenchmark {
+
+  private static final String TOPIC = "site/1/telemetry";
+
+  @Param({"string", "pojo"})
+  private String payloadType;
+
+  @Param({"false", "true"})
+  private boolean async;
+
+  private Message<?> message;
+  private MqttV5MessageHandler handler;
+
+  @Setup
+  public void setUp() throws IOException {
+    Map<String, Object> pojo = new LinkedHashMap<>();
+    pojo.put("deviceId", "device-1");
+    pojo.put("temperature", 21.5);
+    pojo.put("humidity", 48);
+    pojo.put("timestamp", 1_700_000_000_000L);
+    MqttPayloadCodecRegistry codecRegistry = new MqttPayloadCodecRegistry(new ObjectMapper());
+    Object payload =
+        "string".equals(payloadType)
+            ? new String(codecRegistry.getCodec(null).encode(pojo))
+            : (Object) pojo;
+    message = MessageBuilder.withPayload(payload).build();
+
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setAsync(async);
+    handler =
+        new MqttV5MessageHandler(new StubClientRegistry(), codecRegistry, sinkProperties, TOPIC);
+    handler.onInit();
+    handler.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    handler.stop();
+  }
+
+  @Benchmark
+  public void handleMessage() {
+    handler.handleMessageInternal(message);
+  }
+
+  private static class StubClientRegistry extends MqttClientRegistry {
+
+    private final Mqtt5BlockingClient client = stubClient();
+
+    StubClientRegistry() {
+      super(new MqttBinderConfigurationProperties());
+    }
+
+    @Override
+    public Mqtt5BlockingClient acquire(
+        String clientId, String username, String password, ConnectionOptions restrictions) {
+      return client;
+    }
+
+    @Override
+    public void release(Mqtt5BlockingClient client) {}
+  }
+
+  /** Publishes go through the client's real builder, sending completes them right away. */
+  private static Mqtt5BlockingClient stubClient() {
+    Mqtt5AsyncClient asyncClient =
+        stub(
+            Mqtt5AsyncClient.class,
+            method ->
+                new MqttPublishBuilder.Send<>(
+                    publish ->
+                        CompletableFuture.completedFuture(new MqttPublishResult(publish, null))));
+
+    return stub(
+        Mqtt5BlockingClient.class,
+        method ->
+            "toAsync".equals(method)
+                ? asyncClient
+                : new MqttPublishBuilder.Send<>(publish -> new MqttPublishResult(publish, null)));
+  }
+
+  /** Proxy answering every call with the answer for the method name. */
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, Function<String, Object> answer) {
+    return (T)
+        Proxy.newProxyInstance(
+            OutboundPathBenchmark.class.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> answer.apply(method.getName()));
+  }
+}
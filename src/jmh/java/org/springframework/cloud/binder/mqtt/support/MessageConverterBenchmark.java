@@ -0,0 +1,64 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+
+/**
+ * Compares converting a received payload with a new {@link JsonStringMessageConverter} per message
+ * (the former inbound path) against the cached {@link MqttMessageConverterRegistry}. Note that the
+ * former path rejects binary content types and returns {@code null} without building a message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageConverterBenchmark {
+
+  @Param({"application/json", "application/octet-stream"})
+  private String contentType;
+
+  @Param({"64", "4096"})
+  private int payloadSize;
+
+  private byte[] payload;
+  private MessageHeaders headers;
+  private MqttMessageConverterRegistry registry;
+
+  @Setup
+  public void setUp() {
+    StringBuilder json = new StringBuilder("{\"value\":\"");
+    while (json.length() < payloadSize - 2) {
+      json.append('x');
+    }
+    payload = json.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+    headers =
+        new MessageHeaders(Collections.singletonMap(MessageHeaders.CONTENT_TYPE, contentType));
+    registry = new MqttMessageConverterRegistry();
+  }
+
+  @Benchmark
+  public Message<?> converterPerMessage() {
+    return new JsonStringMessageConverter().toMessage(payload, headers);
+  }
+
+  @Benchmark
+  public Message<?> converterRegistry() {
+    return registry.toMessage(payload, headers);
+  }
+}
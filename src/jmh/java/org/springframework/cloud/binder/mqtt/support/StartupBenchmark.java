@@ -0,0 +1,133 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+
+/**
+ * Time until the clients of all bindings are connected, as when the application starts: every
+ * binding acquires its client, then the startup gate waits for the connections. The broker is
+ * stubbed and answers each CONNECT after a fixed round trip, as a remote broker over TLS would.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+  /** Round trip of a CONNECT to the broker, in milliseconds. */
+  private static final long CONNECT_ROUND_TRIP = 20;
+
+  @Param({"1", "10", "100"})
+  private int bindings;
+
+  @Param({"BLOCKING", "ASYNC"})
+  private ConnectMode connectMode;
+
+  private ScheduledExecutorService broker;
+  private MqttClientRegistry clientRegistry;
+
+  @Setup(Level.Trial)
+  public void startBroker() {
+    broker = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @TearDown(Level.Trial)
+  public void stopBroker() {
+    broker.shutdown();
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp() {
+    MqttBinderConfigurationProperties configurationProperties =
+        new MqttBinderConfigurationProperties();
+    configurationProperties.setConnectMode(connectMode);
+    clientRegistry = new StubClientRegistry(configurationProperties);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDown() {
+    clientRegistry.destroy();
+  }
+
+  @Benchmark
+  public void startBindings() {
+    for (int i = 0; i < bindings; i++) {
+      clientRegistry.acquire("binding-" + i, null, null);
+    }
+    clientRegistry.awaitConnections(1, TimeUnit.MINUTES);
+  }
+
+  private class StubClientRegistry extends MqttClientRegistry {
+
+    StubClientRegistry(MqttBinderConfigurationProperties configurationProperties) {
+      super(configurationProperties);
+    }
+
+    @Override
+    Mqtt5BlockingClient createClient(
+        ConnectionKey key,
+        MqttMetrics.Client clientMetrics,
+        ConnectionOptions options,
+        SubscriptionMultiplexer multiplexer) {
+      // the CONNACK is only read for persistent sessions, which the bindings don't use
+      Mqtt5AsyncClient asyncClient =
+          stub(
+              Mqtt5AsyncClient.class,
+              method -> {
+                if (!"connect".equals(method)) {
+                  return null;
+                }
+                CompletableFuture<Object> connAck = new CompletableFuture<>();
+                broker.schedule(
+                    () -> connAck.complete(null), CONNECT_ROUND_TRIP, TimeUnit.MILLISECONDS);
+                return connAck;
+              });
+
+      return stub(
+          Mqtt5BlockingClient.class,
+          method -> {
+            if ("toAsync".equals(method)) {
+              return asyncClient;
+            }
+            if ("connect".equals(method)) {
+              LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(CONNECT_ROUND_TRIP));
+            }
+            return null;
+          });
+    }
+  }
+
+  /** Proxy answering every call with the answer for the method name. */
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, Function<String, Object> answer) {
+    return (T)
+        Proxy.newProxyInstance(
+            StartupBenchmark.class.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> answer.apply(method.getName()));
+  }
+}
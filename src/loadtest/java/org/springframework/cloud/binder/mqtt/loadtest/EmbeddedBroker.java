@@ -0,0 +1,108 @@
+package org.springframework.cloud.binder.mqtt.loadtest;
+
+import com.hivemq.embedded.EmbeddedExtension;
+import com.hivemq.embedded.EmbeddedHiveMQ;
+import com.hivemq.extension.sdk.api.ExtensionMain;
+import com.hivemq.extension.sdk.api.auth.SimpleAuthenticator;
+import com.hivemq.extension.sdk.api.parameter.ExtensionStartInput;
+import com.hivemq.extension.sdk.api.parameter.ExtensionStartOutput;
+import com.hivemq.extension.sdk.api.parameter.ExtensionStopInput;
+import com.hivemq.extension.sdk.api.parameter.ExtensionStopOutput;
+import com.hivemq.extension.sdk.api.services.Services;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * HiveMQ Community Edition running inside the harness JVM on a free local port. Sessions are kept
+ * in memory, usage statistics are disabled, and every client is allowed to connect.
+ */
+class EmbeddedBroker implements AutoCloseable {
+
+  private static final String CONFIG =
+      "<?xml version=\"1.0\"?>\n"
+          + "<hivemq>\n"
+          + "  <listeners>\n"
+          + "    <tcp-listener>\n"
+          + "      <port>%d</port>\n"
+          + "      <bind-address>127.0.0.1</bind-address>\n"
+          + "    </tcp-listener>\n"
+          + "  </listeners>\n"
+          + "  <persistence>\n"
+          + "    <mode>in-memory</mode>\n"
+          + "  </persistence>\n"
+          + "  <anonymous-usage-statistics>\n"
+          + "    <enabled>false</enabled>\n"
+          + "  </anonymous-usage-statistics>\n"
+          + "</hivemq>\n";
+
+  private final Path folder;
+  private final int port;
+  private final EmbeddedHiveMQ hiveMQ;
+
+  EmbeddedBroker() throws IOException {
+    folder = Files.createTempDirectory("mqtt-loadtest-broker");
+    port = freePort();
+    Path config = Files.createDirectories(folder.resolve("conf"));
+    Files.write(
+        config.resolve("config.xml"), String.format(CONFIG, port).getBytes(StandardCharsets.UTF_8));
+    hiveMQ =
+        EmbeddedHiveMQ.builder()
+            .withConfigurationFolder(config)
+            .withDataFolder(Files.createDirectories(folder.resolve("data")))
+            .withExtensionsFolder(Files.createDirectories(folder.resolve("extensions")))
+            .withEmbeddedExtension(
+                EmbeddedExtension.builder()
+                    .withId("allow-all")
+                    .withName("Allow all")
+                    .withVersion("1")
+                    .withExtensionMain(new AllowAll())
+                    .build())
+            .build();
+  }
+
+  void start() {
+    hiveMQ.start().join();
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  @Override
+  public void close() throws Exception {
+    try {
+      hiveMQ.stop().join();
+      hiveMQ.close();
+    } finally {
+      try (Stream<Path> paths = Files.walk(folder)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static class AllowAll implements ExtensionMain {
+
+    @Override
+    public void extensionStart(ExtensionStartInput input, ExtensionStartOutput output) {
+      Services.securityRegistry()
+          .setAuthenticatorProvider(
+              providerInput ->
+                  (SimpleAuthenticator)
+                      (connectInput, connectOutput) -> connectOutput.authenticateSuccessfully());
+    }
+
+    @Override
+    public void extensionStop(ExtensionStopInput input, ExtensionStopOutput output) {}
+  }
+}
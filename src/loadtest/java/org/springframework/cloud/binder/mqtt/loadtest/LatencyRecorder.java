@@ -0,0 +1,46 @@
+package org.springframework.cloud.binder.mqtt.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps every latency sample of a run, so percentiles are exact. Recording is lock-free; samples
+ * beyond the expected count are ignored.
+ */
+class LatencyRecorder {
+
+  private final long[] samples;
+  private final AtomicInteger count = new AtomicInteger();
+
+  LatencyRecorder(int expected) {
+    samples = new long[expected];
+  }
+
+  void record(long nanos) {
+    int index = count.getAndIncrement();
+    if (index < samples.length) {
+      samples[index] = nanos;
+    }
+  }
+
+  int getCount() {
+    return Math.min(count.get(), samples.length);
+  }
+
+  /** Sorted samples, to be called once recording has finished. */
+  long[] sorted() {
+    long[] sorted = Arrays.copyOf(samples, getCount());
+    Arrays.sort(sorted);
+
+    return sorted;
+  }
+
+  static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+}
@@ -0,0 +1,276 @@
+package org.springframework.cloud.binder.mqtt.loadtest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import org.springframework.cloud.binder.mqtt.MqttBinder;
+import org.springframework.cloud.binder.mqtt.MqttProvisioningProvider;
+import org.springframework.cloud.binder.mqtt.inbound.PayloadMode;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.springframework.cloud.binder.mqtt.properties.MqttExtendedBindingProperties;
+import org.springframework.cloud.binder.mqtt.properties.MqttSinkProperties;
+import org.springframework.cloud.binder.mqtt.properties.MqttSourceProperties;
+import org.springframework.cloud.binder.mqtt.properties.RuntimeMqttExtendedBindingProperties;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.stream.binder.Binding;
+import org.springframework.cloud.stream.binder.ExtendedConsumerProperties;
+import org.springframework.cloud.stream.binder.ExtendedProducerProperties;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.config.EnableIntegration;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.GenericMessage;
+
+/**
+ * End-to-end load test: starts an embedded MQTT 5 broker, binds producers and consumers through
+ * {@link MqttBinder} and reports sustained throughput and latency percentiles. Settings are read
+ * from {@code loadtest.*} system properties; {@code qos} and {@code messageSize} take comma
+ * separated lists and every combination is run in turn.
+ *
+ * <p>Latency is measured from the moment a message was due to be sent, not from when the producer
+ * got around to sending it, so a producer falling behind its rate shows up as latency instead of
+ * being hidden (coordinated omission).
+ */
+public class MqttBinderLoadHarness {
+
+  /** Payload prefix: due time in nanos and whether the message is measured. */
+  private static final int HEADER_BYTES = Long.BYTES + 1;
+
+  private static final long PROBE_INTERVAL_MILLIS = 50;
+
+  private final List<Integer> qosLevels = intList("loadtest.qos", "1");
+  private final List<Integer> messageSizes = intList("loadtest.messageSize", "256");
+  private final int rate = Integer.getInteger("loadtest.rate", 5000);
+  private final int bindings = Integer.getInteger("loadtest.bindings", 1);
+  private final int messages = Integer.getInteger("loadtest.messages", 100_000);
+  private final int warmup = Integer.getInteger("loadtest.warmup", 10_000);
+  private final boolean async = Boolean.getBoolean("loadtest.async");
+  private final long timeoutSeconds = Long.getLong("loadtest.timeoutSeconds", 120);
+
+  public static void main(String[] args) throws Exception {
+    new MqttBinderLoadHarness().run();
+    // broker and client threads are not daemons
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    System.out.printf(
+        Locale.ROOT,
+        "bindings=%d rate=%s msgs/s per binding, messages=%d (+%d warm-up) per binding, async=%s%n",
+        bindings,
+        rate > 0 ? rate : "unthrottled",
+        messages,
+        warmup,
+        async);
+    List<String> results = new ArrayList<>();
+    try (EmbeddedBroker broker = new EmbeddedBroker();
+        AnnotationConfigApplicationContext context =
+            new AnnotationConfigApplicationContext(IntegrationConfiguration.class)) {
+      broker.start();
+      int run = 0;
+      for (int qos : qosLevels) {
+        for (int messageSize : messageSizes) {
+          results.add(run(context, broker.getPort(), run++, qos, messageSize));
+        }
+      }
+    }
+
+    System.out.println();
+    System.out.println(
+        "  qos     size      msgs/s       MB/s     lost    p50 us    p99 us   p999 us    max us");
+    results.forEach(System.out::println);
+  }
+
+  private String run(
+      AnnotationConfigApplicationContext context, int port, int run, int qos, int messageSize)
+      throws Exception {
+    MqttBinderConfigurationProperties binderProperties = new MqttBinderConfigurationProperties();
+    binderProperties.setServerHost("127.0.0.1");
+    binderProperties.setServerPort(port);
+    MqttClientRegistry clientRegistry = new MqttClientRegistry(binderProperties);
+    MqttBinder binder =
+        new MqttBinder(
+            new MqttProvisioningProvider(),
+            new MqttExtendedBindingProperties(),
+            new RuntimeMqttExtendedBindingProperties(),
+            binderProperties,
+            clientRegistry);
+    binder.setApplicationContext(context);
+    binder.afterPropertiesSet();
+
+    int size = Math.max(messageSize, HEADER_BYTES);
+    LatencyRecorder latencies = new LatencyRecorder(bindings * messages);
+    CountDownLatch probed = new CountDownLatch(bindings);
+    CountDownLatch warmedUp = new CountDownLatch(bindings * warmup);
+    CountDownLatch measured = new CountDownLatch(bindings * messages);
+    AtomicLong lastReceivedAt = new AtomicLong();
+    List<Binding<MessageChannel>> bound = new ArrayList<>();
+    List<MessageChannel> outputs = new ArrayList<>();
+    try {
+      for (int i = 0; i < bindings; i++) {
+        String destination = "loadtest/" + run + "/" + i;
+        AtomicBoolean first = new AtomicBoolean(true);
+        DirectChannel input = new DirectChannel();
+        input.setBeanName(destination + "-input");
+        input.subscribe(
+            message -> {
+              ByteBuffer payload = (ByteBuffer) message.getPayload();
+              long dueAt = payload.getLong(payload.position());
+              byte phase = payload.get(payload.position() + Long.BYTES);
+              if (phase == Phase.MEASURED.ordinal()) {
+                long receivedAt = System.nanoTime();
+                latencies.record(receivedAt - dueAt);
+                lastReceivedAt.accumulateAndGet(receivedAt, Math::max);
+                measured.countDown();
+              } else if (phase == Phase.WARMUP.ordinal()) {
+                warmedUp.countDown();
+              } else if (first.compareAndSet(true, false)) {
+                probed.countDown();
+              }
+            });
+        bound.add(binder.bindConsumer(destination, null, input, consumerProperties(run, i, qos)));
+
+        DirectChannel output = new DirectChannel();
+        output.setBeanName(destination + "-output");
+        bound.add(binder.bindProducer(destination, output, producerProperties(run, i, qos)));
+        outputs.add(output);
+      }
+
+      // subscriptions complete asynchronously, probe until every consumer receives
+      while (!probed.await(PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        for (MessageChannel output : outputs) {
+          output.send(message(System.nanoTime(), Phase.PROBE, size));
+        }
+      }
+      produce(outputs, Phase.WARMUP, warmup, size);
+      // measuring while warm-up messages are still arriving would skew the latencies
+      if (!warmedUp.await(timeoutSeconds, TimeUnit.SECONDS)) {
+        throw new IllegalStateException(
+            warmedUp.getCount()
+                + " warm-up messages of QoS "
+                + qos
+                + " did not arrive within "
+                + timeoutSeconds
+                + " seconds");
+      }
+
+      long startedAt = System.nanoTime();
+      produce(outputs, Phase.MEASURED, messages, size);
+      // lost QoS 0 messages leave the latch open until the timeout
+      measured.await(timeoutSeconds, TimeUnit.SECONDS);
+
+      return report(qos, size, latencies, lastReceivedAt.get() - startedAt);
+    } finally {
+      bound.forEach(Binding::unbind);
+      clientRegistry.destroy();
+    }
+  }
+
+  /** One producer thread per binding, each sending at the configured rate. */
+  private void produce(List<MessageChannel> outputs, Phase phase, int count, int size)
+      throws InterruptedException {
+    long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+    List<Thread> producers = new ArrayList<>();
+    for (MessageChannel output : outputs) {
+      Thread producer =
+          new Thread(
+              () -> {
+                long startedAt = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                  long dueAt = System.nanoTime();
+                  if (intervalNanos > 0) {
+                    dueAt = startedAt + i * intervalNanos;
+                    long wait;
+                    while ((wait = dueAt - System.nanoTime()) > 0) {
+                      LockSupport.parkNanos(wait);
+                    }
+                  }
+                  output.send(message(dueAt, phase, size));
+                }
+              },
+              "loadtest-producer-" + producers.size());
+      producer.start();
+      producers.add(producer);
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+  }
+
+  private String report(int qos, int size, LatencyRecorder latencies, long elapsedNanos) {
+    long[] sorted = latencies.sorted();
+    int received = sorted.length;
+    double seconds = elapsedNanos / 1e9;
+
+    return String.format(
+        Locale.ROOT,
+        "%5d %8d %11.0f %10.2f %8d %9d %9d %9d %9d",
+        qos,
+        size,
+        received / seconds,
+        received * (double) size / seconds / (1024 * 1024),
+        (long) bindings * messages - received,
+        micros(LatencyRecorder.percentile(sorted, 50)),
+        micros(LatencyRecorder.percentile(sorted, 99)),
+        micros(LatencyRecorder.percentile(sorted, 99.9)),
+        micros(received > 0 ? sorted[received - 1] : 0));
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  private static Message<byte[]> message(long dueAt, Phase phase, int size) {
+    byte[] payload = new byte[size];
+    ByteBuffer.wrap(payload).putLong(dueAt).put((byte) phase.ordinal());
+
+    return new GenericMessage<>(payload);
+  }
+
+  private ExtendedConsumerProperties<MqttSourceProperties> consumerProperties(
+      int run, int binding, int qos) {
+    MqttSourceProperties sourceProperties = new MqttSourceProperties();
+    sourceProperties.setClientId("loadtest-consumer-" + run + "-" + binding);
+    sourceProperties.setQos(qos);
+    sourceProperties.setPayloadMode(PayloadMode.BYTE_BUFFER);
+
+    return new ExtendedConsumerProperties<>(sourceProperties);
+  }
+
+  private ExtendedProducerProperties<MqttSinkProperties> producerProperties(
+      int run, int binding, int qos) {
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setClientId("loadtest-producer-" + run + "-" + binding);
+    sinkProperties.setQos(qos);
+    sinkProperties.setAsync(async);
+
+    return new ExtendedProducerProperties<>(sinkProperties);
+  }
+
+  private static List<Integer> intList(String property, String defaultValue) {
+    return Arrays.stream(System.getProperty(property, defaultValue).split(","))
+        .map(String::trim)
+        .map(Integer::valueOf)
+        .collect(Collectors.toList());
+  }
+
+  private enum Phase {
+    PROBE,
+    WARMUP,
+    MEASURED
+  }
+
+  @Configuration
+  @EnableIntegration
+  static class IntegrationConfiguration {}
+}
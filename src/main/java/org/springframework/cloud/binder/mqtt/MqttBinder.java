@@ -1,14 +1,30 @@
 package org.springframework.cloud.binder.mqtt;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.datatypes.MqttSharedTopicFilter;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5PublishResult;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import org.springframework.cloud.binder.mqtt.codec.MqttPayloadCodecRegistry;
 import org.springframework.cloud.binder.mqtt.inbound.MqttV5MessageDrivenChannelAdapter;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
+import org.springframework.cloud.binder.mqtt.outbound.MqttRequestReplyGateway;
 import org.springframework.cloud.binder.mqtt.outbound.MqttV5MessageHandler;
 import org.springframework.cloud.binder.mqtt.properties.*;
+import org.springframework.cloud.binder.mqtt.support.ConnectMode;
+import org.springframework.cloud.binder.mqtt.support.ConnectionOptions;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttMessageConverterRegistry;
 import org.springframework.cloud.stream.binder.*;
 import org.springframework.cloud.stream.provisioning.ConsumerDestination;
 import org.springframework.cloud.stream.provisioning.ProducerDestination;
-import org.springframework.integration.core.MessageProducer;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
-import org.springframework.messaging.MessageHandler;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
 
 public class MqttBinder
     extends AbstractMessageChannelBinder<
@@ -20,20 +36,43 @@ public class MqttBinder
   private MqttExtendedBindingProperties extendedBindingProperties;
   private RuntimeMqttExtendedBindingProperties runtimeExtendedBindingProperties;
   private MqttBinderConfigurationProperties binderConfigurationProperties;
+  private MqttClientRegistry clientRegistry;
+  private MqttPayloadCodecRegistry payloadCodecRegistry =
+      new MqttPayloadCodecRegistry(new ObjectMapper());
+  private MqttMessageConverterRegistry messageConverterRegistry =
+      new MqttMessageConverterRegistry();
+  private MqttMetrics metrics = MqttMetrics.NONE;
 
   public MqttBinder(
       MqttProvisioningProvider provisioningProvider,
       MqttExtendedBindingProperties extendedBindingProperties,
       RuntimeMqttExtendedBindingProperties runtimeExtendedBindingProperties,
-      MqttBinderConfigurationProperties binderConfigurationProperties) {
+      MqttBinderConfigurationProperties binderConfigurationProperties,
+      MqttClientRegistry clientRegistry) {
     super(BinderHeaders.STANDARD_HEADERS, provisioningProvider);
     this.extendedBindingProperties = extendedBindingProperties;
     this.runtimeExtendedBindingProperties = runtimeExtendedBindingProperties;
     this.binderConfigurationProperties = binderConfigurationProperties;
+    this.clientRegistry = clientRegistry;
+  }
+
+  /** Codecs encoding producer payloads which are neither {@code byte[]} nor {@code String}. */
+  public void setPayloadCodecRegistry(MqttPayloadCodecRegistry payloadCodecRegistry) {
+    this.payloadCodecRegistry = payloadCodecRegistry;
+  }
+
+  /** Converters of the payloads consumers and request-reply gateways receive. */
+  public void setMessageConverterRegistry(MqttMessageConverterRegistry messageConverterRegistry) {
+    this.messageConverterRegistry = messageConverterRegistry;
+  }
+
+  /** Metrics of the producers and consumers created from now on. */
+  public void setMetrics(MqttMetrics metrics) {
+    this.metrics = metrics;
   }
 
   @Override
-  protected MessageHandler createProducerMessageHandler(
+  protected MqttV5MessageHandler createProducerMessageHandler(
       ProducerDestination destination,
       ExtendedProducerProperties<MqttSinkProperties> producerProperties,
       MessageChannel errorChannel) {
@@ -41,13 +80,76 @@ public class MqttBinder
     MqttSinkProperties sinkProperties = producerProperties.getExtension();
     MqttV5MessageHandler handler =
         new MqttV5MessageHandler(
-            binderConfigurationProperties, sinkProperties, destination.getName());
+            clientRegistry, payloadCodecRegistry, sinkProperties, destination.getName());
+    handler.setSendFailureChannel(errorChannel);
+    handler.setMetrics(metrics.producer(destination.getName()));
+    handler.setLazyConnect(binderConfigurationProperties.getConnectMode() == ConnectMode.LAZY);
+    if (producerProperties.isPartitioned()) {
+      handler.setProducerDestination(destination);
+    }
 
     return handler;
   }
 
+  /**
+   * Creates a gateway publishing requests to the topic and completing futures with their replies.
+   * The gateway connects with the client id of the producer properties, it must be started before
+   * use and stopped once no longer needed.
+   */
+  public MqttRequestReplyGateway createRequestReplyGateway(
+      String requestTopic, MqttSinkProperties sinkProperties) {
+    MqttV5MessageHandler handler =
+        new MqttV5MessageHandler(
+            clientRegistry, payloadCodecRegistry, sinkProperties, requestTopic);
+    handler.setMetrics(metrics.producer(requestTopic));
+    handler.setBeanFactory(getApplicationContext().getBeanFactory());
+    handler.afterPropertiesSet();
+
+    MqttRequestReplyGateway gateway =
+        new MqttRequestReplyGateway(
+            clientRegistry, messageConverterRegistry, sinkProperties, handler);
+    gateway.setMaxDecompressedSize(binderConfigurationProperties.getMaximumPacketSize());
+
+    return gateway;
+  }
+
+  /**
+   * Creates a reactive producer of the destination, see {@link MqttV5MessageHandler#send}. The
+   * destination is provisioned like for a producer binding. Messages of a partitioned producer must
+   * carry their partition header already.
+   */
+  public Function<Flux<Message<?>>, Flux<Mqtt5PublishResult>> createReactiveProducer(
+      String destination, ExtendedProducerProperties<MqttSinkProperties> producerProperties) {
+    MqttV5MessageHandler handler =
+        createProducerMessageHandler(
+            provisioningProvider.provisionProducerDestination(destination, producerProperties),
+            producerProperties,
+            null);
+    handler.setBeanFactory(getApplicationContext().getBeanFactory());
+    handler.afterPropertiesSet();
+
+    return handler::send;
+  }
+
+  /**
+   * Receives the messages of the destination as a flux passing the demand of its subscriber on to
+   * the broker, see {@link MqttV5MessageDrivenChannelAdapter#receive()}. The destination is
+   * provisioned and subscribed to like for a consumer binding, including groups and partitions.
+   */
+  public Flux<Message<?>> createReactiveConsumer(
+      String destination,
+      String group,
+      ExtendedConsumerProperties<MqttSourceProperties> consumerProperties) {
+    return createConsumerEndpoint(
+            provisioningProvider.provisionConsumerDestination(
+                destination, group, consumerProperties),
+            group,
+            consumerProperties)
+        .receive();
+  }
+
   @Override
-  protected MessageProducer createConsumerEndpoint(
+  protected MqttV5MessageDrivenChannelAdapter createConsumerEndpoint(
       ConsumerDestination destination,
       String group,
       ExtendedConsumerProperties<MqttSourceProperties> properties) {
@@ -55,11 +157,79 @@ public class MqttBinder
     MqttSourceProperties sourceProperties = properties.getExtension();
     MqttV5MessageDrivenChannelAdapter adapter =
         new MqttV5MessageDrivenChannelAdapter(
-            binderConfigurationProperties, sourceProperties.getClientId(), destination.getName());
+            clientRegistry,
+            sourceProperties.getClientId(),
+            getTopicFilters(destination, group, properties));
+    adapter.setConcurrency(Math.max(1, properties.getConcurrency()));
+    adapter.setMessageConverterRegistry(messageConverterRegistry);
+    adapter.setDispatchKeyHeader(sourceProperties.getDispatchKeyHeader());
+    adapter.setQos(MqttQos.fromCode(sourceProperties.getQos()));
+    adapter.setManualAcknowledgement(sourceProperties.isManualAcknowledgement());
+    adapter.setConnectionOptions(
+        new ConnectionOptions(
+            sourceProperties.getReceiveMaximum(),
+            sourceProperties.getMaximumPacketSize(),
+            sourceProperties.isCleanStart(),
+            sourceProperties.getSessionExpiryInterval()));
+    adapter.setQos0QueueCapacity(sourceProperties.getQos0QueueCapacity());
+    adapter.setMaxDecompressedSize(
+        Optional.ofNullable(sourceProperties.getMaxDecompressedSize())
+            .or(() -> Optional.ofNullable(sourceProperties.getMaximumPacketSize()))
+            .orElse(binderConfigurationProperties.getMaximumPacketSize()));
+    adapter.setPayloadMode(sourceProperties.getPayloadMode());
+    adapter.setBatchMode(properties.isBatchMode());
+    adapter.setBatchSize(sourceProperties.getBatchSize());
+    adapter.setBatchTimeout(sourceProperties.getBatchTimeout());
+    adapter.setBatchMaxBytes(sourceProperties.getBatchMaxBytes());
+    adapter.setMaxAttempts(properties.getMaxAttempts());
+    adapter.setBackOffInitialInterval(properties.getBackOffInitialInterval());
+    adapter.setBackOffMultiplier(properties.getBackOffMultiplier());
+    adapter.setBackOffMaxInterval(properties.getBackOffMaxInterval());
+    adapter.setDeadLetterTopic(sourceProperties.getDeadLetterTopic());
+    adapter.setStopTimeout(sourceProperties.getStopTimeout());
+    adapter.setMetrics(metrics.consumer(destination.getName()));
 
     return adapter;
   }
 
+  /**
+   * A partitioned consumer only subscribes to the sub-topics of its own partitions, given by {@code
+   * instanceIndexList} or else by {@code instanceIndex}.
+   */
+  private String[] getTopicFilters(
+      ConsumerDestination destination,
+      String group,
+      ExtendedConsumerProperties<MqttSourceProperties> properties) {
+    if (!properties.isPartitioned()) {
+      return new String[] {getTopicFilter(destination.getName(), group)};
+    }
+
+    List<Integer> partitions = properties.getInstanceIndexList();
+    if (partitions == null || partitions.isEmpty()) {
+      partitions = Collections.singletonList(properties.getInstanceIndex());
+    }
+
+    return partitions.stream()
+        .map(
+            partition ->
+                MqttProvisioningProvider.getPartitionTopic(destination.getName(), partition))
+        .map(topic -> getTopicFilter(topic, group))
+        .toArray(String[]::new);
+  }
+
+  /**
+   * Consumers of the same group subscribe through an MQTT 5 shared subscription, so the broker
+   * load-balances the messages of the topic across the group members instead of delivering every
+   * message to each of them.
+   */
+  private String getTopicFilter(String topic, String group) {
+    if (!StringUtils.hasText(group)) {
+      return topic;
+    }
+
+    return MqttSharedTopicFilter.of(group, topic).toString();
+  }
+
   @Override
   public MqttSourceProperties getExtendedConsumerProperties(String channelName) {
     return this.extendedBindingProperties.getExtendedConsumerProperties(channelName);
@@ -19,6 +19,10 @@ public class MqttProvisioningProvider
   public ProducerDestination provisionProducerDestination(
       String name, ExtendedProducerProperties<MqttSinkProperties> properties)
       throws ProvisioningException {
+    if (properties.isPartitioned()) {
+      validatePartitionedTopic(name);
+    }
+
     return new MqttTopicDestination(name);
   }
 
@@ -26,9 +30,37 @@ public class MqttProvisioningProvider
   public ConsumerDestination provisionConsumerDestination(
       String name, String group, ExtendedConsumerProperties<MqttSourceProperties> properties)
       throws ProvisioningException {
+    if (group != null && (group.contains("/") || group.contains("+") || group.contains("#"))) {
+      throw new ProvisioningException(
+          "Consumer group '" + group + "' must not contain '/', '+' or '#'");
+    }
+    if (properties.isPartitioned()) {
+      validatePartitionedTopic(name);
+      if (properties.getInstanceIndex() < 0 && properties.getInstanceIndexList().isEmpty()) {
+        throw new ProvisioningException(
+            "Partitioned consumer of '" + name + "' requires instanceIndex >= 0");
+      }
+    }
+
     return new MqttTopicDestination(name);
   }
 
+  /**
+   * Each partition of a destination is its own sub-topic: partition {@code 2} of {@code telemetry}
+   * is published to and consumed from {@code telemetry/2}.
+   */
+  static String getPartitionTopic(String name, int partition) {
+    return name + "/" + partition;
+  }
+
+  /** Producers publish to the partition topics, which therefore must not be topic filters. */
+  private void validatePartitionedTopic(String name) {
+    if (name.contains("+") || name.contains("#")) {
+      throw new ProvisioningException(
+          "Partitioned destination '" + name + "' must not contain the wildcards '+' or '#'");
+    }
+  }
+
   @RequiredArgsConstructor
   private class MqttTopicDestination implements ProducerDestination, ConsumerDestination {
 
@@ -41,7 +73,7 @@ public class MqttProvisioningProvider
 
     @Override
     public String getNameForPartition(int partition) {
-      throw new UnsupportedOperationException("Partitioning is not implemented for mqtt");
+      return getPartitionTopic(getName(), partition);
     }
   }
 }
@@ -0,0 +1,36 @@
+package org.springframework.cloud.binder.mqtt.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import org.springframework.util.MimeType;
+
+/**
+ * Encodes payloads with a Jackson {@link ObjectMapper}. The mapper's data format decides the wire
+ * format, e.g. JSON, CBOR or Smile. Payloads are written straight into Jackson's recycled byte
+ * buffers without an intermediate {@code String}.
+ */
+public class JacksonPayloadCodec implements MqttPayloadCodec {
+
+  private final ObjectMapper objectMapper;
+  private final MimeType contentType;
+
+  public JacksonPayloadCodec(ObjectMapper objectMapper, MimeType contentType) {
+    this.objectMapper = objectMapper;
+    this.contentType = contentType;
+  }
+
+  @Override
+  public MimeType getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public boolean supports(MimeType contentType) {
+    return this.contentType.equalsTypeAndSubtype(contentType);
+  }
+
+  @Override
+  public byte[] encode(Object payload) throws IOException {
+    return objectMapper.writeValueAsBytes(payload);
+  }
+}
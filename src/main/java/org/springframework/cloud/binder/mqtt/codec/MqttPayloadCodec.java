@@ -0,0 +1,19 @@
+package org.springframework.cloud.binder.mqtt.codec;
+
+import java.io.IOException;
+import org.springframework.util.MimeType;
+
+/**
+ * Serializes outbound payloads which are neither {@code byte[]} nor {@code String}. Codecs are
+ * picked by the content type of the message; register additional codecs as beans to support further
+ * binary formats.
+ */
+public interface MqttPayloadCodec {
+
+  /** Content type written to the MQTT 5 publish of an encoded payload. */
+  MimeType getContentType();
+
+  boolean supports(MimeType contentType);
+
+  byte[] encode(Object payload) throws IOException;
+}
@@ -0,0 +1,94 @@
+package org.springframework.cloud.binder.mqtt.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ConcurrentLruCache;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * Picks the {@link MqttPayloadCodec} of a content type. Codecs are tried in registration order and
+ * the result is cached for the most recently used content types. Content types without a codec fall
+ * back to JSON.
+ */
+public class MqttPayloadCodecRegistry {
+
+  public static final MimeType APPLICATION_CBOR = MimeType.valueOf("application/cbor");
+  public static final MimeType APPLICATION_SMILE = MimeType.valueOf("application/x-jackson-smile");
+
+  private static final boolean cborPresent =
+      ClassUtils.isPresent(
+          "com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper",
+          MqttPayloadCodecRegistry.class.getClassLoader());
+  private static final boolean smilePresent =
+      ClassUtils.isPresent(
+          "com.fasterxml.jackson.dataformat.smile.databind.SmileMapper",
+          MqttPayloadCodecRegistry.class.getClassLoader());
+
+  /** Content types are chosen by the publishers, only the most recently used ones are cached. */
+  private static final int CACHE_SIZE = 64;
+
+  private final List<MqttPayloadCodec> codecs;
+  private final MqttPayloadCodec defaultCodec;
+  private final ConcurrentLruCache<MimeType, MqttPayloadCodec> resolved =
+      new ConcurrentLruCache<>(CACHE_SIZE, this::findCodec);
+
+  public MqttPayloadCodecRegistry(ObjectMapper objectMapper) {
+    this(objectMapper, new ArrayList<>());
+  }
+
+  /**
+   * Creates a registry trying the given codecs before the JSON codec and, when their Jackson data
+   * formats are on the classpath, the CBOR and Smile codecs.
+   */
+  public MqttPayloadCodecRegistry(ObjectMapper objectMapper, Collection<MqttPayloadCodec> codecs) {
+    this.defaultCodec = new JacksonPayloadCodec(objectMapper, MimeTypeUtils.APPLICATION_JSON);
+    this.codecs = new ArrayList<>(codecs);
+    this.codecs.add(defaultCodec);
+    if (cborPresent) {
+      this.codecs.add(CborCodecFactory.create());
+    }
+    if (smilePresent) {
+      this.codecs.add(SmileCodecFactory.create());
+    }
+  }
+
+  public MqttPayloadCodec getCodec(MimeType contentType) {
+    if (contentType == null) {
+      return defaultCodec;
+    }
+
+    return resolved.get(contentType);
+  }
+
+  private MqttPayloadCodec findCodec(MimeType contentType) {
+    for (MqttPayloadCodec codec : codecs) {
+      if (codec.supports(contentType)) {
+        return codec;
+      }
+    }
+
+    return defaultCodec;
+  }
+
+  /** Keeps the optional CBOR data format from being loaded unless it is on the classpath. */
+  private static class CborCodecFactory {
+
+    private static MqttPayloadCodec create() {
+      return new JacksonPayloadCodec(new CBORMapper(), APPLICATION_CBOR);
+    }
+  }
+
+  /** Keeps the optional Smile data format from being loaded unless it is on the classpath. */
+  private static class SmileCodecFactory {
+
+    private static MqttPayloadCodec create() {
+      return new JacksonPayloadCodec(new SmileMapper(), APPLICATION_SMILE);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package org.springframework.cloud.binder.mqtt.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Compression applied to published payloads. The compression of a payload is announced in the
+ * {@link #USER_PROPERTY} MQTT 5 user property, so consumers know how to restore it.
+ */
+public enum PayloadCompression {
+  GZIP("gzip") {
+    @Override
+    OutputStream compressing(OutputStream outputStream) throws IOException {
+      return new GZIPOutputStream(outputStream);
+    }
+
+    @Override
+    InputStream decompressing(InputStream inputStream) throws IOException {
+      return new GZIPInputStream(inputStream);
+    }
+  },
+
+  DEFLATE("deflate") {
+    @Override
+    OutputStream compressing(OutputStream outputStream) {
+      return new DeflaterOutputStream(outputStream);
+    }
+
+    @Override
+    InputStream decompressing(InputStream inputStream) {
+      return new InflaterInputStream(inputStream);
+    }
+  };
+
+  /** Name of the user property carrying the encoding of a compressed payload. */
+  public static final String USER_PROPERTY = "content-encoding";
+
+  private final String encoding;
+
+  PayloadCompression(String encoding) {
+    this.encoding = encoding;
+  }
+
+  /** Value of the {@link #USER_PROPERTY} user property of payloads compressed this way. */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  public byte[] compress(byte[] payload) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 4 + 64);
+    try (OutputStream outputStream = compressing(compressed)) {
+      outputStream.write(payload);
+    }
+
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Restores a compressed payload. Inflating stops once the payload exceeds {@code maximumSize}
+   * bytes, so a small payload that inflates to gigabytes cannot exhaust the memory.
+   *
+   * @throws IOException if the payload is corrupt or exceeds {@code maximumSize} bytes
+   */
+  public byte[] decompress(byte[] payload, int maximumSize) throws IOException {
+    ByteArrayOutputStream decompressed =
+        new ByteArrayOutputStream((int) Math.min(maximumSize, payload.length * 4L));
+    byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+    try (InputStream inputStream = decompressing(new ByteArrayInputStream(payload))) {
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        if (read > maximumSize - decompressed.size()) {
+          throw new IOException(
+              "Decompressed " + encoding + " payload exceeds " + maximumSize + " bytes");
+        }
+        decompressed.write(buffer, 0, read);
+      }
+    }
+
+    return decompressed.toByteArray();
+  }
+
+  abstract OutputStream compressing(OutputStream outputStream) throws IOException;
+
+  abstract InputStream decompressing(InputStream inputStream) throws IOException;
+
+  /**
+   * Compression of the given {@link #USER_PROPERTY} value, {@code null} if the encoding is not
+   * supported, e.g. because the publisher applied it on its own.
+   */
+  public static PayloadCompression forEncoding(String encoding) {
+    for (PayloadCompression compression : values()) {
+      if (compression.encoding.equalsIgnoreCase(encoding)) {
+        return compression;
+      }
+    }
+
+    return null;
+  }
+}
@@ -1,12 +1,25 @@
 package org.springframework.cloud.binder.mqtt.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.binder.mqtt.MqttBinder;
 import org.springframework.cloud.binder.mqtt.MqttProvisioningProvider;
+import org.springframework.cloud.binder.mqtt.codec.MqttPayloadCodec;
+import org.springframework.cloud.binder.mqtt.codec.MqttPayloadCodecRegistry;
+import org.springframework.cloud.binder.mqtt.metrics.MicrometerMqttMetrics;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
 import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
 import org.springframework.cloud.binder.mqtt.properties.MqttExtendedBindingProperties;
 import org.springframework.cloud.binder.mqtt.properties.RuntimeMqttExtendedBindingProperties;
+import org.springframework.cloud.binder.mqtt.support.ConnectMode;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttStartupGate;
 import org.springframework.cloud.stream.binder.Binder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -35,15 +48,68 @@ public class MqttBinderConfiguration {
     return new MqttProvisioningProvider();
   }
 
+  @Bean
+  public MqttClientRegistry mqttClientRegistry(
+      MqttBinderConfigurationProperties mqttProperties, ObjectProvider<MqttMetrics> mqttMetrics) {
+    MqttClientRegistry clientRegistry = new MqttClientRegistry(mqttProperties);
+    clientRegistry.setMetrics(mqttMetrics.getIfAvailable(() -> MqttMetrics.NONE));
+
+    return clientRegistry;
+  }
+
+  /** Waits for the clients connecting concurrently, blocking clients are connected already. */
+  @Bean
+  public MqttStartupGate mqttStartupGate(
+      MqttClientRegistry mqttClientRegistry, MqttBinderConfigurationProperties mqttProperties) {
+    return new MqttStartupGate(
+        mqttClientRegistry,
+        mqttProperties.getConnectMode() == ConnectMode.BLOCKING
+            ? 0
+            : mqttProperties.getConnectionTimeout());
+  }
+
+  @Bean
+  public MqttPayloadCodecRegistry mqttPayloadCodecRegistry(
+      ObjectProvider<MqttPayloadCodec> payloadCodecs) {
+    return new MqttPayloadCodecRegistry(
+        new ObjectMapper(), payloadCodecs.orderedStream().collect(Collectors.toList()));
+  }
+
   @Bean
   public MqttBinder mqttBinder(
       MqttProvisioningProvider provisioningProvider,
-      MqttBinderConfigurationProperties mqttProperties) {
+      MqttBinderConfigurationProperties mqttProperties,
+      MqttClientRegistry mqttClientRegistry,
+      MqttPayloadCodecRegistry mqttPayloadCodecRegistry,
+      ObjectProvider<MqttMetrics> mqttMetrics) {
+
+    MqttBinder mqttBinder =
+        new MqttBinder(
+            provisioningProvider,
+            mqttExtendedBindingProperties,
+            runtimeExtendedBindingProperties,
+            mqttProperties,
+            mqttClientRegistry);
+    mqttBinder.setPayloadCodecRegistry(mqttPayloadCodecRegistry);
+    mqttBinder.setMetrics(mqttMetrics.getIfAvailable(() -> MqttMetrics.NONE));
+
+    return mqttBinder;
+  }
+
+  /** Micrometer is optional, its types are only referenced here and in MicrometerMqttMetrics. */
+  @Configuration(proxyBeanMethods = false)
+  @ConditionalOnClass(MeterRegistry.class)
+  static class MqttMetricsConfiguration {
 
-    return new MqttBinder(
-        provisioningProvider,
-        mqttExtendedBindingProperties,
-        runtimeExtendedBindingProperties,
-        mqttProperties);
+    @Bean
+    @ConditionalOnBean(MeterRegistry.class)
+    @ConditionalOnMissingBean(MqttMetrics.class)
+    public MqttMetrics mqttMetrics(
+        MeterRegistry meterRegistry, MqttBinderConfigurationProperties mqttProperties) {
+      return new MicrometerMqttMetrics(
+          meterRegistry,
+          mqttProperties.getMetricsMaxTopicTags(),
+          mqttProperties.isMetricsPercentileHistogram());
+    }
   }
 }
@@ -0,0 +1,81 @@
+package org.springframework.cloud.binder.mqtt.inbound;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.springframework.messaging.Message;
+
+/**
+ * Collects received messages into batches. A batch is handed to the consumer once it holds {@code
+ * batchSize} messages, once adding a message would exceed {@code maxBytes} payload bytes, or {@code
+ * timeout} milliseconds after its first message arrived, whichever comes first.
+ */
+class MessageBatcher {
+
+  private final int batchSize;
+  private final long maxBytes;
+  private final long timeout;
+  private final ScheduledExecutorService scheduler;
+  private final Consumer<List<Message<?>>> consumer;
+
+  private List<Message<?>> batch = new ArrayList<>();
+  private long batchBytes;
+  private ScheduledFuture<?> scheduledFlush;
+
+  MessageBatcher(
+      int batchSize,
+      long maxBytes,
+      long timeout,
+      ScheduledExecutorService scheduler,
+      Consumer<List<Message<?>>> consumer) {
+    this.batchSize = batchSize;
+    this.maxBytes = maxBytes;
+    this.timeout = timeout;
+    this.scheduler = scheduler;
+    this.consumer = consumer;
+  }
+
+  /**
+   * Adds a message of the given payload size, emitting the current batch first when the message
+   * would not fit into it anymore.
+   */
+  synchronized void add(Message<?> message, int bytes) {
+    if (!batch.isEmpty() && batchBytes + bytes > maxBytes) {
+      flush();
+    }
+    batch.add(message);
+    batchBytes += bytes;
+    if (batch.size() >= batchSize || batchBytes >= maxBytes) {
+      flush();
+    } else if (batch.size() == 1) {
+      List<Message<?>> pending = batch;
+      scheduledFlush = scheduler.schedule(() -> flush(pending), timeout, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Emits the current batch, if any. */
+  synchronized void flush() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    List<Message<?>> full = batch;
+    batch = new ArrayList<>();
+    batchBytes = 0;
+    // emitting under the lock keeps batches of one batcher in order
+    consumer.accept(full);
+  }
+
+  private synchronized void flush(List<Message<?>> expected) {
+    // the timer may fire after the batch it was scheduled for has already been emitted
+    if (batch == expected) {
+      flush();
+    }
+  }
+}
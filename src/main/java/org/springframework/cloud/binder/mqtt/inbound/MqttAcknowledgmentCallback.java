@@ -0,0 +1,46 @@
+package org.springframework.cloud.binder.mqtt.inbound;
+
+import org.springframework.integration.acks.AcknowledgmentCallback;
+
+/**
+ * Acknowledges a message received with manual acknowledgement. Every status sends the
+ * acknowledgement to the broker, as MQTT can neither reject nor requeue a message: the broker only
+ * redelivers an unacknowledged message once the session is resumed, and until then the message
+ * would hold one of the receive maximum slots of the client. Leaving messages unacknowledged would
+ * stall the client once receive maximum of them have failed.
+ */
+class MqttAcknowledgmentCallback implements AcknowledgmentCallback {
+
+  private final Runnable acknowledgement;
+  private boolean acknowledged;
+  private volatile boolean autoAck = true;
+
+  /** The acknowledgement of the received message, run once. */
+  MqttAcknowledgmentCallback(Runnable acknowledgement) {
+    this.acknowledgement = acknowledgement;
+  }
+
+  @Override
+  public synchronized void acknowledge(Status status) {
+    if (acknowledged) {
+      return;
+    }
+    acknowledged = true;
+    acknowledgement.run();
+  }
+
+  @Override
+  public synchronized boolean isAcknowledged() {
+    return acknowledged;
+  }
+
+  @Override
+  public void noAutoAck() {
+    autoAck = false;
+  }
+
+  @Override
+  public boolean isAutoAck() {
+    return autoAck;
+  }
+}
@@ -1,154 +1,742 @@
 package org.springframework.cloud.binder.mqtt.inbound;
 
-import com.hivemq.client.mqtt.MqttClient;
-import com.hivemq.client.mqtt.MqttGlobalPublishFilter;
 import com.hivemq.client.mqtt.datatypes.MqttQos;
-import com.hivemq.client.mqtt.datatypes.MqttTopic;
 import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperty;
 import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
-import java.util.HashMap;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.Mqtt5Subscribe;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.Mqtt5Subscription;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
-import org.springframework.cloud.binder.mqtt.support.JsonStringMessageConverter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import org.springframework.cloud.binder.mqtt.codec.PayloadCompression;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
+import org.springframework.cloud.binder.mqtt.support.ConnectionOptions;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttHeaders;
+import org.springframework.cloud.binder.mqtt.support.MqttMessageConverterRegistry;
+import org.springframework.cloud.binder.mqtt.support.ReceivedPublishes;
+import org.springframework.cloud.binder.mqtt.support.StripedExecutor;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.StaticMessageHeaderAccessor;
+import org.springframework.integration.acks.AckUtils;
+import org.springframework.integration.acks.AcknowledgmentCallback;
 import org.springframework.integration.endpoint.MessageProducerSupport;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
-import org.springframework.messaging.converter.ContentTypeResolver;
-import org.springframework.messaging.converter.DefaultContentTypeResolver;
-import org.springframework.messaging.converter.SmartMessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
 
 public class MqttV5MessageDrivenChannelAdapter extends MessageProducerSupport {
 
+  /** Header holding the headers of each record of a batch, in payload order. */
+  public static final String BATCHED_HEADERS = "mqtt_batchedHeaders";
+
+  private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
   private Mqtt5BlockingClient mqtt5BlockingClient;
-  private MqttBinderConfigurationProperties configurationProperties;
+  private MqttClientRegistry clientRegistry;
   private String clientId;
-  private String topic;
-  private ExecutorService executorService;
-  private ContentTypeResolver contentTypeResolver;
-  private volatile boolean running;
+  private String[] topics;
+  private StripedExecutor dispatcher;
+  private MqttMessageConverterRegistry messageConverterRegistry;
+  private PayloadMode payloadMode = PayloadMode.CONVERTED;
+  private MqttQos qos = MqttQos.AT_LEAST_ONCE;
+  private boolean manualAcknowledgement;
+  private ConnectionOptions connectionOptions = ConnectionOptions.NONE;
+  private int qos0QueueCapacity = 10_000;
+  // the largest payload an MQTT packet can carry
+  private int maxDecompressedSize = 268_435_455;
+  private int concurrency = 1;
+  private String dispatchKeyHeader;
+  private boolean batchMode;
+  private int batchSize = 100;
+  private long batchTimeout = 1000;
+  private long batchMaxBytes = 1024 * 1024;
+  private MessageBatcher[] batchers;
+  private ScheduledExecutorService batchScheduler;
+  private int maxAttempts = 1;
+  private long backOffInitialInterval = 1000;
+  private double backOffMultiplier = 2.0;
+  private long backOffMaxInterval = 10_000;
+  private ScheduledExecutorService retryScheduler;
+  private final Set<Retry> pendingRetries = ConcurrentHashMap.newKeySet();
+  private long stopTimeout = 10_000;
+  private String deadLetterTopic;
+  private MqttMetrics.Consumer metrics = MqttMetrics.Consumer.NONE;
+  // the same instance on subscribe and detach, it identifies the subscription of this adapter
+  private final BiConsumer<Mqtt5Publish, Runnable> dispatchCallback = this::dispatch;
+  private boolean multiplexed;
 
   public MqttV5MessageDrivenChannelAdapter(
-      MqttBinderConfigurationProperties configurationProperties, String clientId, String topic) {
-    this.configurationProperties = configurationProperties;
+      MqttClientRegistry clientRegistry, String clientId, String... topics) {
+    this.clientRegistry = clientRegistry;
     this.clientId = clientId;
-    this.topic = topic;
-    this.contentTypeResolver = new DefaultContentTypeResolver();
+    this.topics = topics;
+    this.messageConverterRegistry = new MqttMessageConverterRegistry();
   }
 
-  @Override
-  protected void onInit() {
-    super.onInit();
-    mqtt5BlockingClient =
-        MqttClient.builder()
-            .automaticReconnect()
-            .initialDelay(500, TimeUnit.MILLISECONDS)
-            .maxDelay(2, TimeUnit.MINUTES)
-            .applyAutomaticReconnect()
-            .identifier(clientId)
-            .serverHost(configurationProperties.getServerHost())
-            .serverPort(configurationProperties.getServerPort())
-            .useMqttVersion5()
-            .simpleAuth()
-            .username(configurationProperties.getUsername())
-            .password(configurationProperties.getPassword().getBytes())
-            .applySimpleAuth()
-            .buildBlocking();
-
-    mqtt5BlockingClient.connect();
+  /** Number of threads dispatching received messages to the output channel. */
+  public void setConcurrency(int concurrency) {
+    Assert.isTrue(concurrency > 0, "concurrency must be greater than 0");
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Name of the MQTT 5 user property whose value decides the dispatch thread of a message. Defaults
+   * to the received topic.
+   */
+  public void setDispatchKeyHeader(String dispatchKeyHeader) {
+    this.dispatchKeyHeader = dispatchKeyHeader;
+  }
+
+  /** Registry converting received payloads according to their content type. */
+  public void setMessageConverterRegistry(MqttMessageConverterRegistry messageConverterRegistry) {
+    Assert.notNull(messageConverterRegistry, "messageConverterRegistry must not be null");
+    this.messageConverterRegistry = messageConverterRegistry;
+  }
+
+  /** Maximum QoS the broker delivers messages of the subscribed topics with. */
+  public void setQos(MqttQos qos) {
+    Assert.notNull(qos, "qos must not be null");
+    this.qos = qos;
+  }
+
+  /**
+   * Acknowledge received messages only once they have been handled instead of when a dispatch
+   * thread picks them up. Each message carries an {@link AcknowledgmentCallback} in the {@link
+   * IntegrationMessageHeaderAccessor#ACKNOWLEDGMENT_CALLBACK} header. It is acknowledged when the
+   * output channel has accepted the message, unless the handler called {@link
+   * AcknowledgmentCallback#noAutoAck()} to acknowledge it later itself. Messages whose handling
+   * failed are acknowledged once their last delivery attempt failed and they have been dead
+   * lettered, see {@link MqttAcknowledgmentCallback}. Only messages not handled at all, e.g.
+   * because the application stopped, are redelivered when the session is resumed.
+   */
+  public void setManualAcknowledgement(boolean manualAcknowledgement) {
+    this.manualAcknowledgement = manualAcknowledgement;
+  }
+
+  /**
+   * Receive maximum, maximum packet size and session settings the connection is established with,
+   * unless the client is already connected. With a persistent session the subscriptions are kept
+   * when the adapter stops, and not sent again when the broker resumes the session.
+   */
+  public void setConnectionOptions(ConnectionOptions connectionOptions) {
+    Assert.notNull(connectionOptions, "connectionOptions must not be null");
+    this.connectionOptions = connectionOptions;
+  }
+
+  /**
+   * Maximum number of QoS 0 messages waiting for a dispatch thread. Further QoS 0 messages are
+   * dropped until the dispatch thread catches up. QoS 1 and 2 messages are never dropped, the
+   * receive maximum of the connection bounds how many of them wait.
+   */
+  public void setQos0QueueCapacity(int qos0QueueCapacity) {
+    Assert.isTrue(qos0QueueCapacity > 0, "qos0QueueCapacity must be greater than 0");
+    this.qos0QueueCapacity = qos0QueueCapacity;
+  }
+
+  /**
+   * Maximum size in bytes a compressed payload may inflate to. Larger payloads fail to convert and
+   * are handled like any message that can't be converted.
+   */
+  public void setMaxDecompressedSize(int maxDecompressedSize) {
+    Assert.isTrue(maxDecompressedSize > 0, "maxDecompressedSize must be greater than 0");
+    this.maxDecompressedSize = maxDecompressedSize;
+  }
+
+  /**
+   * Type of the emitted payloads. {@link PayloadMode#BYTE_BUFFER} and {@link
+   * PayloadMode#CHAR_SEQUENCE} avoid copying large payloads into a {@code byte[]} first.
+   */
+  public void setPayloadMode(PayloadMode payloadMode) {
+    Assert.notNull(payloadMode, "payloadMode must not be null");
+    this.payloadMode = payloadMode;
+  }
+
+  /**
+   * Emit one message per batch of received messages instead of one per message. The batch payload
+   * is the list of the record payloads, their headers are kept in {@link #BATCHED_HEADERS}.
+   */
+  public void setBatchMode(boolean batchMode) {
+    this.batchMode = batchMode;
+  }
+
+  /** Maximum number of records in a batch. */
+  public void setBatchSize(int batchSize) {
+    Assert.isTrue(batchSize > 0, "batchSize must be greater than 0");
+    this.batchSize = batchSize;
+  }
+
+  /** Maximum time in milliseconds a record waits for its batch to fill up. */
+  public void setBatchTimeout(long batchTimeout) {
+    Assert.isTrue(batchTimeout > 0, "batchTimeout must be greater than 0");
+    this.batchTimeout = batchTimeout;
+  }
+
+  /** Maximum sum of the record payload sizes of a batch. */
+  public void setBatchMaxBytes(long batchMaxBytes) {
+    Assert.isTrue(batchMaxBytes > 0, "batchMaxBytes must be greater than 0");
+    this.batchMaxBytes = batchMaxBytes;
+  }
+
+  /**
+   * Number of attempts to deliver a message whose handling throws, {@code 1} disables retries.
+   * Retries are scheduled after a back-off and don't hold up the dispatch thread in the meantime.
+   * Batches are not retried.
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    Assert.isTrue(maxAttempts > 0, "maxAttempts must be greater than 0");
+    this.maxAttempts = maxAttempts;
+  }
+
+  /** Milliseconds before the first retry. */
+  public void setBackOffInitialInterval(long backOffInitialInterval) {
+    Assert.isTrue(backOffInitialInterval >= 0, "backOffInitialInterval must not be negative");
+    this.backOffInitialInterval = backOffInitialInterval;
+  }
+
+  /** Factor the back-off grows by with every further retry. */
+  public void setBackOffMultiplier(double backOffMultiplier) {
+    Assert.isTrue(backOffMultiplier >= 1, "backOffMultiplier must be at least 1");
+    this.backOffMultiplier = backOffMultiplier;
+  }
+
+  /** Upper bound of the back-off in milliseconds. */
+  public void setBackOffMaxInterval(long backOffMaxInterval) {
+    Assert.isTrue(backOffMaxInterval >= 0, "backOffMaxInterval must not be negative");
+    this.backOffMaxInterval = backOffMaxInterval;
+  }
+
+  /**
+   * Milliseconds stopping waits for the dispatch threads to finish the messages received so far,
+   * before the client is released. Messages waiting for a retry are not retried once stopping, they
+   * are handled like messages whose last delivery attempt failed.
+   */
+  public void setStopTimeout(long stopTimeout) {
+    Assert.isTrue(stopTimeout >= 0, "stopTimeout must not be negative");
+    this.stopTimeout = stopTimeout;
+  }
+
+  /**
+   * Topic messages are published to once their last delivery attempt failed, or when they can't be
+   * converted. Dead letters keep the payload and properties of the original message, and carry its
+   * topic and the failure in the {@link MqttHeaders#ORIGINAL_TOPIC} and {@link
+   * MqttHeaders#EXCEPTION_MESSAGE} user properties. Failed messages are only logged when not set.
+   */
+  public void setDeadLetterTopic(String deadLetterTopic) {
+    this.deadLetterTopic = deadLetterTopic;
+  }
+
+  /** Records received messages and the dispatch queue depth, set before initialization. */
+  public void setMetrics(MqttMetrics.Consumer metrics) {
+    Assert.notNull(metrics, "metrics must not be null");
+    this.metrics = metrics;
   }
 
   @Override
   protected void doStart() {
-    executorService = Executors.newSingleThreadExecutor();
-    running = true;
-
-    Runnable runnable =
+    mqtt5BlockingClient = clientRegistry.acquire(clientId, null, null, connectionOptions);
+    metrics.queued(
         () -> {
-          mqtt5BlockingClient.subscribeWith().topicFilter(topic).qos(MqttQos.AT_LEAST_ONCE).send();
-          final Mqtt5BlockingClient.Mqtt5Publishes publishes =
-              mqtt5BlockingClient.publishes(MqttGlobalPublishFilter.SUBSCRIBED);
-          while (running) {
-            try {
-              publishes
-                  .receiveNow()
-                  .ifPresent(
-                      mqtt5Publish -> {
-                        MessageHeaders messageHeaders = extractedHeader(mqtt5Publish);
-                        SmartMessageConverter messageConverter =
-                            getMessageConverter(messageHeaders);
-                        Message<?> message =
-                            messageConverter.toMessage(
-                                mqtt5Publish.getPayloadAsBytes(), messageHeaders);
-
-                        sendMessage(message);
-                      });
-              Thread.sleep(1, 5);
-            } catch (InterruptedException e) {
-              // NOOP
-            } catch (Exception e) {
-              logger.error(e, "Exception occurred while processing message");
-            }
-          }
-          publishes.close();
-        };
-    executorService.submit(runnable);
+          StripedExecutor dispatcher = this.dispatcher;
+          return dispatcher != null ? dispatcher.getQueuedTasks() : 0;
+        });
+
+    // The client pushes every PUBLISH to the callback, which only hands it over to a dispatch
+    // thread. Dispatch threads park while the topic is idle and pick messages up without any
+    // polling delay when it is busy.
+    // Messages are acknowledged by the dispatch threads, never on receipt: the broker stops sending
+    // once receive maximum messages are unacknowledged, which bounds the dispatch queues without
+    // ever blocking the network thread.
+    dispatcher =
+        new StripedExecutor(concurrency, new CustomizableThreadFactory(clientId + "-inbound-"));
+    if (maxAttempts > 1 && !batchMode) {
+      retryScheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              new CustomizableThreadFactory(clientId + "-retry-"));
+    }
+    if (batchMode) {
+      // one batcher per dispatch thread, so a batch never mixes up the order of a dispatch key
+      batchScheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              new CustomizableThreadFactory(clientId + "-batch-"));
+      batchers = new MessageBatcher[concurrency];
+      for (int i = 0; i < concurrency; i++) {
+        batchers[i] =
+            new MessageBatcher(
+                batchSize, batchMaxBytes, batchTimeout, batchScheduler, this::sendBatch);
+      }
+    }
+
+    // the registry decides, the client may have been connected by another binding
+    multiplexed = clientRegistry.isMultiplexed(mqtt5BlockingClient);
+    for (String topic : topics) {
+      if (multiplexed) {
+        // a resumed session still holds the subscription, subscribing again is skipped
+        clientRegistry.subscribe(mqtt5BlockingClient, topic, qos, dispatchCallback);
+        continue;
+      }
+      mqtt5BlockingClient
+          .toAsync()
+          .subscribeWith()
+          .topicFilter(topic)
+          .qos(qos)
+          .callback(mqtt5Publish -> dispatch(mqtt5Publish, mqtt5Publish::acknowledge))
+          .manualAcknowledgement(true)
+          .send()
+          .whenComplete(
+              (subAck, throwable) -> {
+                if (throwable != null) {
+                  logger.error(throwable, "Could not subscribe to topic " + topic);
+                }
+              });
+    }
   }
 
-  @Override
-  public void sendMessage(Message<?> message) {
-    logger.info("Sending message " + message.toString());
-    super.sendMessage(message);
+  /**
+   * Receives the messages of the topics as a {@link Flux}, instead of sending them to the output
+   * channel of a started adapter. Subscribing acquires the client and subscribes to the topics,
+   * completion or cancellation unsubscribes and releases it again.
+   *
+   * <p>The demand of the subscriber reaches the client: a message is only emitted, and acknowledged
+   * unless acknowledgement is manual, once it has been requested. The broker stops sending once
+   * receive maximum messages are unacknowledged, so a slow subscriber slows the broker down instead
+   * of filling a queue. QoS 0 messages are not flow controlled by MQTT. Concurrency, batching,
+   * retries and dead letters don't apply, they are up to the operators of the flux.
+   */
+  public Flux<Message<?>> receive() {
+    if (connectionOptions.isPersistentSession()) {
+      return Flux.error(
+          new IllegalStateException("Persistent sessions are not supported by reactive consumers"));
+    }
+    Mqtt5Subscribe subscribe =
+        Mqtt5Subscribe.builder()
+            .addSubscriptions(
+                Arrays.stream(topics)
+                    .map(topic -> Mqtt5Subscription.builder().topicFilter(topic).qos(qos).build()))
+            .build();
+
+    // connecting and disconnecting block, they must not run on the thread of the subscriber
+    return Flux.usingWhen(
+        Mono.fromCallable(() -> clientRegistry.acquire(clientId, null, null, connectionOptions))
+            .subscribeOn(Schedulers.boundedElastic()),
+        client ->
+            clientRegistry.isMultiplexed(client)
+                ? Flux.error(
+                    new IllegalStateException(
+                        "Multiplexed clients are not supported by reactive consumers"))
+                : Flux.from(client.toRx().subscribePublishes(subscribe, manualAcknowledgement))
+                    .handle(this::emit),
+        client ->
+            Mono.fromRunnable(
+                    () -> {
+                      for (String topic : topics) {
+                        client.toAsync().unsubscribeWith().topicFilter(topic).send();
+                      }
+                      clientRegistry.release(client);
+                    })
+                .subscribeOn(Schedulers.boundedElastic()));
+  }
+
+  private void emit(Mqtt5Publish mqtt5Publish, SynchronousSink<Message<?>> sink) {
+    AcknowledgmentCallback acknowledgmentCallback =
+        manualAcknowledgement ? new MqttAcknowledgmentCallback(mqtt5Publish::acknowledge) : null;
+    Message<?> message;
+    try {
+      long receivedAt = System.nanoTime();
+      message = toMessage(mqtt5Publish, acknowledgmentCallback);
+      metrics.converted(System.nanoTime() - receivedAt);
+    } catch (Exception e) {
+      // a message that can't be converted must not block the flow, nor terminate the flux
+      logger.error(e, "Could not convert message of topic " + mqtt5Publish.getTopic());
+      if (acknowledgmentCallback != null) {
+        acknowledgmentCallback.acknowledge(AcknowledgmentCallback.Status.REJECT);
+      }
+      return;
+    }
+    metrics.received(
+        message.getHeaders().get(MqttHeaders.RECEIVED_TOPIC, String.class),
+        getPayloadSize(mqtt5Publish));
+    sink.next(message);
+  }
+
+  /**
+   * Messages sharing a dispatch key are processed in order on the same thread, messages with
+   * different keys are processed concurrently. The acknowledgement is run instead of acknowledging
+   * the message, a multiplexed client acknowledges once every binding has done so.
+   */
+  private void dispatch(Mqtt5Publish mqtt5Publish, Runnable acknowledgement) {
+    Object dispatchKey = getDispatchKey(mqtt5Publish);
+    Runnable task = () -> handlePublish(dispatchKey, mqtt5Publish, acknowledgement);
+    if (mqtt5Publish.getQos() != MqttQos.AT_MOST_ONCE) {
+      dispatcher.execute(dispatchKey, task);
+    } else if (!dispatcher.tryExecute(dispatchKey, task, qos0QueueCapacity)) {
+      // QoS 0 messages do not count towards the receive maximum, so nothing else bounds them
+      acknowledgement.run();
+      metrics.dropped(mqtt5Publish.getTopic().toString());
+      if (logger.isDebugEnabled()) {
+        logger.debug("Dropped QoS 0 message of topic " + mqtt5Publish.getTopic());
+      }
+    }
+  }
+
+  private Object getDispatchKey(Mqtt5Publish mqtt5Publish) {
+    if (dispatchKeyHeader != null) {
+      String dispatchKey = getUserProperty(mqtt5Publish, dispatchKeyHeader);
+      if (dispatchKey != null) {
+        return dispatchKey;
+      }
+    }
+
+    return mqtt5Publish.getTopic();
+  }
+
+  private String getUserProperty(Mqtt5Publish mqtt5Publish, String name) {
+    for (Mqtt5UserProperty userProperty : mqtt5Publish.getUserProperties().asList()) {
+      if (userProperty.getName().toString().equals(name)) {
+        return userProperty.getValue().toString();
+      }
+    }
+
+    return null;
+  }
+
+  private void handlePublish(
+      Object dispatchKey, Mqtt5Publish mqtt5Publish, Runnable acknowledgement) {
+    AcknowledgmentCallback acknowledgmentCallback = null;
+    if (manualAcknowledgement) {
+      acknowledgmentCallback = new MqttAcknowledgmentCallback(acknowledgement);
+    } else {
+      // frees a receive maximum slot, letting the broker send the next message while this one is
+      // processed
+      acknowledgement.run();
+    }
+    int payloadSize = getPayloadSize(mqtt5Publish);
+    Message<?> message;
+    try {
+      long receivedAt = System.nanoTime();
+      message = toMessage(mqtt5Publish, acknowledgmentCallback);
+      metrics.converted(System.nanoTime() - receivedAt);
+    } catch (Exception e) {
+      // converting it again would fail the same way, the message is not retried
+      logger.error(e, "Could not convert message of topic " + mqtt5Publish.getTopic());
+      deadLetter(mqtt5Publish, acknowledgmentCallback, e);
+      return;
+    }
+    metrics.received(
+        message.getHeaders().get(MqttHeaders.RECEIVED_TOPIC, String.class), payloadSize);
+
+    if (batchers != null) {
+      try {
+        batchers[dispatcher.stripeOf(dispatchKey)].add(message, payloadSize);
+      } catch (Exception e) {
+        logger.error(e, "Exception occurred while processing batch");
+        reject(acknowledgmentCallback);
+      }
+    } else {
+      deliver(dispatchKey, mqtt5Publish, message);
+    }
+  }
+
+  /**
+   * Sends the message to the output channel. When that throws, the message is handed to the
+   * dispatch thread of its key again after a back-off that grows exponentially with every attempt.
+   * The dispatch thread goes on with the following messages meanwhile, so a failing message never
+   * stalls it, but it may be delivered after messages received later. Once {@code maxAttempts} is
+   * reached the message becomes a dead letter.
+   */
+  private void deliver(Object dispatchKey, Mqtt5Publish mqtt5Publish, Message<?> message) {
+    AcknowledgmentCallback acknowledgmentCallback = getAcknowledgmentCallback(message);
+    try {
+      sendMessage(message);
+      AckUtils.autoAck(acknowledgmentCallback);
+    } catch (Exception e) {
+      AtomicInteger deliveryAttempt = StaticMessageHeaderAccessor.getDeliveryAttempt(message);
+      int attempt = deliveryAttempt != null ? deliveryAttempt.get() : 1;
+      if (attempt < maxAttempts) {
+        metrics.retried(mqtt5Publish.getTopic().toString());
+        if (logger.isDebugEnabled()) {
+          logger.debug("Delivery attempt " + attempt + " failed, retrying " + message);
+        }
+        deliveryAttempt.incrementAndGet();
+        Retry retry = new Retry(dispatchKey, mqtt5Publish, message, e);
+        pendingRetries.add(retry);
+        try {
+          retryScheduler.schedule(retry, getBackOff(attempt), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+          // the adapter is stopping
+          retry.giveUp();
+        }
+      } else {
+        logger.error(e, "Exception occurred while processing message");
+        deadLetter(mqtt5Publish, acknowledgmentCallback, e);
+      }
+    }
   }
 
-  @SuppressWarnings("unused")
-  private SmartMessageConverter getMessageConverter(MessageHeaders messageHeaders) {
-    // TODO maybe needed in the future
-    /*MimeType mimeType = contentTypeResolver.resolve(messageHeaders);
-    if (MimeTypeUtils.APPLICATION_JSON.equals(mimeType)) {
-      return new JsonStringMessageConverter();
+  /**
+   * A message waiting for its next delivery attempt. Whoever removes it from the pending retries
+   * first, either the timer or stopping the adapter, decides whether it is retried or given up.
+   */
+  private class Retry implements Runnable {
+    private final Object dispatchKey;
+    private final Mqtt5Publish mqtt5Publish;
+    private final Message<?> message;
+    private final Exception cause;
+
+    private Retry(
+        Object dispatchKey, Mqtt5Publish mqtt5Publish, Message<?> message, Exception cause) {
+      this.dispatchKey = dispatchKey;
+      this.mqtt5Publish = mqtt5Publish;
+      this.message = message;
+      this.cause = cause;
+    }
+
+    @Override
+    public void run() {
+      if (!pendingRetries.remove(this)) {
+        return;
+      }
+      try {
+        dispatcher.execute(dispatchKey, () -> deliver(dispatchKey, mqtt5Publish, message));
+      } catch (RejectedExecutionException e) {
+        // the dispatch threads have been shut down, the adapter is stopping
+        deadLetter();
+      }
     }
-    return new ByteArrayMessageConverter();*/
 
-    return new JsonStringMessageConverter();
+    /** Handles the message like one whose last attempt failed, unless it is being retried. */
+    private boolean giveUp() {
+      if (!pendingRetries.remove(this)) {
+        return false;
+      }
+      deadLetter();
+
+      return true;
+    }
+
+    private void deadLetter() {
+      MqttV5MessageDrivenChannelAdapter.this.deadLetter(
+          mqtt5Publish, getAcknowledgmentCallback(message), cause);
+    }
   }
 
-  private MessageHeaders extractedHeader(Mqtt5Publish mqtt5Publish) {
-    Map<String, Object> header = new HashMap<>();
+  private long getBackOff(int attempt) {
+    return (long)
+        Math.min(
+            backOffInitialInterval * Math.pow(backOffMultiplier, attempt - 1), backOffMaxInterval);
+  }
 
-    header.put("mqtt_receivedQos", mqtt5Publish.getQos().getCode());
-    header.put("mqtt_receivedRetained", mqtt5Publish.isRetain());
-    header.put("mqtt_receivedTopic", mqtt5Publish.getTopic().toString());
+  /**
+   * Publishes a message that could not be handled to the dead letter topic. A message acknowledged
+   * by the binder is acknowledged once the broker has accepted its dead letter, or once publishing
+   * the dead letter failed; without a dead letter topic right away.
+   */
+  private void deadLetter(
+      Mqtt5Publish mqtt5Publish, AcknowledgmentCallback acknowledgmentCallback, Exception cause) {
+    if (deadLetterTopic == null) {
+      reject(acknowledgmentCallback);
+      return;
+    }
+    Throwable rootCause = NestedExceptionUtils.getMostSpecificCause(cause);
+    String topic = mqtt5Publish.getTopic().toString();
+    Mqtt5Publish deadLetter =
+        mqtt5Publish
+            .extend()
+            .topic(deadLetterTopic)
+            .retain(false)
+            .userProperties(
+                mqtt5Publish
+                    .getUserProperties()
+                    .extend()
+                    .add(MqttHeaders.ORIGINAL_TOPIC, topic)
+                    .add(
+                        MqttHeaders.EXCEPTION_MESSAGE,
+                        rootCause.getMessage() != null
+                            ? rootCause.getMessage()
+                            : rootCause.getClass().getName())
+                    .build())
+            .build();
+    mqtt5BlockingClient
+        .toAsync()
+        .publish(deadLetter)
+        .whenComplete(
+            (publishResult, throwable) -> {
+              Throwable error =
+                  throwable != null ? throwable : publishResult.getError().orElse(null);
+              if (error != null) {
+                logger.error(error, "Could not publish dead letter to topic " + deadLetterTopic);
+                reject(acknowledgmentCallback);
+              } else {
+                metrics.deadLettered(topic);
+                if (acknowledgmentCallback != null && acknowledgmentCallback.isAutoAck()) {
+                  acknowledgmentCallback.acknowledge(AcknowledgmentCallback.Status.ACCEPT);
+                }
+              }
+            });
+  }
 
-    mqtt5Publish
-        .getResponseTopic()
-        .map(MqttTopic::toString)
-        .ifPresent(rt -> header.put("mqtt_responseTopic", rt));
-    mqtt5Publish
-        .getContentType()
-        .map(Objects::toString)
-        .ifPresent(contentType -> header.put("contentType", contentType));
-    mqtt5Publish
-        .getCorrelationData()
-        .map(
-            byteBuffer -> {
-              int length = byteBuffer.remaining();
-              byte[] correlationData = new byte[length];
-              byteBuffer.get(correlationData);
+  /**
+   * Acknowledges a message whose handling failed, unless the handler took it over. An
+   * unacknowledged message would only be redelivered once the session is resumed, and hold one of
+   * the receive maximum slots of the client until then.
+   */
+  private static void reject(AcknowledgmentCallback acknowledgmentCallback) {
+    if (acknowledgmentCallback != null && acknowledgmentCallback.isAutoAck()) {
+      acknowledgmentCallback.acknowledge(AcknowledgmentCallback.Status.REJECT);
+    }
+  }
+
+  /** Package-private for the inbound benchmark. */
+  Message<?> toMessage(Mqtt5Publish mqtt5Publish, AcknowledgmentCallback acknowledgmentCallback)
+      throws IOException {
+    MessageHeaders messageHeaders = extractedHeader(mqtt5Publish, acknowledgmentCallback);
+    PayloadCompression compression = ReceivedPublishes.getCompression(mqtt5Publish);
+    if (compression != null) {
+      byte[] payload =
+          compression.decompress(mqtt5Publish.getPayloadAsBytes(), maxDecompressedSize);
 
-              return correlationData;
-            })
-        .ifPresent(correlationData -> header.put("mqtt_correlationData", correlationData));
+      return toMessage(payload, ByteBuffer.wrap(payload).asReadOnlyBuffer(), messageHeaders);
+    }
+
+    return payloadMode == PayloadMode.CONVERTED
+        ? toMessage(mqtt5Publish.getPayloadAsBytes(), null, messageHeaders)
+        : toMessage(null, getPayload(mqtt5Publish), messageHeaders);
+  }
+
+  /** Either payload may be {@code null} when it is not needed for the payload mode. */
+  private Message<?> toMessage(byte[] payload, ByteBuffer buffer, MessageHeaders messageHeaders) {
+    switch (payloadMode) {
+      case BYTE_BUFFER:
+        return MessageBuilder.createMessage(buffer, messageHeaders);
+      case CHAR_SEQUENCE:
+        return MessageBuilder.createMessage(
+            StandardCharsets.UTF_8.decode(buffer).asReadOnlyBuffer(), messageHeaders);
+      default:
+        return messageConverterRegistry.toMessage(payload, messageHeaders);
+    }
+  }
+
+  /** The payload buffer is read-only, duplicating it only copies its position, not its content. */
+  private ByteBuffer getPayload(Mqtt5Publish mqtt5Publish) {
+    return mqtt5Publish.getPayload().map(ByteBuffer::duplicate).orElse(EMPTY_PAYLOAD);
+  }
+
+  private int getPayloadSize(Mqtt5Publish mqtt5Publish) {
+    return mqtt5Publish.getPayload().map(ByteBuffer::remaining).orElse(0);
+  }
+
+  private void sendBatch(List<Message<?>> batch) {
+    List<Object> payloads = new ArrayList<>(batch.size());
+    List<Map<String, Object>> headers = new ArrayList<>(batch.size());
+    for (Message<?> message : batch) {
+      payloads.add(message.getPayload());
+      headers.add(message.getHeaders());
+    }
+
+    try {
+      sendMessage(MessageBuilder.withPayload(payloads).setHeader(BATCHED_HEADERS, headers).build());
+      batch.forEach(message -> AckUtils.autoAck(getAcknowledgmentCallback(message)));
+    } catch (Exception e) {
+      // batches may be emitted by the timer thread, which would swallow the exception
+      logger.error(e, "Exception occurred while processing batch");
+      batch.forEach(message -> reject(getAcknowledgmentCallback(message)));
+    }
+  }
+
+  private static AcknowledgmentCallback getAcknowledgmentCallback(Message<?> message) {
+    return message
+        .getHeaders()
+        .get(
+            IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK, AcknowledgmentCallback.class);
+  }
+
+  @Override
+  public void sendMessage(Message<?> message) {
+    if (logger.isDebugEnabled()) {
+      logger.debug("Sending message " + message);
+    }
+    super.sendMessage(message);
+  }
+
+  /** Package-private for the inbound benchmark. */
+  MessageHeaders extractedHeader(
+      Mqtt5Publish mqtt5Publish, AcknowledgmentCallback acknowledgmentCallback) {
+    Map<String, Object> header = ReceivedPublishes.getHeaders(mqtt5Publish);
+    if (acknowledgmentCallback != null) {
+      header.put(IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK, acknowledgmentCallback);
+    }
+    if (retryScheduler != null) {
+      header.put(IntegrationMessageHeaderAccessor.DELIVERY_ATTEMPT, new AtomicInteger(1));
+    }
 
     return new MessageHeaders(header);
   }
 
+  /**
+   * Unsubscribes, then waits for the dispatch threads to finish the messages received so far. Only
+   * then messages waiting for a retry are given up and the client is released, so no message is
+   * handled once the adapter has stopped.
+   */
   @Override
   protected void doStop() {
-    running = false;
-    executorService.shutdown();
+    for (String topic : topics) {
+      if (multiplexed) {
+        // with a persistent session the broker keeps queueing messages until the consumer is back
+        clientRegistry.detach(mqtt5BlockingClient, topic, dispatchCallback);
+      } else {
+        mqtt5BlockingClient.toAsync().unsubscribeWith().topicFilter(topic).send();
+      }
+    }
+    // retries due meanwhile are rejected by the dispatch threads and given up
+    dispatcher.shutdown();
+    try {
+      if (!dispatcher.awaitTermination(stopTimeout, TimeUnit.MILLISECONDS)) {
+        logger.warn("Received messages were still being handled after " + stopTimeout + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (batchers != null) {
+      // emit what has been received so far instead of dropping partial batches
+      for (MessageBatcher batcher : batchers) {
+        batcher.flush();
+      }
+      batchScheduler.shutdown();
+      batchers = null;
+    }
+    if (retryScheduler != null) {
+      retryScheduler.shutdownNow();
+      int givenUp = 0;
+      for (Retry retry : pendingRetries) {
+        if (retry.giveUp()) {
+          givenUp++;
+        }
+      }
+      if (givenUp > 0) {
+        logger.warn(givenUp + " messages waiting for a retry were given up");
+      }
+    }
+    metrics.close();
+    clientRegistry.release(mqtt5BlockingClient);
   }
 }
@@ -0,0 +1,16 @@
+package org.springframework.cloud.binder.mqtt.inbound;
+
+/** Type of the payload of the messages emitted by the inbound adapter. */
+public enum PayloadMode {
+
+  /** Payloads are converted according to their content type. */
+  CONVERTED,
+
+  /**
+   * Payloads are the read-only {@link java.nio.ByteBuffer} received by the client, without copying.
+   */
+  BYTE_BUFFER,
+
+  /** Payloads are read-only {@link java.nio.CharBuffer}s decoded once from UTF-8. */
+  CHAR_SEQUENCE
+}
@@ -0,0 +1,310 @@
+package org.springframework.cloud.binder.mqtt.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Records {@link MqttMetrics} with Micrometer. Meters are tagged with the client id or the
+ * destination of the binding, and with the topic of the message. To keep the number of time series
+ * bounded, only the first {@code maxTopicTags} distinct topics get a tag of their own, messages of
+ * any further topic are tagged {@value #OTHER_TOPIC}.
+ *
+ * <p>Gauges report the sum over all bindings of a destination and are removed with the last of
+ * them, so they neither keep stopped bindings reachable nor report a single binding only.
+ */
+public class MicrometerMqttMetrics implements MqttMetrics {
+
+  static final String OTHER_TOPIC = "other";
+
+  private final MeterRegistry meterRegistry;
+  private final int maxTopicTags;
+  private final boolean percentileHistogram;
+  private final Set<String> topicTags = ConcurrentHashMap.newKeySet();
+  private final Map<List<String>, SummingGauge> gauges = new HashMap<>();
+
+  public MicrometerMqttMetrics(MeterRegistry meterRegistry, int maxTopicTags) {
+    this(meterRegistry, maxTopicTags, false);
+  }
+
+  /**
+   * Publishes a percentile histogram of the publish times if {@code percentileHistogram} is set,
+   * which adds a few dozen time series per destination, topic and outcome.
+   */
+  public MicrometerMqttMetrics(
+      MeterRegistry meterRegistry, int maxTopicTags, boolean percentileHistogram) {
+    this.meterRegistry = meterRegistry;
+    this.maxTopicTags = maxTopicTags;
+    this.percentileHistogram = percentileHistogram;
+  }
+
+  @Override
+  public Client client(String clientId) {
+    return new MicrometerClient(clientId);
+  }
+
+  @Override
+  public Producer producer(String destination) {
+    return new MicrometerProducer(destination);
+  }
+
+  @Override
+  public Consumer consumer(String destination) {
+    return new MicrometerConsumer(destination);
+  }
+
+  private String topicTag(String topic) {
+    if (topicTags.contains(topic)) {
+      return topic;
+    }
+    // racing threads may exceed the limit by a few topics, which is harmless
+    if (topicTags.size() < maxTopicTags) {
+      topicTags.add(topic);
+      return topic;
+    }
+
+    return OTHER_TOPIC;
+  }
+
+  /** Adds the value to the gauge of the destination, returns what removes it again. */
+  private Runnable addToGauge(
+      String name, String description, String destination, Supplier<Number> value) {
+    synchronized (gauges) {
+      // registering the gauge again would return the one of the first binding
+      SummingGauge gauge =
+          gauges.computeIfAbsent(
+              Arrays.asList(name, destination),
+              key -> new SummingGauge(name, description, destination));
+      gauge.values.add(value);
+
+      return () -> {
+        synchronized (gauges) {
+          if (gauge.values.remove(value) && gauge.values.isEmpty()) {
+            gauges.remove(Arrays.asList(name, destination));
+            meterRegistry.remove(gauge.gauge);
+          }
+        }
+      };
+    }
+  }
+
+  /** Gauge reporting the sum of the values of all bindings of a destination. */
+  private class SummingGauge {
+
+    private final List<Supplier<Number>> values = new CopyOnWriteArrayList<>();
+    private final Gauge gauge;
+
+    private SummingGauge(String name, String description, String destination) {
+      gauge =
+          Gauge.builder(
+                  name,
+                  values,
+                  v -> v.stream().mapToDouble(value -> value.get().doubleValue()).sum())
+              .description(description)
+              .tag("destination", destination)
+              .register(meterRegistry);
+    }
+  }
+
+  private class MicrometerClient implements Client {
+
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicBoolean connectedBefore = new AtomicBoolean();
+    private final Gauge state;
+    private final Counter reconnects;
+
+    private MicrometerClient(String clientId) {
+      state =
+          Gauge.builder("mqtt.client.connected", connected, AtomicInteger::get)
+              .description("Whether the client is connected to the broker")
+              .tag("client", clientId)
+              .register(meterRegistry);
+      reconnects =
+          Counter.builder("mqtt.client.reconnects")
+              .description("Connections re-established after a connection loss")
+              .tag("client", clientId)
+              .register(meterRegistry);
+    }
+
+    @Override
+    public void connected() {
+      connected.set(1);
+      if (connectedBefore.getAndSet(true)) {
+        reconnects.increment();
+      }
+    }
+
+    @Override
+    public void disconnected() {
+      connected.set(0);
+    }
+
+    @Override
+    public void close() {
+      meterRegistry.remove(state);
+      meterRegistry.remove(reconnects);
+    }
+  }
+
+  private class MicrometerProducer implements Producer {
+
+    private final String destination;
+    private final Map<String, Timer> succeeded = new ConcurrentHashMap<>();
+    private final Map<String, Timer> failed = new ConcurrentHashMap<>();
+    private final List<Runnable> gauges = new CopyOnWriteArrayList<>();
+
+    private MicrometerProducer(String destination) {
+      this.destination = destination;
+    }
+
+    @Override
+    public void published(String topic, long nanos, boolean success) {
+      (success ? succeeded : failed)
+          .computeIfAbsent(topicTag(topic), tag -> publishTimer(tag, success))
+          .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer publishTimer(String topic, boolean success) {
+      return Timer.builder("mqtt.publish")
+          .description("Time from sending a message until the broker acknowledged it")
+          .tags(
+              Tags.of("destination", destination, "topic", topic)
+                  .and("outcome", success ? "success" : "failure"))
+          .publishPercentileHistogram(percentileHistogram)
+          .register(meterRegistry);
+    }
+
+    @Override
+    public void inFlight(Supplier<Number> inFlight) {
+      gauges.add(
+          addToGauge(
+              "mqtt.publish.in.flight",
+              "Asynchronous publishes waiting for their acknowledgement",
+              destination,
+              inFlight));
+    }
+
+    @Override
+    public void close() {
+      gauges.forEach(Runnable::run);
+      gauges.clear();
+    }
+  }
+
+  private class MicrometerConsumer implements Consumer {
+
+    private final String destination;
+    private final Map<String, Counter> messages = new ConcurrentHashMap<>();
+    private final Map<String, Counter> bytes = new ConcurrentHashMap<>();
+    private final Map<String, Counter> dropped = new ConcurrentHashMap<>();
+    private final Map<String, Counter> retried = new ConcurrentHashMap<>();
+    private final Map<String, Counter> deadLettered = new ConcurrentHashMap<>();
+    private final Timer conversion;
+    private final List<Runnable> gauges = new CopyOnWriteArrayList<>();
+
+    private MicrometerConsumer(String destination) {
+      this.destination = destination;
+      conversion =
+          Timer.builder("mqtt.receive.conversion")
+              .description("Time to turn a received message into a Spring message")
+              .tag("destination", destination)
+              .register(meterRegistry);
+    }
+
+    @Override
+    public void received(String topic, int bytes) {
+      String tag = topicTag(topic);
+      messages
+          .computeIfAbsent(
+              tag,
+              t ->
+                  counter("mqtt.received.messages", t)
+                      .description("Messages received from the broker")
+                      .register(meterRegistry))
+          .increment();
+      this.bytes
+          .computeIfAbsent(
+              tag,
+              t ->
+                  counter("mqtt.received.bytes", t)
+                      .description("Payload bytes received from the broker")
+                      .baseUnit("bytes")
+                      .register(meterRegistry))
+          .increment(bytes);
+    }
+
+    @Override
+    public void dropped(String topic) {
+      dropped
+          .computeIfAbsent(
+              topicTag(topic),
+              t ->
+                  counter("mqtt.received.dropped", t)
+                      .description("QoS 0 messages dropped because the consumer fell behind")
+                      .register(meterRegistry))
+          .increment();
+    }
+
+    @Override
+    public void retried(String topic) {
+      retried
+          .computeIfAbsent(
+              topicTag(topic),
+              t ->
+                  counter("mqtt.received.retried", t)
+                      .description("Failed deliveries that are retried")
+                      .register(meterRegistry))
+          .increment();
+    }
+
+    @Override
+    public void deadLettered(String topic) {
+      deadLettered
+          .computeIfAbsent(
+              topicTag(topic),
+              t ->
+                  counter("mqtt.received.dead.lettered", t)
+                      .description("Messages published to the dead letter topic")
+                      .register(meterRegistry))
+          .increment();
+    }
+
+    private Counter.Builder counter(String name, String topic) {
+      return Counter.builder(name).tags("destination", destination, "topic", topic);
+    }
+
+    @Override
+    public void converted(long nanos) {
+      conversion.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void queued(Supplier<Number> queued) {
+      gauges.add(
+          addToGauge(
+              "mqtt.receive.queued",
+              "Received messages waiting for a dispatch thread",
+              destination,
+              queued));
+    }
+
+    @Override
+    public void close() {
+      gauges.forEach(Runnable::run);
+      gauges.clear();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.springframework.cloud.binder.mqtt.metrics;
+
+import java.util.function.Supplier;
+
+/**
+ * Records what the binder's clients, producers and consumers do. Implementations must not block,
+ * most methods are called once per message. {@link #NONE} records nothing and is used unless a
+ * meter registry is available.
+ */
+public interface MqttMetrics {
+
+  MqttMetrics NONE = new MqttMetrics() {};
+
+  /** Metrics of the connection of the given client. */
+  default Client client(String clientId) {
+    return Client.NONE;
+  }
+
+  /** Metrics of a producer publishing to the given destination. */
+  default Producer producer(String destination) {
+    return Producer.NONE;
+  }
+
+  /** Metrics of a consumer of the given destination. */
+  default Consumer consumer(String destination) {
+    return Consumer.NONE;
+  }
+
+  interface Client {
+
+    Client NONE = new Client() {};
+
+    /** The client connected, either for the first time or after a connection loss. */
+    default void connected() {}
+
+    /** The client lost its connection or failed to reconnect. */
+    default void disconnected() {}
+
+    /** The client has been released for good, its meters are no longer needed. */
+    default void close() {}
+  }
+
+  interface Producer {
+
+    Producer NONE = new Producer() {};
+
+    /**
+     * A publish to the topic completed, {@code nanos} after it was sent. For QoS 1 and 2 this
+     * includes waiting for the broker acknowledgement.
+     */
+    default void published(String topic, long nanos, boolean success) {}
+
+    /** Reports the number of asynchronous publishes waiting for their acknowledgement. */
+    default void inFlight(Supplier<Number> inFlight) {}
+
+    /** The producer has stopped, its in flight publishes are no longer reported. */
+    default void close() {}
+  }
+
+  interface Consumer {
+
+    Consumer NONE = new Consumer() {};
+
+    /** A message with a payload of the given size was received from the topic. */
+    default void received(String topic, int bytes) {}
+
+    /** A QoS 0 message of the topic was dropped because the consumer fell behind. */
+    default void dropped(String topic) {}
+
+    /** Handling a message of the topic failed, it is delivered again after a back-off. */
+    default void retried(String topic) {}
+
+    /** A message of the topic that could not be handled was published to the dead letter topic. */
+    default void deadLettered(String topic) {}
+
+    /** Turning a received message into a Spring message took the given time. */
+    default void converted(long nanos) {}
+
+    /** Reports the number of received messages waiting for a dispatch thread. */
+    default void queued(Supplier<Number> queued) {}
+
+    /** The consumer has stopped, its queued messages are no longer reported. */
+    default void close() {}
+  }
+}
@@ -0,0 +1,272 @@
+package org.springframework.cloud.binder.mqtt.outbound;
+
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.binder.mqtt.properties.MqttSinkProperties;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttHeaders;
+import org.springframework.cloud.binder.mqtt.support.MqttMessageConverterRegistry;
+import org.springframework.cloud.binder.mqtt.support.ReceivedPublishes;
+import org.springframework.context.Lifecycle;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.Assert;
+
+/**
+ * Sends requests through a {@link MqttV5MessageHandler} and completes a future with the matching
+ * reply. All replies arrive on a single response topic subscribed once on start. Every request
+ * carries it as MQTT 5 response topic, along with correlation data identifying the request. A
+ * responder replies by publishing to the received {@code mqtt_responseTopic} header and echoing the
+ * received {@code mqtt_correlationData} header.
+ *
+ * <p>Requests wait for their reply in a concurrent map, and are evicted once their reply arrived or
+ * their timeout expired. Late replies are discarded. Futures are completed on the thread of the
+ * MQTT client, blocking work belongs into the async variants of their methods.
+ */
+@Slf4j
+public class MqttRequestReplyGateway implements Lifecycle {
+
+  private final MqttClientRegistry clientRegistry;
+  private final MqttSinkProperties sinkProperties;
+  private final MqttV5MessageHandler requestHandler;
+  private final MqttMessageConverterRegistry messageConverterRegistry;
+  private final Map<Long, CompletableFuture<Message<?>>> pendingReplies = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingRequests = new AtomicInteger();
+  // starts at random, so replies to requests of an earlier run can't match new requests
+  private final AtomicLong correlationIds = new AtomicLong(ThreadLocalRandom.current().nextLong());
+  private String responseTopic;
+  private long replyTimeout = 5000;
+  private int maxPendingRequests = 10_000;
+  // the largest payload an MQTT packet can carry
+  private int maxDecompressedSize = 268_435_455;
+  private Mqtt5BlockingClient mqtt5BlockingClient;
+  private volatile boolean running;
+
+  /**
+   * The gateway starts and stops the request handler, which must be initialized, and takes over its
+   * send failure channel to fail requests whose asynchronous publish failed. The response
+   * subscription uses the client of the handler's client id, replies are converted by the given
+   * registry.
+   */
+  public MqttRequestReplyGateway(
+      MqttClientRegistry clientRegistry,
+      MqttMessageConverterRegistry messageConverterRegistry,
+      MqttSinkProperties sinkProperties,
+      MqttV5MessageHandler requestHandler) {
+    this.clientRegistry = clientRegistry;
+    this.messageConverterRegistry = messageConverterRegistry;
+    this.sinkProperties = sinkProperties;
+    this.requestHandler = requestHandler;
+    requestHandler.setSendFailureChannel(
+        (errorMessage, timeout) -> {
+          onSendFailure((MessagingException) errorMessage.getPayload());
+          return true;
+        });
+  }
+
+  /**
+   * Topic the replies are received on. Defaults to {@code <clientId>/replies}, which is unique as
+   * long as a client id has only one gateway.
+   */
+  public void setResponseTopic(String responseTopic) {
+    this.responseTopic = responseTopic;
+  }
+
+  /** Milliseconds to wait for a reply before the request fails with a {@link TimeoutException}. */
+  public void setReplyTimeout(long replyTimeout) {
+    Assert.isTrue(replyTimeout > 0, "replyTimeout must be greater than 0");
+    this.replyTimeout = replyTimeout;
+  }
+
+  /** Maximum number of requests waiting for their reply, further requests are rejected. */
+  public void setMaxPendingRequests(int maxPendingRequests) {
+    Assert.isTrue(maxPendingRequests > 0, "maxPendingRequests must be greater than 0");
+    this.maxPendingRequests = maxPendingRequests;
+  }
+
+  /** Maximum size in bytes a compressed reply may inflate to, larger replies fail the request. */
+  public void setMaxDecompressedSize(int maxDecompressedSize) {
+    Assert.isTrue(maxDecompressedSize > 0, "maxDecompressedSize must be greater than 0");
+    this.maxDecompressedSize = maxDecompressedSize;
+  }
+
+  public String getResponseTopic() {
+    return responseTopic != null ? responseTopic : sinkProperties.getClientId() + "/replies";
+  }
+
+  /** Number of requests waiting for their reply. */
+  public int getPendingRequests() {
+    return pendingRequests.get();
+  }
+
+  @Override
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    mqtt5BlockingClient =
+        clientRegistry.acquire(
+            sinkProperties.getClientId(),
+            sinkProperties.getUsername(),
+            sinkProperties.getPassword());
+    // a reply may arrive right after its request is sent, the subscription must be in place
+    try {
+      mqtt5BlockingClient
+          .toAsync()
+          .subscribeWith()
+          .topicFilter(getResponseTopic())
+          .qos(MqttQos.AT_LEAST_ONCE)
+          .callback(this::onReply)
+          .send()
+          .get(10, TimeUnit.SECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      clientRegistry.release(mqtt5BlockingClient);
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      throw new IllegalStateException("Could not subscribe to topic " + getResponseTopic(), e);
+    }
+    requestHandler.start();
+    running = true;
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    requestHandler.stop();
+    mqtt5BlockingClient.toAsync().unsubscribeWith().topicFilter(getResponseTopic()).send();
+    pendingReplies
+        .values()
+        .forEach(
+            reply ->
+                reply.completeExceptionally(
+                    new MessagingException("Gateway stopped before the reply arrived")));
+    clientRegistry.release(mqtt5BlockingClient);
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Publishes the request and returns its reply. The future fails with a {@link TimeoutException}
+   * when no reply arrives within the reply timeout, or with the exception of the publish.
+   */
+  public CompletableFuture<Message<?>> sendAndReceive(Message<?> request) {
+    Assert.state(running, "Gateway is not running");
+    CompletableFuture<Message<?>> reply = new CompletableFuture<>();
+    if (!reservePendingRequest()) {
+      reply.completeExceptionally(
+          new MessageDeliveryException(request, "Too many requests are waiting for a reply"));
+      return reply;
+    }
+    long correlationId = correlationIds.incrementAndGet();
+    pendingReplies.put(correlationId, reply);
+    reply
+        .orTimeout(replyTimeout, TimeUnit.MILLISECONDS)
+        .whenComplete(
+            (message, throwable) -> {
+              pendingReplies.remove(correlationId);
+              pendingRequests.decrementAndGet();
+            });
+    try {
+      requestHandler.handleMessage(
+          MessageBuilder.fromMessage(request)
+              .setHeader(MqttHeaders.RESPONSE_TOPIC, getResponseTopic())
+              .setHeader(
+                  MqttHeaders.CORRELATION_DATA,
+                  ByteBuffer.allocate(Long.BYTES).putLong(correlationId).array())
+              .build());
+    } catch (RuntimeException e) {
+      reply.completeExceptionally(e);
+    }
+
+    return reply;
+  }
+
+  /** Takes one of the {@code maxPendingRequests} slots, unless all are taken. */
+  private boolean reservePendingRequest() {
+    int pending;
+    do {
+      pending = pendingRequests.get();
+      if (pending >= maxPendingRequests) {
+        return false;
+      }
+    } while (!pendingRequests.compareAndSet(pending, pending + 1));
+
+    return true;
+  }
+
+  /**
+   * Fails the request of a publish that failed after {@link #sendAndReceive} returned, e.g. a QoS 0
+   * or asynchronous one, instead of leaving it to time out.
+   */
+  private void onSendFailure(MessagingException exception) {
+    Message<?> request = exception.getFailedMessage();
+    byte[] correlationData =
+        request != null
+            ? request.getHeaders().get(MqttHeaders.CORRELATION_DATA, byte[].class)
+            : null;
+    CompletableFuture<Message<?>> reply =
+        correlationData != null ? removePendingReply(ByteBuffer.wrap(correlationData)) : null;
+    if (reply != null) {
+      reply.completeExceptionally(exception);
+    } else {
+      log.error(exception.getMessage(), exception);
+    }
+  }
+
+  /** The request the correlation data identifies, {@code null} if it isn't pending (anymore). */
+  private CompletableFuture<Message<?>> removePendingReply(ByteBuffer correlationData) {
+    if (correlationData.remaining() != Long.BYTES) {
+      return null;
+    }
+
+    return pendingReplies.remove(correlationData.getLong(correlationData.position()));
+  }
+
+  private void onReply(Mqtt5Publish mqtt5Publish) {
+    Optional<ByteBuffer> correlationData = mqtt5Publish.getCorrelationData();
+    if (!correlationData.isPresent() || correlationData.get().remaining() != Long.BYTES) {
+      log.debug("Discarding reply without correlation data of this gateway");
+      return;
+    }
+    CompletableFuture<Message<?>> reply = removePendingReply(correlationData.get());
+    if (reply == null) {
+      log.debug("Discarding reply of topic {} that arrived too late", mqtt5Publish.getTopic());
+      return;
+    }
+    try {
+      reply.complete(toMessage(mqtt5Publish));
+    } catch (Exception e) {
+      reply.completeExceptionally(e);
+    }
+  }
+
+  private Message<?> toMessage(Mqtt5Publish mqtt5Publish) throws IOException {
+    return messageConverterRegistry.toMessage(
+        ReceivedPublishes.getPayload(mqtt5Publish, maxDecompressedSize),
+        new MessageHeaders(ReceivedPublishes.getHeaders(mqtt5Publish)));
+  }
+}
@@ -1,45 +1,92 @@
 package org.springframework.cloud.binder.mqtt.outbound;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.hivemq.client.mqtt.MqttClient;
-import com.hivemq.client.mqtt.MqttClientSslConfig;
 import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.datatypes.MqttTopic;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
 import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperties;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5PublishBuilder;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5PublishBuilderBase;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5PublishResult;
+import io.reactivex.Flowable;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyStore;
-import java.util.Optional;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import javax.net.ssl.TrustManagerFactory;
-import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import java.util.concurrent.locks.LockSupport;
+import org.reactivestreams.Publisher;
+import org.springframework.cloud.binder.mqtt.codec.MqttPayloadCodec;
+import org.springframework.cloud.binder.mqtt.codec.MqttPayloadCodecRegistry;
+import org.springframework.cloud.binder.mqtt.codec.PayloadCompression;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
 import org.springframework.cloud.binder.mqtt.properties.MqttSinkProperties;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttHeaders;
+import org.springframework.cloud.stream.binder.BinderHeaders;
+import org.springframework.cloud.stream.provisioning.ProducerDestination;
+import org.springframework.context.Lifecycle;
 import org.springframework.integration.handler.AbstractMessageHandler;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
 import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.ErrorMessage;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.ConcurrentLruCache;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
 
-public class MqttV5MessageHandler extends AbstractMessageHandler {
+public class MqttV5MessageHandler extends AbstractMessageHandler implements Lifecycle {
 
-  private Mqtt5BlockingClient mqtt5BlockingClient;
-  private MqttBinderConfigurationProperties configurationProperties;
-  private ObjectMapper objectMapper;
+  /** Delay between checks whether the journal can be replayed, in milliseconds. */
+  private static final long JOURNAL_REPLAY_DELAY = 100;
+
+  private volatile Mqtt5BlockingClient mqtt5BlockingClient;
+  private volatile Mqtt5AsyncClient mqtt5AsyncClient;
+  private MqttClientRegistry clientRegistry;
+  private MqttPayloadCodecRegistry payloadCodecRegistry;
   private MqttSinkProperties sinkProperties;
   private String topic;
+  private ProducerDestination producerDestination;
+  private Semaphore inFlightPublishes;
+  private ConcurrentLruCache<String, MqttTopic> topics;
+  private MessageChannel sendFailureChannel;
+  private MessageChannel sendSuccessChannel;
+  private MqttMetrics.Producer metrics = MqttMetrics.Producer.NONE;
+  private volatile OutboundJournal journal;
+  private ScheduledExecutorService journalReplayer;
+  private boolean lazyConnect;
+  private volatile boolean running;
+
+  public MqttV5MessageHandler(
+      MqttClientRegistry clientRegistry, MqttSinkProperties sinkProperties, String topic) {
+    this(clientRegistry, new ObjectMapper(), sinkProperties, topic);
+  }
 
   public MqttV5MessageHandler(
-      MqttBinderConfigurationProperties configurationProperties,
+      MqttClientRegistry clientRegistry,
+      ObjectMapper objectMapper,
       MqttSinkProperties sinkProperties,
       String topic) {
-    this(configurationProperties, new ObjectMapper(), sinkProperties, topic);
+    this(clientRegistry, new MqttPayloadCodecRegistry(objectMapper), sinkProperties, topic);
   }
 
   public MqttV5MessageHandler(
-      MqttBinderConfigurationProperties configurationProperties,
-      ObjectMapper objectMapper,
+      MqttClientRegistry clientRegistry,
+      MqttPayloadCodecRegistry payloadCodecRegistry,
       MqttSinkProperties sinkProperties,
       String topic) {
-    this.configurationProperties = configurationProperties;
-    this.objectMapper = objectMapper;
+    this.clientRegistry = clientRegistry;
+    this.payloadCodecRegistry = payloadCodecRegistry;
     this.sinkProperties = sinkProperties;
     this.topic = topic;
   }
@@ -47,108 +94,419 @@ public class MqttV5MessageHandler extends AbstractMessageHandler {
   @Override
   protected void onInit() {
     super.onInit();
-    String username = sinkProperties.getUsername();
-    String password = sinkProperties.getPassword();
-    if (username == null || password == null) {
-      username = configurationProperties.getUsername();
-      password = configurationProperties.getPassword();
+    inFlightPublishes = new Semaphore(sinkProperties.getMaxInFlight());
+    // validating and parsing a topic name is not free, keep the ones published to most recently
+    topics = new ConcurrentLruCache<>(sinkProperties.getTopicCacheSize(), MqttTopic::of);
+  }
+
+  @Override
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    if (!lazyConnect) {
+      acquireClient();
+    }
+    if (sinkProperties.getJournalDirectory() != null) {
+      startJournal();
     }
+    metrics.inFlight(() -> sinkProperties.getMaxInFlight() - inFlightPublishes.availablePermits());
+    running = true;
+  }
 
-    try {
-      MqttClientSslConfig sslConfig = null;
-      if (configurationProperties.getKeyPath() != null) {
-        TrustManagerFactory trustMgrFact =
-            TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        KeyStore trustStore = KeyStore.getInstance(configurationProperties.getKeyType());
-        trustStore.load(
-            new ClassPathResource(configurationProperties.getKeyPath()).getInputStream(),
-            configurationProperties.getKeyPassword() == null
-                ? null
-                : configurationProperties.getKeyPassword().toCharArray());
-        trustMgrFact.init(trustStore);
-        sslConfig =
-            MqttClientSslConfig.builder()
-                .trustManagerFactory(trustMgrFact)
-                .keyManagerFactory(null)
-                .build();
-      }
+  private synchronized void acquireClient() {
+    if (mqtt5BlockingClient != null) {
+      return;
+    }
+    Mqtt5BlockingClient client =
+        clientRegistry.acquire(
+            sinkProperties.getClientId(),
+            sinkProperties.getUsername(),
+            sinkProperties.getPassword());
+    mqtt5AsyncClient = client.toAsync();
+    mqtt5BlockingClient = client;
+  }
 
-      mqtt5BlockingClient =
-          MqttClient.builder()
-              .sslConfig(sslConfig)
-              .automaticReconnect()
-              .initialDelay(500, TimeUnit.MILLISECONDS)
-              .maxDelay(2, TimeUnit.MINUTES)
-              .applyAutomaticReconnect()
-              .identifier(sinkProperties.getClientId())
-              .serverHost(configurationProperties.getServerHost())
-              .serverPort(configurationProperties.getServerPort())
-              .useMqttVersion5()
-              .addConnectedListener(System.out::println)
-              .addDisconnectedListener(c -> c.getCause().printStackTrace())
-              .simpleAuth()
-              .username(username)
-              .password(password.getBytes(StandardCharsets.UTF_8))
-              .applySimpleAuth()
-              .buildBlocking();
-
-      mqtt5BlockingClient.connect();
-    } catch (Exception e) {
-      throw new RuntimeException(e.getMessage(), e);
+  /** Acquires the client of a lazily connecting producer when it publishes its first message. */
+  private synchronized void acquireClient(Message<?> message) {
+    if (!running) {
+      throw new MessageDeliveryException(message, "Producer of " + topic + " is not running");
     }
+    acquireClient();
   }
 
-  @Override
-  protected void handleMessageInternal(Message<?> message) {
-    Object payload = message.getPayload();
+  private void startJournal() {
+    // one journal per destination, producers of different bindings must not share segments
+    String name = topic.replaceAll("[^A-Za-z0-9._-]", "_");
     try {
-      byte[] body = parsePayload(payload);
-      MessageHeaders headers = message.getHeaders();
-      String topic = this.topic;
-      String topicFromHeader = headers.get("mqtt_topic", String.class);
-      if (topicFromHeader != null) {
-        topic = topicFromHeader;
-      }
-      publish(topic, body, headers);
-    } catch (JsonProcessingException e) {
-      logger.error(e, "Could not parse payload of type " + payload.getClass() + " to json string");
+      journal =
+          new OutboundJournal(
+              Paths.get(sinkProperties.getJournalDirectory()).resolve(name),
+              sinkProperties.getJournalSegmentSize(),
+              sinkProperties.getJournalMaxSegments());
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not open the outbound journal of " + topic, e);
     }
+    journalReplayer =
+        Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory(sinkProperties.getClientId() + "-journal-"));
+    journalReplayer.scheduleWithFixedDelay(
+        this::replayJournal, 0, JOURNAL_REPLAY_DELAY, TimeUnit.MILLISECONDS);
   }
 
-  private void publish(String topic, byte[] body, MessageHeaders messageHeaders) {
-    mqtt5BlockingClient
-        .publishWith()
-        .topic(topic)
-        .qos(MqttQos.AT_LEAST_ONCE)
-        .payload(body)
-        .contentType(getContentType(messageHeaders))
-        .send();
+  @Override
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    metrics.close();
+    if (journal != null) {
+      // the replay must not touch the journal once it is closed and unmapped
+      journalReplayer.shutdownNow();
+      try {
+        while (!journalReplayer.awaitTermination(1, TimeUnit.SECONDS)) {
+          logger.warn("Waiting for the journal replay of " + topic + " to finish");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      journal.close();
+      journal = null;
+    }
+    if (mqtt5BlockingClient != null) {
+      clientRegistry.release(mqtt5BlockingClient);
+      mqtt5BlockingClient = null;
+    }
   }
 
-  private String getContentType(MessageHeaders messageHeaders) {
-    Object contentType = messageHeaders.get("contentType", Object.class);
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
 
-    return Optional.ofNullable(contentType)
-        .map(
-            c -> {
-              if (c instanceof String) {
-                return (String) c;
-              }
-              return c.toString();
-            })
-        .orElse(null);
+  @Override
+  protected void handleMessageInternal(Message<?> message) {
+    if (mqtt5BlockingClient == null) {
+      acquireClient(message);
+    }
+    OutboundPublish publish = toPublish(message);
+    if (publish == null) {
+      return;
+    }
+    String topic = publish.getTopic();
+    // while older publishes wait for their replay, newer ones queue up behind them
+    OutboundJournal journal = this.journal;
+    if (journal != null && (!journal.isEmpty() || !isConnected())) {
+      appendToJournal(journal, message, publish);
+      return;
+    }
+    // QoS 0 is never acknowledged, so waiting for the blocking client would only wait for the
+    // socket write; it always takes the asynchronous path, bounded by the in-flight window
+    if (sinkProperties.isAsync() || publish.getQos() == MqttQos.AT_MOST_ONCE) {
+      publishAsync(message, publish);
+    } else {
+      long sentAt = System.nanoTime();
+      boolean success = false;
+      try {
+        publish(mqtt5BlockingClient.publishWith(), publish);
+        success = true;
+      } finally {
+        metrics.published(topic, System.nanoTime() - sentAt, success);
+      }
+    }
   }
 
-  private byte[] parsePayload(Object payload) throws JsonProcessingException {
+  /**
+   * Encodes, compresses and addresses the message. Returns {@code null} when the payload can't be
+   * encoded, which is logged.
+   */
+  OutboundPublish toPublish(Message<?> message) {
+    Object payload = message.getPayload();
+    MessageHeaders headers = message.getHeaders();
+    MimeType contentType = getContentType(headers);
     byte[] body;
     if (payload instanceof byte[]) {
       body = (byte[]) payload;
     } else if (payload instanceof String) {
       body = ((String) payload).getBytes(StandardCharsets.UTF_8);
     } else {
-      body = parsePayload(objectMapper.writeValueAsString(payload));
+      MqttPayloadCodec codec = payloadCodecRegistry.getCodec(contentType);
+      try {
+        body = codec.encode(payload);
+      } catch (IOException e) {
+        logger.error(
+            e,
+            "Could not encode payload of type "
+                + payload.getClass()
+                + " as "
+                + codec.getContentType());
+        return null;
+      }
+      if (contentType == null) {
+        contentType = codec.getContentType();
+      }
+    }
+
+    PayloadCompression compression = sinkProperties.getCompression();
+    if (compression != null && body.length >= sinkProperties.getCompressionThreshold()) {
+      try {
+        body = compression.compress(body);
+      } catch (IOException e) {
+        throw new MessageDeliveryException(message, "Could not compress payload", e);
+      }
+    } else {
+      compression = null;
+    }
+
+    String topic = this.topic;
+    Integer partition = headers.get(BinderHeaders.PARTITION_HEADER, Integer.class);
+    if (producerDestination != null && partition != null) {
+      topic = producerDestination.getNameForPartition(partition);
+    }
+    String topicFromHeader = headers.get(MqttHeaders.TOPIC, String.class);
+    if (topicFromHeader != null) {
+      topic = topicFromHeader;
+    }
+
+    return new OutboundPublish(
+        topic,
+        getQos(headers),
+        getRetain(headers),
+        getMessageExpiryInterval(headers),
+        contentType != null ? contentType.toString() : null,
+        compression != null ? compression.getEncoding() : null,
+        headers.get(MqttHeaders.RESPONSE_TOPIC, String.class),
+        headers.get(MqttHeaders.CORRELATION_DATA, byte[].class),
+        body);
+  }
+
+  private boolean isConnected() {
+    Mqtt5BlockingClient client = mqtt5BlockingClient;
+
+    return client != null && client.getState().isConnected();
+  }
+
+  private static void appendToJournal(
+      OutboundJournal journal, Message<?> message, OutboundPublish publish) {
+    try {
+      journal.append(publish);
+    } catch (RuntimeException e) {
+      throw new MessageDeliveryException(
+          message, "Could not journal message for topic " + publish.getTopic(), e);
+    }
+  }
+
+  /**
+   * Publishes the journaled messages in order, at most {@code journalReplayRate} per second, until
+   * the journal is empty or the client loses its connection again. A publish failing while the
+   * client stays connected, e.g. one the broker refuses, is dropped so it can't block the journal.
+   */
+  private void replayJournal() {
+    long interval = TimeUnit.SECONDS.toNanos(1) / sinkProperties.getJournalReplayRate();
+    OutboundJournal journal = this.journal;
+    try {
+      OutboundPublish publish;
+      while (running && isConnected() && (publish = journal.peek()) != null) {
+        long sentAt = System.nanoTime();
+        try {
+          publish(mqtt5BlockingClient.publishWith(), publish);
+        } catch (RuntimeException e) {
+          if (!isConnected()) {
+            logger.debug("Connection lost while replaying the journal of " + topic);
+            return;
+          }
+          logger.error(e, "Dropping journaled message for topic " + publish.getTopic());
+        }
+        journal.commit();
+        LockSupport.parkNanos(interval - (System.nanoTime() - sentAt));
+      }
+    } catch (RuntimeException e) {
+      if (running) {
+        logger.error(e, "Could not replay the journal of " + topic);
+      }
+    }
+  }
+
+  /**
+   * Publishes without waiting for the broker acknowledgement. At most {@code maxInFlight} publishes
+   * are outstanding at a time; once the window is full the calling thread blocks until an
+   * acknowledgement, or for QoS 0 the socket write, frees a slot.
+   */
+  private void publishAsync(Message<?> message, OutboundPublish publish) {
+    try {
+      inFlightPublishes.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MessageDeliveryException(
+          message, "Interrupted while waiting for a free in-flight publish slot", e);
+    }
+
+    String topic = publish.getTopic();
+    long sentAt = System.nanoTime();
+    try {
+      publish(mqtt5AsyncClient.publishWith(), publish)
+          .whenComplete(
+              (publishResult, throwable) -> {
+                inFlightPublishes.release();
+                Throwable cause =
+                    throwable != null ? throwable : publishResult.getError().orElse(null);
+                metrics.published(topic, System.nanoTime() - sentAt, cause == null);
+                if (cause != null) {
+                  onSendFailure(message, topic, cause);
+                } else if (sendSuccessChannel != null) {
+                  sendSuccessChannel.send(message);
+                }
+              });
+    } catch (RuntimeException e) {
+      inFlightPublishes.release();
+      throw e;
+    }
+  }
+
+  private void onSendFailure(Message<?> message, String topic, Throwable cause) {
+    MessageDeliveryException exception =
+        new MessageDeliveryException(message, "Failed to publish message to topic " + topic, cause);
+    if (sendFailureChannel != null) {
+      sendFailureChannel.send(new ErrorMessage(exception, message));
+    } else {
+      logger.error(exception, exception.getMessage());
+    }
+  }
+
+  private <P> P publish(Mqtt5PublishBuilder.Send<P> publishBuilder, OutboundPublish publish) {
+    return complete(publishBuilder, publish).send();
+  }
+
+  private <C extends Mqtt5PublishBuilderBase.Complete<C>> C complete(
+      Mqtt5PublishBuilderBase<C> publishBuilder, OutboundPublish publish) {
+    C complete =
+        publishBuilder
+            .topic(topics.get(publish.getTopic()))
+            .qos(publish.getQos())
+            .retain(publish.isRetain())
+            .payload(publish.getPayload())
+            .contentType(publish.getContentType());
+    if (publish.getMessageExpiryInterval() != null) {
+      complete = complete.messageExpiryInterval(publish.getMessageExpiryInterval());
+    }
+    if (publish.getResponseTopic() != null) {
+      complete = complete.responseTopic(publish.getResponseTopic());
+    }
+    if (publish.getCorrelationData() != null) {
+      complete = complete.correlationData(publish.getCorrelationData());
+    }
+    if (publish.getContentEncoding() != null) {
+      complete =
+          complete.userProperties(
+              Mqtt5UserProperties.builder()
+                  .add(PayloadCompression.USER_PROPERTY, publish.getContentEncoding())
+                  .build());
+    }
+
+    return complete;
+  }
+
+  /**
+   * Publishes the messages of the flux and emits the result of each publish once the broker
+   * acknowledged it, or for QoS 0 once it was written. Subscribing acquires the client and
+   * completion or cancellation releases it, the handler itself does not need to be started.
+   *
+   * <p>Publishes are pipelined: messages are requested from the flux as results are requested and
+   * as the receive maximum of the broker allows, without waiting for the acknowledgement of earlier
+   * ones. Results of the same QoS are emitted in order. A failed publish is a result with an error,
+   * it does not terminate the flux. Messages bypass the journal and the in-flight window.
+   */
+  public Flux<Mqtt5PublishResult> send(Publisher<? extends Message<?>> messages) {
+    // connecting and disconnecting block, they must not run on the thread of the subscriber
+    return Flux.usingWhen(
+        Mono.fromCallable(
+                () ->
+                    clientRegistry.acquire(
+                        sinkProperties.getClientId(),
+                        sinkProperties.getUsername(),
+                        sinkProperties.getPassword()))
+            .subscribeOn(Schedulers.boundedElastic()),
+        client ->
+            client.toRx().publish(Flowable.fromPublisher(Flux.from(messages).handle(this::emit))),
+        client ->
+            Mono.fromRunnable(() -> clientRegistry.release(client))
+                .subscribeOn(Schedulers.boundedElastic()));
+  }
+
+  private void emit(Message<?> message, SynchronousSink<Mqtt5Publish> sink) {
+    OutboundPublish publish = toPublish(message);
+    if (publish != null) {
+      sink.next(complete(Mqtt5Publish.builder(), publish).build());
+    }
+  }
+
+  /**
+   * Destination of a partitioned producer. When set, messages carrying a partition header are
+   * published to the topic of that partition.
+   */
+  public void setProducerDestination(ProducerDestination producerDestination) {
+    this.producerDestination = producerDestination;
+  }
+
+  /**
+   * Acquire the client when the first message is published instead of when starting, so a producer
+   * that never publishes never connects.
+   */
+  public void setLazyConnect(boolean lazyConnect) {
+    this.lazyConnect = lazyConnect;
+  }
+
+  /** Records publish latencies and the in-flight window, set before initialization. */
+  public void setMetrics(MqttMetrics.Producer metrics) {
+    this.metrics = metrics;
+  }
+
+  /** Channel receiving an {@link ErrorMessage} for every asynchronous publish that failed. */
+  public void setSendFailureChannel(MessageChannel sendFailureChannel) {
+    this.sendFailureChannel = sendFailureChannel;
+  }
+
+  /** Channel receiving every message whose asynchronous publish has been acknowledged. */
+  public void setSendSuccessChannel(MessageChannel sendSuccessChannel) {
+    this.sendSuccessChannel = sendSuccessChannel;
+  }
+
+  private MqttQos getQos(MessageHeaders messageHeaders) {
+    Object qosHeader = messageHeaders.get(MqttHeaders.QOS);
+    int code = qosHeader != null ? Integer.parseInt(qosHeader.toString()) : sinkProperties.getQos();
+    MqttQos qos = MqttQos.fromCode(code);
+    if (qos == null) {
+      throw new IllegalArgumentException("Invalid QoS " + code);
+    }
+
+    return qos;
+  }
+
+  private boolean getRetain(MessageHeaders messageHeaders) {
+    Object retained = messageHeaders.get(MqttHeaders.RETAINED);
+
+    return retained != null ? Boolean.parseBoolean(retained.toString()) : sinkProperties.isRetain();
+  }
+
+  private Long getMessageExpiryInterval(MessageHeaders messageHeaders) {
+    Object messageExpiryInterval = messageHeaders.get(MqttHeaders.MESSAGE_EXPIRY_INTERVAL);
+
+    return messageExpiryInterval != null
+        ? Long.valueOf(messageExpiryInterval.toString())
+        : sinkProperties.getMessageExpiryInterval();
+  }
+
+  /** Content type of the message, or else the content type configured for the binding. */
+  private MimeType getContentType(MessageHeaders messageHeaders) {
+    Object contentType = messageHeaders.get(MessageHeaders.CONTENT_TYPE);
+    if (contentType == null) {
+      contentType = sinkProperties.getContentType();
+    }
+    if (contentType == null || contentType instanceof MimeType) {
+      return (MimeType) contentType;
     }
 
-    return body;
+    return MimeTypeUtils.parseMimeType(contentType.toString());
   }
 }
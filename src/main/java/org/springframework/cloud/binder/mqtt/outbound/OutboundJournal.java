@@ -0,0 +1,364 @@
+package org.springframework.cloud.binder.mqtt.outbound;
+
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only journal of publishes, kept in memory-mapped segment files. Appends only copy into the
+ * page cache, so they run at memory speed and survive a crash of the process, though not of the
+ * machine. Records are read back in order; a record is removed by {@link #commit()} once it has
+ * been published, and a segment file is deleted as soon as all its records are committed. The read
+ * position is checkpointed, so a restarted producer continues where it left off.
+ *
+ * <p>A record is an {@code int} body length, the CRC32 of the body and the body. Segment files
+ * start zeroed, so a zero length marks the end of the written part of a segment. A record whose
+ * checksum does not match is skipped and logged, except at the end of the segment written last,
+ * where it is the remainder of an append interrupted by a crash and is overwritten.
+ */
+@Slf4j
+class OutboundJournal implements Closeable {
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+  private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+  private final Path directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+  private final MappedByteBuffer checkpoint;
+  private long writeSegment;
+  private int writePosition;
+  private long readSegment;
+  private int readPosition;
+  private int peekedBytes;
+  private boolean closed;
+
+  OutboundJournal(Path directory, int segmentSize, int maxSegments) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    Files.createDirectories(directory);
+    checkpoint = map(directory.resolve("checkpoint"), 2 * Long.BYTES);
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          long sequence =
+              Long.parseLong(
+                  name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(sequence, map(file, (int) Files.size(file)));
+        }
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.put(0L, map(segmentFile(0), segmentSize));
+    }
+
+    writeSegment = segments.lastKey();
+    MappedByteBuffer segment = segments.get(writeSegment);
+    writePosition = endOf(segment);
+    // an append interrupted by a crash leaves bytes behind, which must not pass for records later
+    for (int position = writePosition; position < segment.capacity(); position++) {
+      if (segment.get(position) != 0) {
+        segment.put(position, (byte) 0);
+      }
+    }
+    readSegment = checkpoint.getLong(0);
+    readPosition = (int) checkpoint.getLong(Long.BYTES);
+    if (!segments.containsKey(readSegment)) {
+      readSegment = segments.firstKey();
+      readPosition = 0;
+    }
+  }
+
+  /**
+   * Appends a publish.
+   *
+   * @throws IllegalStateException if the journal holds {@code maxSegments} full segments
+   * @throws IllegalArgumentException if the publish does not fit into an empty segment
+   */
+  synchronized void append(OutboundPublish publish) {
+    ensureOpen();
+    byte[] body = encode(publish);
+    int recordBytes = RECORD_HEADER_BYTES + body.length;
+    if (recordBytes > segmentSize) {
+      throw new IllegalArgumentException(
+          "Publish of " + body.length + " bytes exceeds the journal segment size");
+    }
+    MappedByteBuffer segment = segments.get(writeSegment);
+    if (writePosition + recordBytes > segment.capacity()) {
+      if (segments.size() >= maxSegments) {
+        throw new IllegalStateException("Journal " + directory + " is full");
+      }
+      segment = map(segmentFile(++writeSegment), segmentSize);
+      segments.put(writeSegment, segment);
+      writePosition = 0;
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer record = segment.duplicate();
+    record.position(writePosition + RECORD_HEADER_BYTES);
+    record.put(body);
+    segment.putInt(writePosition + Integer.BYTES, (int) crc.getValue());
+    // the length goes last, a reader never sees a record before it is complete
+    segment.putInt(writePosition, body.length);
+    writePosition += recordBytes;
+  }
+
+  /** The oldest publish not committed yet, or {@code null} if there is none. */
+  synchronized OutboundPublish peek() {
+    ensureOpen();
+    while (true) {
+      if (readSegment == writeSegment && readPosition >= writePosition) {
+        return null;
+      }
+      MappedByteBuffer segment = segments.get(readSegment);
+      int length = recordLength(segment, readPosition);
+      if (length < 0) {
+        log.warn(
+            "Skipping corrupt record at {} of segment {} of journal {}",
+            readPosition,
+            readSegment,
+            directory);
+        readPosition += RECORD_HEADER_BYTES - length;
+        saveCheckpoint();
+        continue;
+      }
+      if (length > 0) {
+        byte[] body = new byte[length];
+        ByteBuffer record = segment.duplicate();
+        record.position(readPosition + RECORD_HEADER_BYTES);
+        record.get(body);
+        peekedBytes = RECORD_HEADER_BYTES + length;
+
+        return decode(body);
+      }
+      if (readSegment == writeSegment) {
+        return null;
+      }
+      if (readPosition + Integer.BYTES <= segment.capacity() && segment.getInt(readPosition) != 0) {
+        log.warn(
+            "Dropping the records from {} of segment {} of journal {}, their length is corrupt",
+            readPosition,
+            readSegment,
+            directory);
+      }
+      // every record of the segment has been committed
+      deleteSegment(readSegment);
+      readSegment = segments.firstKey();
+      readPosition = 0;
+      saveCheckpoint();
+    }
+  }
+
+  /** Removes the publish last returned by {@link #peek()}. */
+  synchronized void commit() {
+    ensureOpen();
+    if (peekedBytes == 0) {
+      throw new IllegalStateException("No publish to commit");
+    }
+    readPosition += peekedBytes;
+    peekedBytes = 0;
+    saveCheckpoint();
+  }
+
+  synchronized boolean isEmpty() {
+    ensureOpen();
+    return readSegment == writeSegment && readPosition >= writePosition;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    segments.values().forEach(MappedByteBuffer::force);
+    checkpoint.force();
+    segments.values().forEach(OutboundJournal::unmap);
+    unmap(checkpoint);
+    segments.clear();
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("Journal " + directory + " is closed");
+    }
+  }
+
+  private void saveCheckpoint() {
+    checkpoint.putLong(0, readSegment);
+    checkpoint.putLong(Long.BYTES, readPosition);
+  }
+
+  private void deleteSegment(long sequence) {
+    unmap(segments.remove(sequence));
+    try {
+      Files.deleteIfExists(segmentFile(sequence));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Position after the last complete record of a segment, skipping corrupt ones. */
+  private static int endOf(MappedByteBuffer segment) {
+    int end = 0;
+    int position = 0;
+    int length;
+    while ((length = recordLength(segment, position)) != 0) {
+      position += RECORD_HEADER_BYTES + Math.abs(length);
+      if (length > 0) {
+        end = position;
+      }
+    }
+
+    return end;
+  }
+
+  /**
+   * Length of the record at the position, its negated length if its checksum does not match, or
+   * {@code 0} if there is no record.
+   */
+  private static int recordLength(MappedByteBuffer segment, int position) {
+    if (position + RECORD_HEADER_BYTES > segment.capacity()) {
+      return 0;
+    }
+    int length = segment.getInt(position);
+    if (length <= 0 || position + RECORD_HEADER_BYTES + length > segment.capacity()) {
+      return 0;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer body = segment.duplicate();
+    body.position(position + RECORD_HEADER_BYTES).limit(position + RECORD_HEADER_BYTES + length);
+    crc.update(body);
+
+    return (int) crc.getValue() == segment.getInt(position + Integer.BYTES) ? length : -length;
+  }
+
+  private Path segmentFile(long sequence) {
+    return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+  }
+
+  private static MappedByteBuffer map(Path file, int size) {
+    try (FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Releases the mapping right away. Otherwise it is only released once the buffer is garbage
+   * collected, which keeps the space of deleted segment files in use meanwhile.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    if (INVOKE_CLEANER == null) {
+      return;
+    }
+    try {
+      INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+    } catch (Throwable e) {
+      log.debug("Could not unmap journal segment", e);
+    }
+  }
+
+  private static MethodHandle invokeCleaner() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+
+      return MethodHandles.lookup()
+          .findVirtual(
+              unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(theUnsafe.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.debug("Journal segments are unmapped when they are garbage collected", e);
+      return null;
+    }
+  }
+
+  private static byte[] encode(OutboundPublish publish) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(publish.getPayload().length + 64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(publish.getTopic());
+      out.writeByte(publish.getQos().getCode());
+      out.writeBoolean(publish.isRetain());
+      out.writeLong(
+          publish.getMessageExpiryInterval() != null ? publish.getMessageExpiryInterval() : -1);
+      out.writeUTF(publish.getContentType() != null ? publish.getContentType() : "");
+      out.writeUTF(publish.getContentEncoding() != null ? publish.getContentEncoding() : "");
+      out.writeUTF(publish.getResponseTopic() != null ? publish.getResponseTopic() : "");
+      if (publish.getCorrelationData() != null) {
+        out.writeInt(publish.getCorrelationData().length);
+        out.write(publish.getCorrelationData());
+      } else {
+        out.writeInt(-1);
+      }
+      out.writeInt(publish.getPayload().length);
+      out.write(publish.getPayload());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  private static OutboundPublish decode(byte[] body) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+      String topic = in.readUTF();
+      MqttQos qos = MqttQos.fromCode(in.readByte());
+      boolean retain = in.readBoolean();
+      long messageExpiryInterval = in.readLong();
+      String contentType = in.readUTF();
+      String contentEncoding = in.readUTF();
+      String responseTopic = in.readUTF();
+      int correlationDataLength = in.readInt();
+      byte[] correlationData = null;
+      if (correlationDataLength >= 0) {
+        correlationData = new byte[correlationDataLength];
+        in.readFully(correlationData);
+      }
+      byte[] payload = new byte[in.readInt()];
+      in.readFully(payload);
+
+      return new OutboundPublish(
+          topic,
+          qos,
+          retain,
+          messageExpiryInterval >= 0 ? messageExpiryInterval : null,
+          contentType.isEmpty() ? null : contentType,
+          contentEncoding.isEmpty() ? null : contentEncoding,
+          responseTopic.isEmpty() ? null : responseTopic,
+          correlationData,
+          payload);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package org.springframework.cloud.binder.mqtt.outbound;
+
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import lombok.Value;
+
+/** A fully resolved publish: encoded, compressed and addressed, ready to be sent or journaled. */
+@Value
+class OutboundPublish {
+  String topic;
+  MqttQos qos;
+  boolean retain;
+  Long messageExpiryInterval;
+  String contentType;
+  /** Value of the {@code content-encoding} user property, {@code null} if not compressed. */
+  String contentEncoding;
+
+  /** Topic the receiver is asked to reply to, {@code null} if no reply is expected. */
+  String responseTopic;
+
+  /** Data the receiver echoes in its reply, {@code null} if not set. */
+  byte[] correlationData;
+
+  byte[] payload;
+}
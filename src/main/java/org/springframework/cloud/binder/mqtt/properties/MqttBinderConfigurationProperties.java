@@ -1,8 +1,11 @@
 package org.springframework.cloud.binder.mqtt.properties;
 
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.binder.mqtt.support.ConnectMode;
 import org.springframework.validation.annotation.Validated;
 
 @Slf4j
@@ -15,8 +18,16 @@ public class MqttBinderConfigurationProperties {
 
   private String password = "guest";
 
+  /**
+   * Seconds the application startup waits for clients connecting asynchronously, see {@link
+   * #connectMode}. Startup fails if a client has not connected by then, 0 does not wait at all.
+   */
+  @Min(0)
   private int connectionTimeout = 30;
 
+  /** When the clients of the bindings connect to the broker. */
+  private ConnectMode connectMode = ConnectMode.BLOCKING;
+
   private String serverHost = "localhost";
 
   private Integer serverPort = 1883;
@@ -26,4 +37,56 @@ public class MqttBinderConfigurationProperties {
   private String keyType;
 
   private String keyPassword;
+
+  /**
+   * Maximum number of topic aliases the clients use when publishing. The client replaces the topic
+   * names of frequently published topics with aliases, up to this maximum or the broker's topic
+   * alias maximum, whichever is lower. 0 disables topic aliases.
+   */
+  @Min(0)
+  @Max(65535)
+  private int topicAliasMaximum = 16;
+
+  /**
+   * Maximum number of unacknowledged QoS 1 and 2 messages the broker may send to a client
+   * concurrently. Received messages are acknowledged once a consumer thread picks them up, so this
+   * bounds the number of messages waiting for a consumer thread.
+   */
+  @Min(1)
+  @Max(65535)
+  private int receiveMaximum = 65535;
+
+  /** Maximum size in bytes of packets the broker may send to a client. */
+  @Min(1)
+  private int maximumPacketSize = 268_435_460;
+
+  /** Maximum number of unacknowledged QoS 1 and 2 messages a client sends concurrently. */
+  @Min(1)
+  @Max(65535)
+  private int sendMaximum = 65535;
+
+  /** Maximum size in bytes of packets a client sends. */
+  @Min(1)
+  private int sendMaximumPacketSize = 268_435_460;
+
+  /**
+   * Maximum number of distinct topics metrics are tagged with. Messages of further topics are
+   * tagged {@code other}, so wildcard subscriptions cannot flood the meter registry.
+   */
+  @Min(0)
+  private int metricsMaxTopicTags = 100;
+
+  /**
+   * Whether publish times are recorded with a percentile histogram, which adds a few dozen time
+   * series per destination, topic and outcome.
+   */
+  private boolean metricsPercentileHistogram;
+
+  /**
+   * Whether consumers sharing a client receive their messages through one routing callback. Each
+   * message is matched once against the topic filters of all consumers of the client and handed to
+   * every matching one, and filters covered by the filter of another consumer are not subscribed at
+   * the broker, so overlapping filters receive a single copy of each message.
+   */
+  private boolean multiplexSubscriptions;
 }
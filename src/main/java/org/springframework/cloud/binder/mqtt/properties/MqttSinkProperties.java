@@ -1,8 +1,11 @@
 package org.springframework.cloud.binder.mqtt.properties;
 
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.Size;
 import lombok.Data;
+import org.springframework.cloud.binder.mqtt.codec.PayloadCompression;
 import org.springframework.validation.annotation.Validated;
 
 @Data
@@ -15,4 +18,69 @@ public class MqttSinkProperties implements ClientIdAware, CredentialsAware {
 
   private String username;
   private String password;
+
+  /**
+   * QoS of published messages, overridable per message with the {@code mqtt_qos} header. QoS 0
+   * messages are published fire-and-forget.
+   */
+  @Min(0)
+  @Max(2)
+  private int qos = 1;
+
+  /** Publish retained messages, overridable per message with the {@code mqtt_retained} header. */
+  private boolean retain = false;
+
+  /**
+   * Seconds the broker keeps a published message for subscribers that haven't received it yet,
+   * overridable per message with the {@code mqtt_messageExpiryInterval} header. No expiry when not
+   * set.
+   */
+  @Min(0)
+  private Long messageExpiryInterval;
+
+  /** Publish without waiting for each acknowledgement before sending the next message. */
+  private boolean async = false;
+
+  /** Maximum number of unacknowledged publishes when {@link #async} is enabled. */
+  @Min(1)
+  private int maxInFlight = 100;
+
+  /**
+   * Content type used to encode payloads that are neither {@code byte[]} nor {@code String} when
+   * the message has no {@code contentType} header, e.g. {@code application/cbor}. JSON is used when
+   * not set.
+   */
+  private String contentType;
+
+  /** Compression of published payloads, none when not set. */
+  private PayloadCompression compression;
+
+  /** Payloads smaller than this many bytes are published uncompressed. */
+  @Min(0)
+  private int compressionThreshold = 1024;
+
+  /**
+   * Number of parsed topics kept for topics set per message through the {@code mqtt_topic} header.
+   */
+  @Min(1)
+  private int topicCacheSize = 1024;
+
+  /**
+   * Directory of the outbound journal, disabled when not set. While the client is disconnected,
+   * published messages are appended to memory-mapped segment files in a subdirectory per
+   * destination instead of blocking or failing, and replayed in order once it has reconnected.
+   */
+  private String journalDirectory;
+
+  /** Size of a journal segment file in bytes, also the limit of a single journaled message. */
+  @Min(1024)
+  private int journalSegmentSize = 64 * 1024 * 1024;
+
+  /** Maximum number of journal segments; messages are rejected once all of them are full. */
+  @Min(1)
+  private int journalMaxSegments = 16;
+
+  /** Maximum number of journaled messages replayed per second after reconnecting. */
+  @Min(1)
+  private int journalReplayRate = 1000;
 }
@@ -1,8 +1,11 @@
 package org.springframework.cloud.binder.mqtt.properties;
 
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.Size;
 import lombok.Data;
+import org.springframework.cloud.binder.mqtt.inbound.PayloadMode;
 import org.springframework.validation.annotation.Validated;
 
 @Data
@@ -12,4 +15,98 @@ public class MqttSourceProperties {
   @NotBlank
   @Size(min = 1, max = 23)
   private String clientId = "stream.client.id.source";
+
+  /** Maximum QoS the broker delivers messages of the subscribed topics with. */
+  @Min(0)
+  @Max(2)
+  private int qos = 1;
+
+  /**
+   * Acknowledge received messages only once they have been handled, see {@code
+   * MqttV5MessageDrivenChannelAdapter#setManualAcknowledgement}.
+   */
+  private boolean manualAcknowledgement = false;
+
+  /**
+   * Maximum number of unacknowledged QoS 1 and 2 messages the broker may send to the consumer's
+   * client. Falls back to the binder setting when not set.
+   */
+  @Min(1)
+  @Max(65535)
+  private Integer receiveMaximum;
+
+  /**
+   * Maximum size in bytes of packets the broker may send to the consumer's client. Falls back to
+   * the binder setting when not set.
+   */
+  @Min(1)
+  private Integer maximumPacketSize;
+
+  /**
+   * Discard the broker session of the consumer's client when connecting. Disable it, together with
+   * a {@link #sessionExpiryInterval}, to resume the session after a restart: the broker keeps the
+   * subscriptions and queues QoS 1 and 2 messages while the consumer is gone, and the consumer
+   * doesn't subscribe again.
+   */
+  private boolean cleanStart = true;
+
+  /** Seconds the broker keeps the session of the consumer's client after disconnecting. */
+  @Min(0)
+  private long sessionExpiryInterval = 0;
+
+  /**
+   * Maximum number of QoS 0 messages waiting for a consumer thread. Further QoS 0 messages are
+   * dropped until the consumer catches up. QoS 1 and 2 messages are bounded by {@code
+   * receiveMaximum} instead.
+   */
+  @Min(1)
+  private int qos0QueueCapacity = 10_000;
+
+  /**
+   * Maximum size in bytes a compressed payload may inflate to, larger payloads fail to convert.
+   * Defaults to the maximum packet size of the consumer's client.
+   */
+  @Min(1)
+  private Integer maxDecompressedSize;
+
+  /**
+   * Topic messages are published to once their last delivery attempt ({@code maxAttempts} of the
+   * binding) failed. Failed messages are only logged when not set.
+   */
+  private String deadLetterTopic;
+
+  /**
+   * Maximum time in milliseconds stopping the consumer waits for the messages received so far to be
+   * handled, before its client is released.
+   */
+  @Min(0)
+  private long stopTimeout = 10_000;
+
+  /**
+   * MQTT 5 user property whose value decides which consumer thread processes a message when {@code
+   * concurrency} is greater than 1. Messages are keyed by their topic when not set.
+   */
+  private String dispatchKeyHeader;
+
+  /** Maximum number of messages in a batch when {@code batchMode} is enabled. */
+  @Min(1)
+  private int batchSize = 100;
+
+  /**
+   * Maximum time in milliseconds a received message waits for its batch to fill up when {@code
+   * batchMode} is enabled.
+   */
+  @Min(1)
+  private long batchTimeout = 1000;
+
+  /** Maximum sum of the payload sizes of a batch in bytes when {@code batchMode} is enabled. */
+  @Min(1)
+  private long batchMaxBytes = 1024 * 1024;
+
+  /**
+   * Type of the consumed payloads. {@code BYTE_BUFFER} hands out the read-only buffer received by
+   * the client and {@code CHAR_SEQUENCE} a UTF-8 view decoded from it, so large payloads are not
+   * copied into a {@code byte[]} first.
+   */
+  private PayloadMode payloadMode = PayloadMode.CONVERTED;
 }
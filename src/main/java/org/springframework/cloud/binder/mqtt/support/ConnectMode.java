@@ -0,0 +1,19 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+/** When the clients of the bindings connect to the broker. */
+public enum ConnectMode {
+
+  /** Starting a binding connects its client, one binding after the other. */
+  BLOCKING,
+
+  /**
+   * Starting a binding starts connecting its client without waiting, so the clients of all bindings
+   * connect concurrently. Subscriptions and publishes wait in the client until it has connected.
+   */
+  ASYNC,
+
+  /**
+   * Like {@link #ASYNC}, except that producers only connect when they publish their first message.
+   */
+  LAZY
+}
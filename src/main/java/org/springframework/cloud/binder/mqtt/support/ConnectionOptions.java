@@ -0,0 +1,30 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import lombok.Value;
+
+/**
+ * Connection settings a binding requests. Restrictions that are not set fall back to the binder
+ * configuration, a connection without session settings starts a clean session that ends with it.
+ */
+@Value
+public class ConnectionOptions {
+
+  public static final ConnectionOptions NONE = new ConnectionOptions(null, null, null, null);
+
+  /** Maximum number of unacknowledged QoS 1 and 2 messages the broker may send concurrently. */
+  Integer receiveMaximum;
+
+  /** Maximum size in bytes of packets the broker may send. */
+  Integer maximumPacketSize;
+
+  /** Whether the broker discards an existing session when the client connects. */
+  Boolean cleanStart;
+
+  /** Seconds the broker keeps the session after the connection has closed. */
+  Long sessionExpiryInterval;
+
+  /** Whether the broker session is resumed by the following connections of the client. */
+  public boolean isPersistentSession() {
+    return Boolean.FALSE.equals(cleanStart);
+  }
+}
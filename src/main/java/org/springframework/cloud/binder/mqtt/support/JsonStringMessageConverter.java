@@ -1,5 +1,6 @@
 package org.springframework.cloud.binder.mqtt.support;
 
+import java.nio.charset.StandardCharsets;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.converter.AbstractMessageConverter;
 import org.springframework.util.MimeTypeUtils;
@@ -18,6 +19,6 @@ public class JsonStringMessageConverter extends AbstractMessageConverter {
   @Override
   protected Object convertToInternal(
       Object payload, MessageHeaders headers, Object conversionHint) {
-    return new String((byte[]) payload);
+    return new String((byte[]) payload, StandardCharsets.UTF_8);
   }
 }
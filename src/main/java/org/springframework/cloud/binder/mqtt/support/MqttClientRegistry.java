@@ -0,0 +1,482 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import com.hivemq.client.mqtt.MqttClient;
+import com.hivemq.client.mqtt.MqttClientSslConfig;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.lifecycle.Mqtt5ClientConnectedContext;
+import com.hivemq.client.mqtt.mqtt5.message.connect.Mqtt5Connect;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import javax.net.ssl.TrustManagerFactory;
+import lombok.ToString;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * Binder-wide registry of MQTT connections. Bindings that target the same broker with the same
+ * credentials and client id share a single client; the client is disconnected once the last binding
+ * using it has released it.
+ */
+@Slf4j
+public class MqttClientRegistry implements DisposableBean {
+
+  private final MqttBinderConfigurationProperties configurationProperties;
+  private final Map<ConnectionKey, SharedClient> clients = new HashMap<>();
+  private final Map<Mqtt5BlockingClient, ConnectionKey> keys = new IdentityHashMap<>();
+  private MqttMetrics metrics = MqttMetrics.NONE;
+
+  public MqttClientRegistry(MqttBinderConfigurationProperties configurationProperties) {
+    this.configurationProperties = configurationProperties;
+  }
+
+  /** Records the connection state of the clients created from now on. */
+  public void setMetrics(MqttMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the client for the given client id, creating and connecting it on first use. The client
+   * is connected unless {@code connectMode} is asynchronous, see {@link #awaitConnections}. Falls
+   * back to the binder credentials when {@code username} or {@code password} is missing. Every call
+   * must be balanced by a call to {@link #release(Mqtt5BlockingClient)}.
+   */
+  public Mqtt5BlockingClient acquire(String clientId, String username, String password) {
+    return acquire(clientId, username, password, ConnectionOptions.NONE);
+  }
+
+  /**
+   * Same as {@link #acquire(String, String, String)}, connecting with the given options when the
+   * client is created. A client that is already connected keeps its options.
+   *
+   * @throws IllegalStateException if a persistent session is requested of a client already
+   *     connected without one
+   */
+  public Mqtt5BlockingClient acquire(
+      String clientId, String username, String password, ConnectionOptions options) {
+    if (username == null || password == null) {
+      username = configurationProperties.getUsername();
+      password = configurationProperties.getPassword();
+    }
+    ConnectionKey key =
+        new ConnectionKey(
+            configurationProperties.getServerHost(),
+            configurationProperties.getServerPort(),
+            username,
+            password,
+            clientId);
+
+    SharedClient sharedClient;
+    boolean created = false;
+    synchronized (this) {
+      sharedClient = clients.get(key);
+      if (sharedClient == null) {
+        sharedClient = createSharedClient(key, options);
+        clients.put(key, sharedClient);
+        keys.put(sharedClient.client, key);
+        created = true;
+      } else if (options.isPersistentSession() && !sharedClient.options.isPersistentSession()) {
+        // its session ends with the connection, the subscriptions would not be kept
+        throw new IllegalStateException(
+            "Mqtt client "
+                + clientId
+                + " is already connected without a persistent session, a binding with cleanStart"
+                + " disabled needs a client id of its own");
+      } else if (conflicts(options, sharedClient.options)) {
+        log.warn(
+            "Mqtt client {} is already connected with {}, ignoring {}",
+            clientId,
+            sharedClient.options,
+            options);
+      }
+      sharedClient.references++;
+    }
+
+    // connecting may block, the lock is released so that other clients connect meanwhile
+    if (created) {
+      connect(key, sharedClient);
+    } else if (configurationProperties.getConnectMode() == ConnectMode.BLOCKING) {
+      awaitConnection(sharedClient);
+    }
+
+    return sharedClient.client;
+  }
+
+  /**
+   * Whether a setting the binding requests differs from the one the client connected with. Settings
+   * the binding leaves unset, or that equal the binder defaults the client fell back to, don't.
+   */
+  private boolean conflicts(ConnectionOptions requested, ConnectionOptions connected) {
+    ConnectionOptions effective = resolve(connected);
+
+    return conflicts(requested.getReceiveMaximum(), effective.getReceiveMaximum())
+        || conflicts(requested.getMaximumPacketSize(), effective.getMaximumPacketSize())
+        || conflicts(requested.getCleanStart(), effective.getCleanStart())
+        || conflicts(requested.getSessionExpiryInterval(), effective.getSessionExpiryInterval());
+  }
+
+  private static boolean conflicts(Object requested, Object effective) {
+    return requested != null && !requested.equals(effective);
+  }
+
+  /** The options a client connects with, the binder settings filling in those not set. */
+  private ConnectionOptions resolve(ConnectionOptions options) {
+    return new ConnectionOptions(
+        Optional.ofNullable(options.getReceiveMaximum())
+            .orElse(configurationProperties.getReceiveMaximum()),
+        Optional.ofNullable(options.getMaximumPacketSize())
+            .orElse(configurationProperties.getMaximumPacketSize()),
+        Optional.ofNullable(options.getCleanStart()).orElse(true),
+        Optional.ofNullable(options.getSessionExpiryInterval()).orElse(0L));
+  }
+
+  private SharedClient createSharedClient(ConnectionKey key, ConnectionOptions options) {
+    String clientId = key.getClientId();
+    MqttMetrics.Client clientMetrics = metrics.client(clientId);
+    SubscriptionMultiplexer multiplexer =
+        options.isPersistentSession() || configurationProperties.isMultiplexSubscriptions()
+            ? new SubscriptionMultiplexer(options.isPersistentSession())
+            : null;
+    Mqtt5BlockingClient client;
+    try {
+      client = createClient(key, clientMetrics, options, multiplexer);
+      if (multiplexer != null) {
+        multiplexer.attach(client.toAsync());
+      }
+    } catch (RuntimeException e) {
+      clientMetrics.close();
+      throw e;
+    }
+    CompletableFuture<Boolean> connection = new CompletableFuture<>();
+    connection.whenComplete(
+        (sessionPresent, throwable) -> {
+          if (throwable != null) {
+            log.error("Mqtt client {} could not connect", clientId, throwable);
+            return;
+          }
+          if (sessionPresent) {
+            log.info("Mqtt client {} resumed its session", clientId);
+          }
+        });
+
+    return new SharedClient(client, options, clientMetrics, multiplexer, connection);
+  }
+
+  /**
+   * Connects a client created by {@link #acquire}, completing its connection. A client that fails
+   * to connect is removed again, bindings waiting for it fail as well.
+   */
+  private void connect(ConnectionKey key, SharedClient sharedClient) {
+    CompletableFuture<Boolean> connection;
+    try {
+      connection = connect(sharedClient.client, sharedClient.options);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        if (clients.remove(key, sharedClient)) {
+          keys.remove(sharedClient.client);
+        }
+      }
+      sharedClient.metrics.close();
+      sharedClient.connection.completeExceptionally(e);
+      throw e;
+    }
+    connection.whenComplete(
+        (sessionPresent, throwable) -> {
+          if (throwable != null) {
+            sharedClient.connection.completeExceptionally(throwable);
+          } else {
+            sharedClient.connection.complete(sessionPresent);
+          }
+        });
+  }
+
+  /** Waits for the connect of a client another binding has created. */
+  private void awaitConnection(SharedClient sharedClient) {
+    try {
+      sharedClient.connection.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Connects the client, blocking unless {@code connectMode} is asynchronous. The future completes
+   * with whether the broker resumed a persistent session. The client retries a failed asynchronous
+   * connect on its own, the future only completes once connected.
+   */
+  private CompletableFuture<Boolean> connect(
+      Mqtt5BlockingClient client, ConnectionOptions options) {
+    Mqtt5Connect connect = createConnect(options);
+    if (configurationProperties.getConnectMode() != ConnectMode.BLOCKING) {
+      return client
+          .toAsync()
+          .connect(connect)
+          .thenApply(connAck -> options.isPersistentSession() && connAck.isSessionPresent());
+    }
+    if (options.isPersistentSession()) {
+      return CompletableFuture.completedFuture(client.connect(connect).isSessionPresent());
+    }
+    client.connect(connect);
+
+    return CompletableFuture.completedFuture(false);
+  }
+
+  /**
+   * Waits until the clients acquired so far have connected, e.g. once all bindings have started
+   * connecting asynchronously.
+   *
+   * @throws IllegalStateException if a client has not connected within the timeout
+   */
+  public void awaitConnections(long timeout, TimeUnit unit) {
+    Map<ConnectionKey, CompletableFuture<Boolean>> connections = new HashMap<>();
+    synchronized (this) {
+      clients.forEach((key, sharedClient) -> connections.put(key, sharedClient.connection));
+    }
+    // waiting for one client at a time is fine, they all connect concurrently
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    List<String> pending = new ArrayList<>();
+    connections.forEach(
+        (key, connection) -> {
+          try {
+            connection.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.add(key.getClientId());
+          } catch (ExecutionException | TimeoutException e) {
+            pending.add(key.getClientId());
+          }
+        });
+    if (!pending.isEmpty()) {
+      throw new IllegalStateException(
+          "Mqtt clients " + pending + " did not connect within " + timeout + " " + unit);
+    }
+  }
+
+  /**
+   * Whether the subscriptions of the client are multiplexed, i.e. must be made through {@link
+   * #subscribe}. That is the case for clients acquired with {@code cleanStart} disabled, or for all
+   * clients when {@code multiplexSubscriptions} is enabled.
+   */
+  public synchronized boolean isMultiplexed(Mqtt5BlockingClient client) {
+    ConnectionKey key = keys.get(client);
+
+    return key != null && clients.get(key).multiplexer != null;
+  }
+
+  /**
+   * Routes the messages of the topic filter to the callback along with their acknowledgement, which
+   * the callback must run instead of acknowledging the message itself. Messages matching the
+   * filters of several bindings arrive once and are handed to each of them, the message is
+   * acknowledged once all of them ran their acknowledgement. The SUBSCRIBE is sent once the client
+   * has connected, and not at all when the broker resumed the session, it still holds the
+   * subscription; should the broker lose the session later on, the client subscribes again after
+   * reconnecting.
+   */
+  public synchronized void subscribe(
+      Mqtt5BlockingClient client,
+      String topicFilter,
+      MqttQos qos,
+      BiConsumer<Mqtt5Publish, Runnable> callback) {
+    getMultiplexedClient(client).multiplexer.add(topicFilter, qos, callback);
+  }
+
+  /**
+   * Stops routing the messages of a topic filter subscribed with {@link #subscribe}. With a
+   * persistent session the subscription stays in the session, so the broker keeps its messages for
+   * the next binding.
+   */
+  public synchronized void detach(
+      Mqtt5BlockingClient client, String topicFilter, BiConsumer<Mqtt5Publish, Runnable> callback) {
+    getMultiplexedClient(client).multiplexer.remove(topicFilter, callback);
+  }
+
+  private SharedClient getMultiplexedClient(Mqtt5BlockingClient client) {
+    ConnectionKey key = keys.get(client);
+    SharedClient sharedClient = key != null ? clients.get(key) : null;
+    if (sharedClient == null || sharedClient.multiplexer == null) {
+      throw new IllegalStateException(
+          "Client has been acquired neither for a persistent session nor multiplexed");
+    }
+
+    return sharedClient;
+  }
+
+  /** Releases a client obtained from {@link #acquire}, disconnecting it if no longer used. */
+  public void release(Mqtt5BlockingClient client) {
+    SharedClient sharedClient;
+    synchronized (this) {
+      ConnectionKey key = keys.get(client);
+      if (key == null) {
+        return;
+      }
+      sharedClient = clients.get(key);
+      if (--sharedClient.references > 0) {
+        return;
+      }
+      clients.remove(key);
+      keys.remove(client);
+    }
+
+    // disconnecting may block, the lock is released so that other clients are used meanwhile
+    close(sharedClient);
+  }
+
+  /** Number of distinct connections currently held by the registry. */
+  public synchronized int size() {
+    return clients.size();
+  }
+
+  @Override
+  public void destroy() {
+    List<SharedClient> remaining;
+    synchronized (this) {
+      remaining = new ArrayList<>(clients.values());
+      clients.clear();
+      keys.clear();
+    }
+    remaining.forEach(this::close);
+  }
+
+  private void close(SharedClient sharedClient) {
+    try {
+      sharedClient.client.disconnect();
+    } catch (Exception e) {
+      log.warn("Could not disconnect mqtt client", e);
+    }
+    sharedClient.metrics.close();
+  }
+
+  /** Builds the client, overridden by benchmarks that stub the broker. */
+  Mqtt5BlockingClient createClient(
+      ConnectionKey key,
+      MqttMetrics.Client clientMetrics,
+      ConnectionOptions options,
+      SubscriptionMultiplexer multiplexer) {
+    try {
+      return MqttClient.builder()
+          .sslConfig(createSslConfig())
+          .automaticReconnect()
+          .initialDelay(500, TimeUnit.MILLISECONDS)
+          .maxDelay(2, TimeUnit.MINUTES)
+          .applyAutomaticReconnect()
+          .identifier(key.getClientId())
+          .serverHost(key.getServerHost())
+          .serverPort(key.getServerPort())
+          .useMqttVersion5()
+          .addConnectedListener(
+              context -> {
+                clientMetrics.connected();
+                log.info("Mqtt client {} connected", key.getClientId());
+                if (multiplexer != null) {
+                  multiplexer.connected(
+                      ((Mqtt5ClientConnectedContext) context).getConnAck().isSessionPresent());
+                }
+              })
+          .addDisconnectedListener(
+              context -> {
+                clientMetrics.disconnected();
+                log.warn("Mqtt client {} disconnected", key.getClientId(), context.getCause());
+                if (multiplexer != null) {
+                  // the multiplexer subscribes again once reconnected, it alone knows all filters
+                  context.getReconnector().resubscribeIfSessionExpired(false);
+                }
+              })
+          .simpleAuth()
+          .username(key.getUsername())
+          .password(key.getPassword().getBytes(StandardCharsets.UTF_8))
+          .applySimpleAuth()
+          .buildBlocking();
+    } catch (Exception e) {
+      throw new RuntimeException(e.getMessage(), e);
+    }
+  }
+
+  private Mqtt5Connect createConnect(ConnectionOptions options) {
+    ConnectionOptions effective = resolve(options);
+
+    return Mqtt5Connect.builder()
+        .cleanStart(effective.getCleanStart())
+        .sessionExpiryInterval(effective.getSessionExpiryInterval())
+        .restrictions()
+        .receiveMaximum(effective.getReceiveMaximum())
+        .maximumPacketSize(effective.getMaximumPacketSize())
+        .sendMaximum(configurationProperties.getSendMaximum())
+        .sendMaximumPacketSize(configurationProperties.getSendMaximumPacketSize())
+        // the client assigns aliases to the most used topics on its own, up to this maximum or the
+        // broker's topic alias maximum, whichever is lower
+        .sendTopicAliasMaximum(configurationProperties.getTopicAliasMaximum())
+        .applyRestrictions()
+        .build();
+  }
+
+  private MqttClientSslConfig createSslConfig() throws Exception {
+    if (configurationProperties.getKeyPath() == null) {
+      return null;
+    }
+    TrustManagerFactory trustMgrFact =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    KeyStore trustStore = KeyStore.getInstance(configurationProperties.getKeyType());
+    trustStore.load(
+        new ClassPathResource(configurationProperties.getKeyPath()).getInputStream(),
+        configurationProperties.getKeyPassword() == null
+            ? null
+            : configurationProperties.getKeyPassword().toCharArray());
+    trustMgrFact.init(trustStore);
+
+    return MqttClientSslConfig.builder()
+        .trustManagerFactory(trustMgrFact)
+        .keyManagerFactory(null)
+        .build();
+  }
+
+  @Value
+  static class ConnectionKey {
+    String serverHost;
+    Integer serverPort;
+    String username;
+    @ToString.Exclude String password;
+    String clientId;
+  }
+
+  private static class SharedClient {
+    private final Mqtt5BlockingClient client;
+    private final ConnectionOptions options;
+    private final MqttMetrics.Client metrics;
+    private final SubscriptionMultiplexer multiplexer;
+    private final CompletableFuture<Boolean> connection;
+    private int references;
+
+    private SharedClient(
+        Mqtt5BlockingClient client,
+        ConnectionOptions options,
+        MqttMetrics.Client metrics,
+        SubscriptionMultiplexer multiplexer,
+        CompletableFuture<Boolean> connection) {
+      this.client = client;
+      this.options = options;
+      this.metrics = metrics;
+      this.multiplexer = multiplexer;
+      this.connection = connection;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+/** Names of the message headers read and written by the binder. */
+public final class MqttHeaders {
+
+  /** Topic to publish the message to instead of the binding destination. */
+  public static final String TOPIC = "mqtt_topic";
+
+  /** QoS to publish the message with instead of the configured one. */
+  public static final String QOS = "mqtt_qos";
+
+  /** Whether to publish the message as retained message instead of the configured setting. */
+  public static final String RETAINED = "mqtt_retained";
+
+  /** Message expiry interval in seconds to publish the message with. */
+  public static final String MESSAGE_EXPIRY_INTERVAL = "mqtt_messageExpiryInterval";
+
+  public static final String RECEIVED_QOS = "mqtt_receivedQos";
+
+  public static final String RECEIVED_RETAINED = "mqtt_receivedRetained";
+
+  public static final String RECEIVED_TOPIC = "mqtt_receivedTopic";
+
+  /** Remaining message expiry interval in seconds of a received message, if it has one. */
+  public static final String RECEIVED_MESSAGE_EXPIRY_INTERVAL =
+      "mqtt_receivedMessageExpiryInterval";
+
+  /**
+   * MQTT 5 user properties of a received message, an unmodifiable {@code Map<String, String>} of
+   * the first value of each name. They are set by the publisher, so they are kept apart from the
+   * headers the binder and the framework act on.
+   */
+  public static final String RECEIVED_USER_PROPERTIES = "mqtt_receivedUserProperties";
+
+  /**
+   * Topic the receiver of a message is asked to reply to. Set on received messages, and published
+   * as MQTT 5 response topic when set on a sent message.
+   */
+  public static final String RESPONSE_TOPIC = "mqtt_responseTopic";
+
+  /**
+   * {@code byte[]} identifying the request a reply belongs to. Set on received messages, and
+   * published as MQTT 5 correlation data when set on a sent message.
+   */
+  public static final String CORRELATION_DATA = "mqtt_correlationData";
+
+  /** Topic a dead letter was originally received from, a user property of the dead letter. */
+  public static final String ORIGINAL_TOPIC = "x-original-topic";
+
+  /** Message of the exception that made a message a dead letter, a user property of it. */
+  public static final String EXCEPTION_MESSAGE = "x-exception-message";
+
+  private MqttHeaders() {}
+}
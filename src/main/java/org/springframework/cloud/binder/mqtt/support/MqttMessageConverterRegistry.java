@@ -0,0 +1,116 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.ContentTypeResolver;
+import org.springframework.messaging.converter.DefaultContentTypeResolver;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.ConcurrentLruCache;
+import org.springframework.util.MimeType;
+
+/**
+ * Converts received MQTT payloads according to their content type. Textual payloads (JSON, XML,
+ * {@code text/*}) become {@code String}s decoded with the charset of the content type (UTF-8 by
+ * default), any other payload is passed through as {@code byte[]}. Payloads without a content type
+ * become UTF-8 {@code String}s as well. Converters are created once per content type and reused.
+ */
+public class MqttMessageConverterRegistry {
+
+  /**
+   * Content types are chosen by the publishers, only the converters of the most recently received
+   * ones are kept.
+   */
+  static final int CONVERTER_CACHE_SIZE = 64;
+
+  private final ContentTypeResolver contentTypeResolver;
+  private final MessageConverter defaultConverter;
+  private final Map<MimeType, MessageConverter> registered = new ConcurrentHashMap<>();
+  private final ConcurrentLruCache<MimeType, MessageConverter> converters =
+      new ConcurrentLruCache<>(CONVERTER_CACHE_SIZE, this::createConverter);
+
+  public MqttMessageConverterRegistry() {
+    this(new DefaultContentTypeResolver());
+  }
+
+  public MqttMessageConverterRegistry(ContentTypeResolver contentTypeResolver) {
+    this.contentTypeResolver = contentTypeResolver;
+    this.defaultConverter =
+        new PayloadConverter(payload -> new String(payload, StandardCharsets.UTF_8));
+  }
+
+  /** Registers the converter used for payloads of the given content type. */
+  public void register(MimeType mimeType, MessageConverter converter) {
+    registered.put(mimeType, converter);
+  }
+
+  public Message<?> toMessage(byte[] payload, MessageHeaders headers) {
+    return getConverter(headers).toMessage(payload, headers);
+  }
+
+  MessageConverter getConverter(MessageHeaders headers) {
+    MimeType mimeType = contentTypeResolver.resolve(headers);
+    if (mimeType == null) {
+      return defaultConverter;
+    }
+
+    MessageConverter converter = registered.get(mimeType);
+
+    return converter != null ? converter : converters.get(mimeType);
+  }
+
+  private MessageConverter createConverter(MimeType mimeType) {
+    if (isText(mimeType)) {
+      Charset charset = mimeType.getCharset();
+
+      return new PayloadConverter(
+          payload -> new String(payload, charset != null ? charset : StandardCharsets.UTF_8));
+    }
+
+    return new PayloadConverter(payload -> payload);
+  }
+
+  private static boolean isText(MimeType mimeType) {
+    String subtype = mimeType.getSubtype();
+
+    return "text".equals(mimeType.getType())
+        || "json".equals(subtype)
+        || subtype.endsWith("+json")
+        || "xml".equals(subtype)
+        || subtype.endsWith("+xml");
+  }
+
+  /**
+   * Decodes the payload and keeps the received headers as they are. Unlike {@link
+   * AbstractMessageConverter} it neither resolves the content type again nor copies the headers,
+   * which would also generate a new message id.
+   */
+  private static class PayloadConverter implements MessageConverter {
+
+    private final Function<byte[], Object> decoder;
+
+    private PayloadConverter(Function<byte[], Object> decoder) {
+      this.decoder = decoder;
+    }
+
+    @Override
+    public Object fromMessage(Message<?> message, Class<?> targetClass) {
+      return null;
+    }
+
+    @Override
+    public Message<?> toMessage(Object payload, MessageHeaders headers) {
+      if (!(payload instanceof byte[])) {
+        return null;
+      }
+
+      return MessageBuilder.createMessage(decoder.apply((byte[]) payload), headers);
+    }
+  }
+}
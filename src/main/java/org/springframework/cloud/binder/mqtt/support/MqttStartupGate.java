@@ -0,0 +1,58 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * Holds the application startup back until the clients of the bindings, connecting concurrently,
+ * have connected. The bindings start, and their clients start connecting, while the application
+ * context refreshes; once it has refreshed the gate waits for the connections, failing the startup
+ * if a client has not connected within the timeout.
+ *
+ * <p>The binder usually lives in a child context of the application context, whose refresh it waits
+ * for then.
+ */
+@Slf4j
+public class MqttStartupGate
+    implements ApplicationContextAware, ApplicationListener<ContextRefreshedEvent> {
+
+  private final MqttClientRegistry clientRegistry;
+  private final long timeout;
+  private ApplicationContext gatedContext;
+
+  /** Waits up to {@code timeout} seconds, 0 does not wait. */
+  public MqttStartupGate(MqttClientRegistry clientRegistry, long timeout) {
+    this.clientRegistry = clientRegistry;
+    this.timeout = timeout;
+  }
+
+  @Override
+  public void setApplicationContext(ApplicationContext applicationContext) {
+    ApplicationContext parent = applicationContext.getParent();
+    if (timeout > 0 && parent instanceof ConfigurableApplicationContext) {
+      // events of the parent don't reach the child context
+      ((ConfigurableApplicationContext) parent).addApplicationListener(this);
+      gatedContext = parent;
+    } else {
+      gatedContext = applicationContext;
+    }
+  }
+
+  @Override
+  public void onApplicationEvent(ContextRefreshedEvent event) {
+    // refreshes of the binder context reach the parent too
+    if (timeout == 0 || event.getApplicationContext() != gatedContext) {
+      return;
+    }
+    long startedAt = System.nanoTime();
+    clientRegistry.awaitConnections(timeout, TimeUnit.SECONDS);
+    log.info(
+        "Mqtt clients connected after waiting {} ms",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+  }
+}
@@ -0,0 +1,100 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import com.hivemq.client.mqtt.datatypes.MqttTopic;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperty;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.springframework.cloud.binder.mqtt.codec.PayloadCompression;
+import org.springframework.messaging.MessageHeaders;
+
+/** Reads the headers and payload of received messages, alike for consumers and replies. */
+public final class ReceivedPublishes {
+
+  private ReceivedPublishes() {}
+
+  /**
+   * The {@link MqttHeaders} of the received message, with its content type. The map is modifiable,
+   * so headers of the receiving side can be added.
+   */
+  public static Map<String, Object> getHeaders(Mqtt5Publish mqtt5Publish) {
+    Map<String, Object> header = new HashMap<>();
+
+    header.put(MqttHeaders.RECEIVED_QOS, mqtt5Publish.getQos().getCode());
+    header.put(MqttHeaders.RECEIVED_RETAINED, mqtt5Publish.isRetain());
+    header.put(MqttHeaders.RECEIVED_TOPIC, mqtt5Publish.getTopic().toString());
+    mqtt5Publish
+        .getMessageExpiryInterval()
+        .ifPresent(
+            expiryInterval ->
+                header.put(MqttHeaders.RECEIVED_MESSAGE_EXPIRY_INTERVAL, expiryInterval));
+
+    Map<String, String> userProperties = new LinkedHashMap<>();
+    for (Mqtt5UserProperty userProperty : mqtt5Publish.getUserProperties().asList()) {
+      String name = userProperty.getName().toString();
+      String value = userProperty.getValue().toString();
+      // payloads are decompressed before they are handed out
+      if (!PayloadCompression.USER_PROPERTY.equals(name)
+          || PayloadCompression.forEncoding(value) == null) {
+        userProperties.putIfAbsent(name, value);
+      }
+    }
+    if (!userProperties.isEmpty()) {
+      header.put(MqttHeaders.RECEIVED_USER_PROPERTIES, Collections.unmodifiableMap(userProperties));
+    }
+    mqtt5Publish
+        .getResponseTopic()
+        .map(MqttTopic::toString)
+        .ifPresent(rt -> header.put(MqttHeaders.RESPONSE_TOPIC, rt));
+    mqtt5Publish
+        .getContentType()
+        .map(Objects::toString)
+        .ifPresent(contentType -> header.put(MessageHeaders.CONTENT_TYPE, contentType));
+    mqtt5Publish
+        .getCorrelationData()
+        .map(
+            byteBuffer -> {
+              int length = byteBuffer.remaining();
+              byte[] correlationData = new byte[length];
+              byteBuffer.get(correlationData);
+
+              return correlationData;
+            })
+        .ifPresent(correlationData -> header.put(MqttHeaders.CORRELATION_DATA, correlationData));
+
+    return header;
+  }
+
+  /**
+   * Compression of the payload, {@code null} if not compressed. Payloads of unknown encodings are
+   * handed out as they are, with their {@code content-encoding} user property.
+   */
+  public static PayloadCompression getCompression(Mqtt5Publish mqtt5Publish) {
+    for (Mqtt5UserProperty userProperty : mqtt5Publish.getUserProperties().asList()) {
+      if (userProperty.getName().toString().equals(PayloadCompression.USER_PROPERTY)) {
+        return PayloadCompression.forEncoding(userProperty.getValue().toString());
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * The payload, decompressed if it is compressed.
+   *
+   * @throws IOException if the payload can't be decompressed, or would inflate beyond {@code
+   *     maxDecompressedSize} bytes
+   */
+  public static byte[] getPayload(Mqtt5Publish mqtt5Publish, int maxDecompressedSize)
+      throws IOException {
+    PayloadCompression compression = getCompression(mqtt5Publish);
+
+    return compression != null
+        ? compression.decompress(mqtt5Publish.getPayloadAsBytes(), maxDecompressedSize)
+        : mqtt5Publish.getPayloadAsBytes();
+  }
+}
@@ -0,0 +1,89 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.springframework.util.Assert;
+
+/**
+ * Runs tasks on a fixed number of single-threaded stripes. Tasks submitted with equal keys always
+ * land on the same stripe and therefore run one after another in submission order, while tasks with
+ * different keys can run in parallel.
+ */
+public class StripedExecutor {
+
+  private final ThreadPoolExecutor[] stripes;
+
+  public StripedExecutor(int concurrency, ThreadFactory threadFactory) {
+    Assert.isTrue(concurrency > 0, "concurrency must be greater than 0");
+    stripes = new ThreadPoolExecutor[concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      stripes[i] =
+          new ThreadPoolExecutor(
+              1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    }
+  }
+
+  /** Number of tasks waiting for their stripe's thread. */
+  public int getQueuedTasks() {
+    int queued = 0;
+    for (ThreadPoolExecutor stripe : stripes) {
+      queued += stripe.getQueue().size();
+    }
+
+    return queued;
+  }
+
+  public void execute(Object key, Runnable task) {
+    stripes[stripeOf(key)].execute(task);
+  }
+
+  /**
+   * Executes the task unless {@code maxQueued} tasks are already waiting on the stripe of the key.
+   *
+   * @return whether the task was accepted
+   */
+  public boolean tryExecute(Object key, Runnable task, int maxQueued) {
+    ThreadPoolExecutor stripe = stripes[stripeOf(key)];
+    if (stripe.getQueue().size() >= maxQueued) {
+      return false;
+    }
+    stripe.execute(task);
+
+    return true;
+  }
+
+  public int getConcurrency() {
+    return stripes.length;
+  }
+
+  public void shutdown() {
+    for (ThreadPoolExecutor stripe : stripes) {
+      stripe.shutdown();
+    }
+  }
+
+  /** Waits for the tasks queued before {@link #shutdown()} to finish. */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ThreadPoolExecutor stripe : stripes) {
+      if (!stripe.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /** Index of the stripe running the tasks submitted with the given key. */
+  public int stripeOf(Object key) {
+    if (stripes.length == 1 || key == null) {
+      return 0;
+    }
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return (hash & Integer.MAX_VALUE) % stripes.length;
+  }
+}
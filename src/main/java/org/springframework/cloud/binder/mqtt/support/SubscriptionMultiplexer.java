@@ -0,0 +1,357 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import com.hivemq.client.mqtt.MqttGlobalPublishFilter;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.datatypes.MqttSharedTopicFilter;
+import com.hivemq.client.mqtt.datatypes.MqttTopicFilter;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.Mqtt5RetainHandling;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Routes the messages of a client to its bindings. Every message the client receives is matched
+ * once against a trie of the topic filters of the bindings and handed to each matching binding,
+ * along with the acknowledgement the binding must run instead of acknowledging the message.
+ *
+ * <p>Without a persistent session, filters covered by the filter of another binding are not
+ * subscribed at the broker, e.g. {@code site/+/temp} is not while {@code site/#} is. The broker
+ * then sends a single copy of each message, whatever it does for overlapping subscriptions. The
+ * broker subscriptions follow the bindings as they come and go.
+ *
+ * <p>Each broker subscription has a callback of its own, which only hands messages to the bindings
+ * it was subscribed for. The client tells the subscriptions a message was sent for apart by their
+ * subscription identifiers, so the copies the broker sends for partially overlapping filters such
+ * as {@code site/+/temp} and {@code site/a/#}, or for a shared subscription, don't reach the
+ * bindings of the other subscriptions too. Brokers without subscription identifiers send each copy
+ * to every callback whose filter matches.
+ *
+ * <p>A broker resuming a persistent session still holds its subscriptions, which are not sent
+ * again. The messages of the session, including those queued while the client was gone, arrive
+ * through the callback registered before connecting, and are held back until a binding claims them,
+ * then handed to every binding matching them. Held back QoS 1 and 2 messages are never acknowledged
+ * unclaimed, beyond the limit the broker sends them again after a reconnect. Every filter is
+ * subscribed as is, and stays subscribed when its binding stops, so the broker keeps queueing its
+ * messages.
+ */
+@Slf4j
+class SubscriptionMultiplexer {
+
+  /** Upper bound of held back messages, only QoS 0 messages are not bounded by receive maximum. */
+  private static final int MAX_PENDING = 10_000;
+
+  private final boolean persistentSession;
+  private final List<Subscription> subscriptions = new ArrayList<>();
+  private final TopicFilterTrie<Subscription> trie = new TopicFilterTrie<>();
+  private final Map<String, MqttQos> brokerSubscriptions = new HashMap<>();
+  private final List<HeldPublish> pending = new ArrayList<>();
+  private Mqtt5AsyncClient client;
+  private boolean connected;
+  private boolean sessionPresent;
+
+  SubscriptionMultiplexer(boolean persistentSession) {
+    this.persistentSession = persistentSession;
+  }
+
+  /** Registers the callback of unclaimed messages, must be called before the client connects. */
+  synchronized void attach(Mqtt5AsyncClient client) {
+    this.client = client;
+    client.publishes(MqttGlobalPublishFilter.REMAINING, this::dispatch, true);
+  }
+
+  /**
+   * Subscribes the filters of the bindings once the client has connected, and again after every
+   * reconnect on which the broker had lost the session. A resumed session already holds their
+   * subscriptions. The client must not subscribe again on its own, the multiplexer is the only one
+   * doing so.
+   */
+  synchronized void connected(boolean sessionPresent) {
+    this.connected = true;
+    this.sessionPresent = sessionPresent;
+    if (!sessionPresent) {
+      // the broker holds none of the subscriptions anymore
+      brokerSubscriptions.clear();
+    }
+    updateBrokerSubscriptions();
+  }
+
+  /**
+   * Routes messages of the topic filter to the callback, then hands held back messages it matches
+   * to every binding they are for. Until the client has connected, the broker subscription is only
+   * recorded.
+   */
+  synchronized void add(
+      String topicFilter, MqttQos qos, BiConsumer<Mqtt5Publish, Runnable> callback) {
+    Subscription subscription = new Subscription(topicFilter, qos, callback);
+    subscriptions.add(subscription);
+    trie.add(subscription.matcher.toString(), subscription);
+    if (connected) {
+      updateBrokerSubscriptions();
+    }
+    List<HeldPublish> claimed = new ArrayList<>();
+    for (Iterator<HeldPublish> iterator = pending.iterator(); iterator.hasNext(); ) {
+      HeldPublish held = iterator.next();
+      if (held.isClaimedBy(subscription)) {
+        iterator.remove();
+        claimed.add(held);
+      }
+    }
+    for (HeldPublish held : claimed) {
+      if (held.brokerFilter != null) {
+        route(held.brokerFilter, held.publish);
+      } else {
+        dispatch(held.publish);
+      }
+    }
+  }
+
+  /**
+   * Stops routing messages of the topic filter to the callback. Without a persistent session the
+   * broker subscription is dropped once no other binding needs it.
+   */
+  synchronized void remove(String topicFilter, BiConsumer<Mqtt5Publish, Runnable> callback) {
+    for (Iterator<Subscription> iterator = subscriptions.iterator(); iterator.hasNext(); ) {
+      Subscription subscription = iterator.next();
+      if (subscription.topicFilter.equals(topicFilter) && subscription.callback.equals(callback)) {
+        iterator.remove();
+        trie.remove(subscription.matcher.toString(), subscription);
+        break;
+      }
+    }
+    if (connected) {
+      updateBrokerSubscriptions();
+    }
+  }
+
+  /**
+   * Hands a message no subscription callback took to every binding matching it. These are messages
+   * of a resumed session, sent for the subscriptions of the previous connection.
+   */
+  private synchronized void dispatch(Mqtt5Publish publish) {
+    List<Subscription> matches = new ArrayList<>(1);
+    trie.match(publish.getTopic().toString(), matches::add);
+    deliver(publish, matches, null);
+  }
+
+  /**
+   * Hands a message the broker sent for the subscription of the topic filter to the bindings it was
+   * subscribed for. A filter just unsubscribed still delivers to the bindings it covers, whose
+   * messages the covering subscription may not have received yet.
+   */
+  private synchronized void route(String brokerFilter, Mqtt5Publish publish) {
+    List<Subscription> matches = new ArrayList<>(1);
+    if (brokerSubscriptions.containsKey(brokerFilter)) {
+      trie.match(
+          publish.getTopic().toString(),
+          subscription -> {
+            if (brokerFilter.equals(subscription.brokerFilter)) {
+              matches.add(subscription);
+            }
+          });
+    } else {
+      Subscription retired = new Subscription(brokerFilter, MqttQos.AT_MOST_ONCE, null);
+      trie.match(
+          publish.getTopic().toString(),
+          subscription -> {
+            if (brokerFilter.equals(subscription.topicFilter) || retired.covers(subscription)) {
+              matches.add(subscription);
+            }
+          });
+    }
+    deliver(publish, matches, brokerFilter);
+  }
+
+  /**
+   * Hands the message to the matching bindings. With a persistent session, a message no binding
+   * wants is held back for the bindings of the subscription it arrived through, or for any binding
+   * if that is not known.
+   */
+  private void deliver(Mqtt5Publish publish, List<Subscription> matches, String brokerFilter) {
+    if (matches.size() == 1) {
+      matches.get(0).callback.accept(publish, publish::acknowledge);
+    } else if (!matches.isEmpty()) {
+      // the client takes a single acknowledgement, it is sent once every binding has acknowledged
+      AtomicInteger pendingAcknowledgements = new AtomicInteger(matches.size());
+      Runnable acknowledgement =
+          () -> {
+            if (pendingAcknowledgements.decrementAndGet() == 0) {
+              publish.acknowledge();
+            }
+          };
+      for (Subscription subscription : matches) {
+        subscription.callback.accept(publish, acknowledgement);
+      }
+    } else if (!persistentSession) {
+      // the binding has just stopped, no other one wants the message
+      log.debug("Dropping message of topic {} that no binding has subscribed", publish.getTopic());
+      publish.acknowledge();
+    } else if (pending.size() < MAX_PENDING) {
+      pending.add(new HeldPublish(publish, brokerFilter));
+    } else if (publish.getQos() == MqttQos.AT_MOST_ONCE) {
+      log.warn("Dropping message of topic {} that no binding has claimed", publish.getTopic());
+      publish.acknowledge();
+    } else {
+      // the broker sends it again after the client has reconnected
+      log.warn(
+          "Not acknowledging message of topic {}, {} messages wait for a binding already",
+          publish.getTopic(),
+          MAX_PENDING);
+    }
+  }
+
+  /**
+   * Subscribes the filters that are needed and not subscribed yet, or with a lower QoS, then
+   * unsubscribes those no longer needed. A filter is needed unless the filter of another binding
+   * covers it; that filter is subscribed with the highest QoS of the filters it covers. The filters
+   * of a resumed session are only recorded.
+   */
+  private void updateBrokerSubscriptions() {
+    if (sessionPresent) {
+      for (Subscription subscription : subscriptions) {
+        subscription.brokerFilter = subscription.topicFilter;
+        brokerSubscriptions.merge(
+            subscription.topicFilter, subscription.qos, SubscriptionMultiplexer::max);
+      }
+      return;
+    }
+    Map<String, MqttQos> needed = new HashMap<>();
+    for (Subscription subscription : subscriptions) {
+      Subscription cover = persistentSession ? subscription : getCover(subscription);
+      subscription.brokerFilter = cover.topicFilter;
+      needed.merge(cover.topicFilter, subscription.qos, SubscriptionMultiplexer::max);
+    }
+    needed.forEach(
+        (topicFilter, qos) -> {
+          MqttQos subscribedQos = brokerSubscriptions.get(topicFilter);
+          if (subscribedQos == null || subscribedQos.getCode() < qos.getCode()) {
+            brokerSubscriptions.put(topicFilter, qos);
+            subscribe(topicFilter, qos);
+          }
+        });
+    if (persistentSession) {
+      return;
+    }
+    for (Iterator<String> iterator = brokerSubscriptions.keySet().iterator();
+        iterator.hasNext(); ) {
+      String topicFilter = iterator.next();
+      if (!needed.containsKey(topicFilter)) {
+        iterator.remove();
+        unsubscribe(topicFilter);
+      }
+    }
+  }
+
+  /** The outermost subscription whose filter covers the filter of the given one. */
+  private Subscription getCover(Subscription subscription) {
+    Subscription cover = subscription;
+    for (boolean widened = true; widened; ) {
+      widened = false;
+      for (Subscription candidate : subscriptions) {
+        if (candidate.covers(cover)) {
+          cover = candidate;
+          widened = true;
+          break;
+        }
+      }
+    }
+
+    return cover;
+  }
+
+  private void subscribe(String topicFilter, MqttQos qos) {
+    // raising the QoS subscribes an existing filter again, its retained messages are not sent again
+    client
+        .subscribeWith()
+        .topicFilter(topicFilter)
+        .qos(qos)
+        .retainHandling(Mqtt5RetainHandling.SEND_IF_SUBSCRIPTION_DOES_NOT_EXIST)
+        .callback(publish -> route(topicFilter, publish))
+        .manualAcknowledgement(true)
+        .send()
+        .whenComplete(
+            (subAck, throwable) -> {
+              if (throwable != null) {
+                log.error("Could not subscribe to topic {}", topicFilter, throwable);
+              }
+            });
+  }
+
+  private void unsubscribe(String topicFilter) {
+    client
+        .unsubscribeWith()
+        .topicFilter(topicFilter)
+        .send()
+        .whenComplete(
+            (unsubAck, throwable) -> {
+              if (throwable != null) {
+                log.error("Could not unsubscribe from topic {}", topicFilter, throwable);
+              }
+            });
+  }
+
+  private static MqttQos max(MqttQos qos, MqttQos other) {
+    return qos.getCode() >= other.getCode() ? qos : other;
+  }
+
+  private static class HeldPublish {
+    private final Mqtt5Publish publish;
+    private final String brokerFilter;
+
+    private HeldPublish(Mqtt5Publish publish, String brokerFilter) {
+      this.publish = publish;
+      this.brokerFilter = brokerFilter;
+    }
+
+    private boolean isClaimedBy(Subscription subscription) {
+      return subscription.matches(publish)
+          && (brokerFilter == null || brokerFilter.equals(subscription.brokerFilter));
+    }
+  }
+
+  private static class Subscription {
+    private final String topicFilter;
+    private final MqttTopicFilter matcher;
+    private final boolean shared;
+    private final MqttQos qos;
+    private final BiConsumer<Mqtt5Publish, Runnable> callback;
+    /** Filter of the broker subscription the messages of this one arrive through. */
+    private String brokerFilter;
+
+    private Subscription(
+        String topicFilter, MqttQos qos, BiConsumer<Mqtt5Publish, Runnable> callback) {
+      this.topicFilter = topicFilter;
+      MqttTopicFilter filter = MqttTopicFilter.of(topicFilter);
+      // messages of a shared subscription carry the topic, not the share name
+      this.shared = filter.isShared();
+      this.matcher = shared ? ((MqttSharedTopicFilter) filter).getTopicFilter() : filter;
+      this.qos = qos;
+      this.callback = callback;
+    }
+
+    private boolean matches(Mqtt5Publish publish) {
+      return matcher.matches(publish.getTopic());
+    }
+
+    /**
+     * Whether every message of the other filter is also a message of this one. Of two distinct
+     * filters matching the same topics, e.g. {@code #} and {@code +/#}, the lexically smaller
+     * covers the other. Shared subscriptions are load-balanced by the broker, they neither cover
+     * nor are covered.
+     */
+    private boolean covers(Subscription other) {
+      if (shared || other.shared || topicFilter.equals(other.topicFilter)) {
+        return false;
+      }
+
+      return matcher.matches(other.matcher)
+          && (!other.matcher.matches(matcher) || topicFilter.compareTo(other.topicFilter) < 0);
+    }
+  }
+}
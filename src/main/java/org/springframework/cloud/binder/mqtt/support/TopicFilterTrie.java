@@ -0,0 +1,107 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Values keyed by MQTT topic filter, looked up by topic. A lookup walks the levels of the topic
+ * once, following the exact level, {@code +} and {@code #} branches, so its cost depends on the
+ * depth of the topic and the wildcards on its path, not on the number of filters. Topics starting
+ * with {@code $} are not matched by wildcards on their first level.
+ *
+ * <p>Not thread-safe.
+ */
+class TopicFilterTrie<T> {
+
+  private final Node<T> root = new Node<>();
+  private int size;
+
+  void add(String topicFilter, T value) {
+    Node<T> node = root;
+    for (String level : topicFilter.split("/", -1)) {
+      if ("#".equals(level)) {
+        node.multiLevelValues.add(value);
+        size++;
+        return;
+      }
+      node = node.children.computeIfAbsent(level, key -> new Node<>());
+    }
+    node.values.add(value);
+    size++;
+  }
+
+  /** Removes one occurrence of the value, returns whether the filter held it. */
+  boolean remove(String topicFilter, T value) {
+    String[] levels = topicFilter.split("/", -1);
+    boolean removed = remove(root, levels, 0, value);
+    if (removed) {
+      size--;
+    }
+
+    return removed;
+  }
+
+  private boolean remove(Node<T> node, String[] levels, int index, T value) {
+    if (index == levels.length) {
+      return node.values.remove(value);
+    }
+    if ("#".equals(levels[index])) {
+      return node.multiLevelValues.remove(value);
+    }
+    Node<T> child = node.children.get(levels[index]);
+    if (child == null || !remove(child, levels, index + 1, value)) {
+      return false;
+    }
+    // prune branches that lead nowhere anymore, bindings come and go with their lifecycle
+    if (child.isEmpty()) {
+      node.children.remove(levels[index]);
+    }
+
+    return true;
+  }
+
+  /** Hands every value whose filter matches the topic to the consumer, once per occurrence. */
+  void match(String topic, Consumer<T> consumer) {
+    String[] levels = topic.split("/", -1);
+    match(root, levels, 0, levels[0].startsWith("$"), consumer);
+  }
+
+  private void match(
+      Node<T> node, String[] levels, int index, boolean systemTopic, Consumer<T> consumer) {
+    boolean wildcards = index > 0 || !systemTopic;
+    if (wildcards) {
+      // '#' also matches the parent level, "a/#" matches "a"
+      node.multiLevelValues.forEach(consumer);
+    }
+    if (index == levels.length) {
+      node.values.forEach(consumer);
+      return;
+    }
+    Node<T> child = node.children.get(levels[index]);
+    if (child != null) {
+      match(child, levels, index + 1, systemTopic, consumer);
+    }
+    Node<T> singleLevel = wildcards ? node.children.get("+") : null;
+    // a topic level "+" can't occur, but don't match the same branch twice should it anyway
+    if (singleLevel != null && singleLevel != child) {
+      match(singleLevel, levels, index + 1, systemTopic, consumer);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  private static class Node<T> {
+    private final Map<String, Node<T>> children = new HashMap<>();
+    private final List<T> values = new ArrayList<>(1);
+    private final List<T> multiLevelValues = new ArrayList<>(1);
+
+    private boolean isEmpty() {
+      return children.isEmpty() && values.isEmpty() && multiLevelValues.isEmpty();
+    }
+  }
+}
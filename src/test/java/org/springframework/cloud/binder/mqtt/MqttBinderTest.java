@@ -0,0 +1,356 @@
+package org.springframework.cloud.binder.mqtt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+import com.hivemq.client.internal.mqtt.message.publish.MqttPublishBuilder;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.datatypes.MqttSharedTopicFilter;
+import com.hivemq.client.mqtt.datatypes.MqttTopicFilter;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5PublishResult;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.Mqtt5UnsubscribeBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.cloud.binder.mqtt.outbound.MqttV5MessageHandler;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.springframework.cloud.binder.mqtt.properties.MqttExtendedBindingProperties;
+import org.springframework.cloud.binder.mqtt.properties.MqttSinkProperties;
+import org.springframework.cloud.binder.mqtt.properties.MqttSourceProperties;
+import org.springframework.cloud.binder.mqtt.properties.RuntimeMqttExtendedBindingProperties;
+import org.springframework.cloud.binder.mqtt.support.ConnectMode;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.stream.binder.ExtendedConsumerProperties;
+import org.springframework.cloud.stream.binder.ExtendedProducerProperties;
+import org.springframework.cloud.stream.provisioning.ConsumerDestination;
+import org.springframework.cloud.stream.provisioning.ProducerDestination;
+import org.springframework.cloud.stream.provisioning.ProvisioningException;
+import org.springframework.expression.common.LiteralExpression;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.endpoint.MessageProducerSupport;
+import org.springframework.integration.support.MessageBuilder;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class MqttBinderTest {
+
+  private static final String topic = "telemetry";
+
+  private MqttProvisioningProvider provisioningProvider;
+  private BrokerStandIn broker;
+  private MqttBinderConfigurationProperties binderConfigurationProperties;
+  private MqttClientRegistry clientRegistry;
+  private MqttBinder binder;
+
+  @BeforeEach
+  public void setUp() {
+    provisioningProvider = new MqttProvisioningProvider();
+    broker = new BrokerStandIn();
+    binderConfigurationProperties = new MqttBinderConfigurationProperties();
+    clientRegistry = Mockito.mock(MqttClientRegistry.class);
+    Mockito.doAnswer(inv -> broker.connect())
+        .when(clientRegistry)
+        .acquire(Mockito.anyString(), Mockito.any(), Mockito.any(), Mockito.any());
+
+    binder =
+        new MqttBinder(
+            provisioningProvider,
+            new MqttExtendedBindingProperties(),
+            new RuntimeMqttExtendedBindingProperties(),
+            binderConfigurationProperties,
+            clientRegistry);
+  }
+
+  @Test
+  public void createConsumerEndpoint_shouldSpreadMessagesAcrossGroupMembers() {
+    List<QueueChannel> consumers = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      consumers.add(startConsumer("group", "client-" + i));
+    }
+
+    for (int i = 0; i < 300; i++) {
+      broker.publish(topic, "message-" + i);
+    }
+
+    assertThat(broker.subscribedFilters()).containsOnly("$share/group/" + topic);
+    int total = 0;
+    for (QueueChannel consumer : consumers) {
+      int received = drain(consumer);
+      assertThat(received).isEqualTo(100);
+      total += received;
+    }
+    assertThat(total).isEqualTo(300);
+  }
+
+  @Test
+  public void createConsumerEndpoint_shouldDeliverEveryMessageToEachAnonymousConsumer() {
+    QueueChannel first = startConsumer(null, "client-0");
+    QueueChannel second = startConsumer(null, "client-1");
+
+    for (int i = 0; i < 10; i++) {
+      broker.publish(topic, "message-" + i);
+    }
+
+    assertThat(broker.subscribedFilters()).containsOnly(topic);
+    assertThat(drain(first)).isEqualTo(10);
+    assertThat(drain(second)).isEqualTo(10);
+  }
+
+  @Test
+  public void provisionConsumerDestination_shouldRejectGroupWithTopicSeparators() {
+    assertThatThrownBy(
+            () ->
+                provisioningProvider.provisionConsumerDestination(
+                    topic, "a/b", new ExtendedConsumerProperties<>(new MqttSourceProperties())))
+        .isInstanceOf(ProvisioningException.class);
+  }
+
+  @Test
+  public void createConsumerEndpoint_shouldOnlyConsumeOwnPartitions() {
+    ExtendedConsumerProperties<MqttSourceProperties> properties = consumerProperties("client-0");
+    properties.setPartitioned(true);
+    properties.setInstanceCount(3);
+    properties.setInstanceIndex(1);
+    QueueChannel consumer = startConsumer("group", properties);
+
+    for (int partition = 0; partition < 3; partition++) {
+      broker.publish(topic + "/" + partition, "message-" + partition);
+    }
+
+    assertThat(broker.subscribedFilters()).containsOnly("$share/group/" + topic + "/1");
+    assertThat(consumer.receive(500).getPayload()).isEqualTo("message-1");
+    assertThat(consumer.receive(100)).isNull();
+  }
+
+  @Test
+  public void createConsumerEndpoint_shouldPreferInstanceIndexList() {
+    ExtendedConsumerProperties<MqttSourceProperties> properties = consumerProperties("client-0");
+    properties.setPartitioned(true);
+    properties.setInstanceIndexList(Arrays.asList(0, 2));
+
+    startConsumer(null, properties);
+
+    assertThat(broker.subscribedFilters()).containsExactly(topic + "/0", topic + "/2");
+  }
+
+  @Test
+  public void provisionProducerDestination_shouldNameOneSubTopicPerPartition() {
+    ExtendedProducerProperties<MqttSinkProperties> properties =
+        new ExtendedProducerProperties<>(new MqttSinkProperties());
+    properties.setPartitionCount(4);
+
+    ProducerDestination destination =
+        provisioningProvider.provisionProducerDestination(topic, properties);
+
+    assertThat(destination.getNameForPartition(3)).isEqualTo(topic + "/3");
+  }
+
+  @Test
+  public void provisionProducerDestination_shouldRejectPartitionedWildcards() {
+    ExtendedProducerProperties<MqttSinkProperties> properties =
+        new ExtendedProducerProperties<>(new MqttSinkProperties());
+    properties.setPartitionCount(2);
+    properties.setPartitionKeyExpression(new LiteralExpression("key"));
+
+    assertThatThrownBy(() -> provisioningProvider.provisionProducerDestination("a/#", properties))
+        .isInstanceOf(ProvisioningException.class);
+    assertThatThrownBy(() -> provisioningProvider.provisionProducerDestination("a/+", properties))
+        .isInstanceOf(ProvisioningException.class);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void createProducerMessageHandler_shouldDeferConnectToFirstPublishWhenLazy() {
+    binderConfigurationProperties.setConnectMode(ConnectMode.LAZY);
+    Mqtt5BlockingClient client =
+        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
+    MqttPublishBuilder.Send<Mqtt5PublishResult> publishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(publishBuilder).when(client).publishWith();
+    Mockito.doReturn(client)
+        .when(clientRegistry)
+        .acquire(Mockito.anyString(), Mockito.any(), Mockito.any());
+    ExtendedProducerProperties<MqttSinkProperties> properties =
+        new ExtendedProducerProperties<>(new MqttSinkProperties());
+    MqttV5MessageHandler handler =
+        binder.createProducerMessageHandler(
+            provisioningProvider.provisionProducerDestination(topic, properties), properties, null);
+
+    handler.afterPropertiesSet();
+    handler.start();
+
+    verify(clientRegistry, never()).acquire(Mockito.anyString(), Mockito.any(), Mockito.any());
+
+    handler.handleMessage(MessageBuilder.withPayload("message").build());
+    handler.handleMessage(MessageBuilder.withPayload("message").build());
+
+    verify(clientRegistry).acquire(Mockito.anyString(), Mockito.any(), Mockito.any());
+    verify(publishBuilder, times(2)).send();
+  }
+
+  private ExtendedConsumerProperties<MqttSourceProperties> consumerProperties(String clientId) {
+    MqttSourceProperties sourceProperties = new MqttSourceProperties();
+    sourceProperties.setClientId(clientId);
+
+    return new ExtendedConsumerProperties<>(sourceProperties);
+  }
+
+  private QueueChannel startConsumer(String group, String clientId) {
+    return startConsumer(group, consumerProperties(clientId));
+  }
+
+  private QueueChannel startConsumer(
+      String group, ExtendedConsumerProperties<MqttSourceProperties> properties) {
+    ConsumerDestination destination =
+        provisioningProvider.provisionConsumerDestination(topic, group, properties);
+
+    QueueChannel outputChannel = new QueueChannel();
+    MessageProducerSupport adapter =
+        (MessageProducerSupport) binder.createConsumerEndpoint(destination, group, properties);
+    adapter.setOutputChannel(outputChannel);
+    adapter.afterPropertiesSet();
+    adapter.start();
+
+    return outputChannel;
+  }
+
+  private int drain(QueueChannel channel) {
+    int received = 0;
+    while (channel.receive(500) != null) {
+      received++;
+    }
+
+    return received;
+  }
+
+  /**
+   * Minimal stand-in for an MQTT 5 broker: plain subscriptions receive every matching message,
+   * shared subscriptions of the same group receive them in turn.
+   */
+  private static class BrokerStandIn {
+
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private int nextSharedMember;
+
+    List<String> subscribedFilters() {
+      List<String> filters = new ArrayList<>();
+      subscriptions.forEach(subscription -> filters.add(subscription.filter));
+
+      return filters;
+    }
+
+    void publish(String topic, String payload) {
+      Mqtt5Publish publish =
+          Mqtt5Publish.builder()
+              .topic(topic)
+              .qos(MqttQos.AT_LEAST_ONCE)
+              .payload(payload.getBytes())
+              .build();
+      // subscriptions acknowledge manually, so hand out publishes that can be acknowledged
+      Mqtt5Publish received =
+          Mockito.mock(
+              Mqtt5Publish.class,
+              withSettings().defaultAnswer(AdditionalAnswers.delegatesTo(publish)).stubOnly());
+      Mockito.doNothing().when(received).acknowledge();
+      List<Subscription> sharedMembers = new ArrayList<>();
+      for (Subscription subscription : subscriptions) {
+        MqttTopicFilter topicFilter = MqttTopicFilter.of(subscription.filter);
+        if (topicFilter.isShared()) {
+          if (((MqttSharedTopicFilter) topicFilter).getTopicFilter().matches(publish.getTopic())) {
+            sharedMembers.add(subscription);
+          }
+        } else if (topicFilter.matches(publish.getTopic())) {
+          subscription.callback.accept(received);
+        }
+      }
+      if (!sharedMembers.isEmpty()) {
+        sharedMembers.get(nextSharedMember++ % sharedMembers.size()).callback.accept(received);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    Mqtt5BlockingClient connect() {
+      Mqtt5BlockingClient blockingClient =
+          Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
+      Mqtt5AsyncClient asyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+      Mockito.doReturn(asyncClient).when(blockingClient).toAsync();
+
+      Mockito.doAnswer(
+              inv -> {
+                AtomicReference<String> filter = new AtomicReference<>();
+                Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete builder =
+                    Mockito.mock(
+                        Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete.class,
+                        withSettings()
+                            .extraInterfaces(
+                                Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex.class)
+                            .defaultAnswer(Mockito.RETURNS_SELF));
+                Mockito.doAnswer(
+                        topicFilter -> {
+                          filter.set(topicFilter.getArgument(0));
+                          return builder;
+                        })
+                    .when(builder)
+                    .topicFilter(Mockito.anyString());
+                Mockito.doAnswer(
+                        callback -> {
+                          subscriptions.add(
+                              new Subscription(filter.get(), callback.getArgument(0)));
+                          return builder;
+                        })
+                    .when(builder)
+                    .callback(Mockito.any());
+                Mockito.doReturn(builder)
+                    .when((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) builder)
+                    .executor(Mockito.any());
+                Mockito.doReturn(builder)
+                    .when((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) builder)
+                    .manualAcknowledgement(Mockito.anyBoolean());
+                Mockito.doReturn(new CompletableFuture<>()).when(builder).send();
+
+                return builder;
+              })
+          .when(asyncClient)
+          .subscribeWith();
+      Mockito.doReturn(
+              Mockito.mock(
+                  Mqtt5UnsubscribeBuilder.Send.Start.class,
+                  withSettings()
+                      .extraInterfaces(Mqtt5UnsubscribeBuilder.Send.Complete.class)
+                      .defaultAnswer(Mockito.RETURNS_SELF)))
+          .when(asyncClient)
+          .unsubscribeWith();
+
+      return blockingClient;
+    }
+
+    private static class Subscription {
+      private final String filter;
+      private final Consumer<Mqtt5Publish> callback;
+
+      private Subscription(String filter, Consumer<Mqtt5Publish> callback) {
+        this.filter = filter;
+        this.callback = callback;
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package org.springframework.cloud.binder.mqtt.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+public class MqttPayloadCodecRegistryTest {
+
+  private final MqttPayloadCodecRegistry registry =
+      new MqttPayloadCodecRegistry(new ObjectMapper());
+
+  @Test
+  public void getCodec_shouldEncodeJsonWithoutContentType() throws IOException {
+    MqttPayloadCodec codec = registry.getCodec(null);
+
+    assertThat(codec.getContentType()).isEqualTo(MimeTypeUtils.APPLICATION_JSON);
+    assertThat(new String(codec.encode(Collections.singletonMap("name", "value"))))
+        .isEqualTo("{\"name\":\"value\"}");
+  }
+
+  @Test
+  public void getCodec_shouldEncodeCbor() throws IOException {
+    MqttPayloadCodec codec = registry.getCodec(MimeType.valueOf("application/cbor"));
+    Map<String, String> payload = Collections.singletonMap("name", "value");
+
+    byte[] encoded = codec.encode(payload);
+
+    assertThat(new CBORMapper().readValue(encoded, new TypeReference<Map<String, String>>() {}))
+        .isEqualTo(payload);
+    assertThat(encoded.length).isLessThan(new ObjectMapper().writeValueAsBytes(payload).length);
+  }
+
+  @Test
+  public void getCodec_shouldIgnoreContentTypeParameters() {
+    assertThat(registry.getCodec(MimeType.valueOf("application/json;charset=UTF-8")))
+        .isSameAs(registry.getCodec(null));
+  }
+
+  @Test
+  public void getCodec_shouldPreferRegisteredCodecs() {
+    MqttPayloadCodec custom = Mockito.mock(MqttPayloadCodec.class);
+    Mockito.doReturn(true).when(custom).supports(MimeTypeUtils.APPLICATION_JSON);
+    MqttPayloadCodecRegistry registry =
+        new MqttPayloadCodecRegistry(new ObjectMapper(), Collections.singletonList(custom));
+
+    assertThat(registry.getCodec(MimeTypeUtils.APPLICATION_JSON)).isSameAs(custom);
+  }
+
+  @Test
+  public void getCodec_shouldFallBackToJsonForUnknownContentType() {
+    assertThat(registry.getCodec(MimeType.valueOf("application/x-unknown")))
+        .isSameAs(registry.getCodec(null));
+  }
+}
@@ -0,0 +1,58 @@
+package org.springframework.cloud.binder.mqtt.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class PayloadCompressionTest {
+
+  @ParameterizedTest
+  @EnumSource(PayloadCompression.class)
+  public void decompress_shouldRestoreCompressedPayload(PayloadCompression compression)
+      throws IOException {
+    byte[] payload = repetitiveJson();
+
+    byte[] compressed = compression.compress(payload);
+
+    assertThat(compressed.length).isLessThan(payload.length / 4);
+    assertThat(compression.decompress(compressed, payload.length)).isEqualTo(payload);
+  }
+
+  @ParameterizedTest
+  @EnumSource(PayloadCompression.class)
+  public void decompress_shouldRejectPayloadExceedingMaximumSize(PayloadCompression compression)
+      throws IOException {
+    byte[] compressed = compression.compress(new byte[1024 * 1024]);
+
+    assertThatThrownBy(() -> compression.decompress(compressed, 64 * 1024))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("exceeds 65536 bytes");
+  }
+
+  @Test
+  public void forEncoding_shouldResolveUserPropertyValue() {
+    assertThat(PayloadCompression.forEncoding("gzip")).isEqualTo(PayloadCompression.GZIP);
+    assertThat(PayloadCompression.forEncoding("DEFLATE")).isEqualTo(PayloadCompression.DEFLATE);
+  }
+
+  @Test
+  public void forEncoding_shouldNotResolveUnknownEncoding() {
+    assertThat(PayloadCompression.forEncoding("br")).isNull();
+  }
+
+  private byte[] repetitiveJson() {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 200; i++) {
+      json.append("{\"deviceId\":\"device-1\",\"temperature\":21.5,\"sequence\":")
+          .append(i)
+          .append("},");
+    }
+
+    return json.append("{}]").toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
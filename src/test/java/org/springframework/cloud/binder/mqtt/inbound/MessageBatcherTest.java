@@ -0,0 +1,87 @@
+package org.springframework.cloud.binder.mqtt.inbound;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+public class MessageBatcherTest {
+
+  private ScheduledExecutorService scheduler;
+  private BlockingQueue<List<Message<?>>> batches;
+
+  @BeforeEach
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    batches = new LinkedBlockingQueue<>();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void add_shouldEmitFullBatch() {
+    MessageBatcher batcher = new MessageBatcher(3, 1024, 60_000, scheduler, batches::add);
+
+    for (int i = 0; i < 7; i++) {
+      batcher.add(buildMessage(i), 1);
+    }
+
+    assertThat(batches).hasSize(2);
+    assertThat(payloads(batches.poll())).containsExactly(0, 1, 2);
+    assertThat(payloads(batches.poll())).containsExactly(3, 4, 5);
+  }
+
+  @Test
+  public void add_shouldEmitBatchBeforeExceedingMaxBytes() {
+    MessageBatcher batcher = new MessageBatcher(100, 10, 60_000, scheduler, batches::add);
+
+    batcher.add(buildMessage(0), 4);
+    batcher.add(buildMessage(1), 4);
+    batcher.add(buildMessage(2), 4);
+
+    assertThat(batches).hasSize(1);
+    assertThat(payloads(batches.poll())).containsExactly(0, 1);
+  }
+
+  @Test
+  public void add_shouldEmitPartialBatchAfterTimeout() throws InterruptedException {
+    MessageBatcher batcher = new MessageBatcher(100, 1024, 50, scheduler, batches::add);
+
+    batcher.add(buildMessage(0), 1);
+    batcher.add(buildMessage(1), 1);
+
+    List<Message<?>> batch = batches.poll(1, TimeUnit.SECONDS);
+    assertThat(payloads(batch)).containsExactly(0, 1);
+    assertThat(batches.poll(200, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  public void flush_shouldIgnoreEmptyBatch() {
+    MessageBatcher batcher = new MessageBatcher(100, 1024, 60_000, scheduler, batches::add);
+
+    batcher.flush();
+
+    assertThat(batches).isEmpty();
+  }
+
+  private List<Object> payloads(List<Message<?>> batch) {
+    return batch.stream().map(Message::getPayload).collect(Collectors.toList());
+  }
+
+  private Message<Integer> buildMessage(int payload) {
+    return MessageBuilder.withPayload(payload).build();
+  }
+}
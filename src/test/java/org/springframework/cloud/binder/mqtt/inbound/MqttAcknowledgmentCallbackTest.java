@@ -0,0 +1,41 @@
+package org.springframework.cloud.binder.mqtt.inbound;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.integration.acks.AcknowledgmentCallback.Status;
+
+public class MqttAcknowledgmentCallbackTest {
+
+  private final Mqtt5Publish mqtt5Publish = Mockito.mock(Mqtt5Publish.class);
+  private final MqttAcknowledgmentCallback acknowledgmentCallback =
+      new MqttAcknowledgmentCallback(mqtt5Publish::acknowledge);
+
+  @Test
+  public void acknowledge_shouldAcknowledgePublishOnce() {
+    acknowledgmentCallback.acknowledge(Status.ACCEPT);
+    acknowledgmentCallback.acknowledge(Status.ACCEPT);
+
+    verify(mqtt5Publish, times(1)).acknowledge();
+    assertThat(acknowledgmentCallback.isAcknowledged()).isTrue();
+  }
+
+  @Test
+  public void acknowledge_shouldAcknowledgeRejectedPublish() {
+    acknowledgmentCallback.acknowledge(Status.REJECT);
+
+    verify(mqtt5Publish).acknowledge();
+  }
+
+  @Test
+  public void acknowledge_shouldAcknowledgeRequeuedPublish() {
+    acknowledgmentCallback.acknowledge(Status.REQUEUE);
+
+    verify(mqtt5Publish).acknowledge();
+    assertThat(acknowledgmentCallback.isAcknowledged()).isTrue();
+  }
+}
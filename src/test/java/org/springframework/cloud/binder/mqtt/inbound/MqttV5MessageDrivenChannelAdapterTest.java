@@ -1,97 +1,947 @@
 package org.springframework.cloud.binder.mqtt.inbound;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.withSettings;
 
-import com.hivemq.client.internal.mqtt.MqttRxClientBuilder;
-import com.hivemq.client.internal.mqtt.MqttRxClientBuilderBase;
-import com.hivemq.client.internal.mqtt.message.auth.MqttSimpleAuthBuilder;
-import com.hivemq.client.mqtt.MqttClient;
-import com.hivemq.client.mqtt.MqttClientBuilder;
-import com.hivemq.client.mqtt.MqttGlobalPublishFilter;
 import com.hivemq.client.mqtt.datatypes.MqttQos;
 import com.hivemq.client.mqtt.datatypes.MqttTopic;
 import com.hivemq.client.mqtt.datatypes.MqttUtf8String;
-import com.hivemq.client.mqtt.lifecycle.MqttClientAutoReconnectBuilder;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
 import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
-import com.hivemq.client.mqtt.mqtt5.Mqtt5ClientBuilder;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5RxClient;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperties;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperty;
 import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
-import com.hivemq.client.mqtt.mqtt5.message.subscribe.Mqtt5SubscribeBuilder;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5PublishResult;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.Mqtt5Subscribe;
 import com.hivemq.client.mqtt.mqtt5.message.subscribe.suback.Mqtt5SubAck;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.Mqtt5UnsubscribeBuilder;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.unsuback.Mqtt5UnsubAck;
+import com.hivemq.client.rx.FlowableWithSingle;
+import io.reactivex.Flowable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import org.junit.jupiter.api.BeforeAll;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.AdditionalAnswers;
 import org.mockito.ArgumentCaptor;
-import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
-import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.cloud.binder.mqtt.codec.PayloadCompression;
+import org.springframework.cloud.binder.mqtt.support.ConnectionOptions;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttHeaders;
+import org.springframework.cloud.binder.mqtt.support.StripedExecutor;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.StaticMessageHeaderAccessor;
+import org.springframework.integration.acks.AcknowledgmentCallback;
+import org.springframework.integration.channel.QueueChannel;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessagingException;
+import reactor.core.publisher.BaseSubscriber;
 
 @ExtendWith(MockitoExtension.class)
 @MockitoSettings(strictness = Strictness.LENIENT)
 public class MqttV5MessageDrivenChannelAdapterTest {
 
-  private static MqttV5MessageDrivenChannelAdapter adapter;
-  private static MqttBinderConfigurationProperties configurationProperties;
-  private static String clientId;
-  private static String topic;
+  private static final String clientId = "client";
+  private static final String topic = "topic";
 
-  @BeforeAll
-  public static void setUp() {
-    configurationProperties = new MqttBinderConfigurationProperties();
-    clientId = "client";
-    topic = "topic";
-    adapter =
-        Mockito.spy(
-            new MqttV5MessageDrivenChannelAdapter(configurationProperties, clientId, topic));
+  private MqttClientRegistry clientRegistry;
+  private Mqtt5BlockingClient mqtt5BlockingClient;
+
+  @BeforeEach
+  public void setUp() {
+    clientRegistry = Mockito.mock(MqttClientRegistry.class);
+    mqtt5BlockingClient =
+        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
+    Mockito.doReturn(mqtt5BlockingClient)
+        .when(clientRegistry)
+        .acquire(Mockito.eq(clientId), Mockito.isNull(), Mockito.isNull(), Mockito.any());
   }
 
   @Test
-  public void onInit_shouldWork() {
-    Mqtt5BlockingClient mqtt5BlockingClient =
-        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
-    MockedStatic<MqttClient> mqttClientMockedStatic = Mockito.mockStatic(MqttClient.class);
-    initMockForMqttClient(mqttClientMockedStatic, mqtt5BlockingClient);
+  public void doStartAndStop_shouldAcquireAndReleaseSharedClient() {
+    initMockForSubscribe(mqtt5BlockingClient);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic);
+
+    adapter.doStart();
+    verify(clientRegistry).acquire(clientId, null, null, ConnectionOptions.NONE);
+
+    adapter.doStop();
+    verify(clientRegistry).release(mqtt5BlockingClient);
+  }
 
-    adapter.onInit();
+  @SuppressWarnings("unchecked")
+  @Test
+  public void doStartAndStop_shouldKeepSubscriptionsOfPersistentSession() {
+    ConnectionOptions persistentSession = new ConnectionOptions(null, null, false, 3600L);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic);
+    adapter.setConnectionOptions(persistentSession);
+    Mockito.doReturn(true).when(clientRegistry).isMultiplexed(mqtt5BlockingClient);
+
+    adapter.doStart();
 
-    verify(mqtt5BlockingClient).connect();
+    verify(clientRegistry).acquire(clientId, null, null, persistentSession);
+    verify(clientRegistry)
+        .subscribe(
+            Mockito.eq(mqtt5BlockingClient),
+            Mockito.eq(topic),
+            Mockito.eq(MqttQos.AT_LEAST_ONCE),
+            Mockito.any(BiConsumer.class));
+    verify(mqtt5BlockingClient, never()).toAsync();
 
-    mqttClientMockedStatic.close();
+    adapter.doStop();
+
+    verify(clientRegistry)
+        .detach(Mockito.eq(mqtt5BlockingClient), Mockito.eq(topic), Mockito.any(BiConsumer.class));
+    verify(mqtt5BlockingClient, never()).toAsync();
+    verify(clientRegistry).release(mqtt5BlockingClient);
   }
 
   @SuppressWarnings("unchecked")
   @Test
-  public void doStart_shouldWork() throws InterruptedException {
-    Mqtt5BlockingClient mqtt5BlockingClient =
-        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
-    MockedStatic<MqttClient> mqttClientMockedStatic = Mockito.mockStatic(MqttClient.class);
-    initMockForMqttClient(mqttClientMockedStatic, mqtt5BlockingClient);
-
-    Mqtt5SubscribeBuilder.Send.Start<Mqtt5SubAck> mqtt5SubscribeBuilder =
-        Mockito.mock(Mqtt5SubscribeBuilder.Send.Start.class);
-    Mqtt5SubscribeBuilder.Send.Start.Complete<?> complete =
-        Mockito.mock(Mqtt5SubscribeBuilder.Send.Start.Complete.class);
-    Mqtt5SubscribeBuilder.Send.Start.Complete<?> completeBuilder =
-        Mockito.mock(Mqtt5SubscribeBuilder.Send.Start.Complete.class);
-    Mqtt5BlockingClient.Mqtt5Publishes publishes =
-        Mockito.mock(Mqtt5BlockingClient.Mqtt5Publishes.class);
-    Mqtt5Publish mqtt5Publish = Mockito.mock(Mqtt5Publish.class);
+  public void doStart_shouldRunAcknowledgementHandedOutByMultiplexedClient() {
+    // not spied, the callback handed to the registry is bound to the adapter itself
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic);
+    adapter.setOutputChannel(new QueueChannel());
+    Mockito.doReturn(true).when(clientRegistry).isMultiplexed(mqtt5BlockingClient);
+    ArgumentCaptor<BiConsumer<Mqtt5Publish, Runnable>> callback =
+        ArgumentCaptor.forClass(BiConsumer.class);
+    Mqtt5Publish mqtt5Publish = mockPublish();
+    Runnable acknowledgement = Mockito.mock(Runnable.class);
+
+    adapter.doStart();
+    verify(clientRegistry)
+        .subscribe(
+            Mockito.eq(mqtt5BlockingClient),
+            Mockito.eq(topic),
+            Mockito.eq(MqttQos.AT_LEAST_ONCE),
+            callback.capture());
+    callback.getValue().accept(mqtt5Publish, acknowledgement);
+
+    // the client acknowledges once every binding the message was handed to has done so
+    verify(acknowledgement, timeout(1000)).run();
+    verify(mqtt5Publish, never()).acknowledge();
+
+    adapter.doStop();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void doStart_shouldWork() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        Mockito.spy(new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic));
+    ArgumentCaptor<Message<String>> messageArgumentCaptor = ArgumentCaptor.forClass(Message.class);
+    Mockito.doNothing().when(adapter).sendMessage(Mockito.any(Message.class));
+
+    adapter.doStart();
+    callback.accept(mockPublish());
+
+    verify(adapter, timeout(1000)).sendMessage(messageArgumentCaptor.capture());
+    assertThat(messageArgumentCaptor.getValue().getPayload()).isEqualTo("payload");
+    verify(mqtt5BlockingClient, never()).publishes(Mockito.any());
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldDispatchBurstWithoutPollingDelay() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch received = new CountDownLatch(10_000);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            received.countDown();
+          }
+        };
+    Mqtt5Publish mqtt5Publish =
+        acknowledgeable(
+            Mqtt5Publish.builder()
+                .topic(topic)
+                .qos(MqttQos.AT_LEAST_ONCE)
+                .payload("payload".getBytes())
+                .contentType("application/json")
+                .build());
+
+    adapter.doStart();
+    for (int i = 0; i < 10_000; i++) {
+      callback.accept(mqtt5Publish);
+    }
+
+    // the former receiveNow()/Thread.sleep(1) loop needed at least 10 seconds for this burst. Only
+    // the wait after the burst is bounded, handing the burst over through the mocks is slow itself
+    assertThat(awaitQuietly(received, 5)).isTrue();
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldNotConsumeCpuWhileIdle() throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch received = new CountDownLatch(1);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            received.countDown();
+          }
+        };
+
+    adapter.doStart();
+    callback.accept(mockPublish());
+    assertThat(awaitQuietly(received, 1)).isTrue();
+
+    long cpuBefore = inboundThreadsCpuTime();
+    Thread.sleep(500);
+    long idleCpu = inboundThreadsCpuTime() - cpuBefore;
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(idleCpu)).isLessThan(50);
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldProcessOtherTopicsWhileOneTopicIsSlow() throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch fastReceived = new CountDownLatch(1);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, "site/#") {
+          @Override
+          public void sendMessage(Message<?> message) {
+            if ("site/slow".equals(message.getHeaders().get("mqtt_receivedTopic"))) {
+              awaitQuietly(release, 5);
+            } else {
+              fastReceived.countDown();
+            }
+          }
+        };
+    adapter.setConcurrency(4);
+    String slowTopic = "site/slow";
+    String fastTopic = topicOnOtherDispatchThread(slowTopic);
+
+    adapter.doStart();
+    callback.accept(buildPublish(slowTopic, Mqtt5UserProperties.of()));
+    callback.accept(buildPublish(fastTopic, Mqtt5UserProperties.of()));
+
+    assertThat(fastReceived.await(1, TimeUnit.SECONDS)).isTrue();
+    release.countDown();
+    adapter.doStop();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void doStart_shouldKeepUserPropertiesApartFromHeaders() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        Mockito.spy(new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic));
+    adapter.setConcurrency(2);
+    adapter.setDispatchKeyHeader("deviceId");
+    ArgumentCaptor<Message<String>> messageArgumentCaptor = ArgumentCaptor.forClass(Message.class);
+    Mockito.doNothing().when(adapter).sendMessage(Mockito.any(Message.class));
+
+    adapter.doStart();
+    callback.accept(
+        buildPublish(
+            topic,
+            Mqtt5UserProperties.builder()
+                .add("deviceId", "device-1")
+                .add(IntegrationMessageHeaderAccessor.DELIVERY_ATTEMPT, "9")
+                .build()));
+
+    verify(adapter, timeout(1000)).sendMessage(messageArgumentCaptor.capture());
+    assertThat(messageArgumentCaptor.getValue().getHeaders())
+        .doesNotContainKeys("deviceId", IntegrationMessageHeaderAccessor.DELIVERY_ATTEMPT)
+        .containsEntry(
+            MqttHeaders.RECEIVED_USER_PROPERTIES,
+            Map.of("deviceId", "device-1", IntegrationMessageHeaderAccessor.DELIVERY_ATTEMPT, "9"));
+
+    adapter.doStop();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void doStart_shouldDeliverBatchesWithPerRecordHeaders() throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, "site/#") {
+          @Override
+          public void sendMessage(Message<?> message) {
+            received.add(message);
+          }
+        };
+    adapter.setBatchMode(true);
+    adapter.setBatchSize(2);
+    adapter.setBatchTimeout(60_000);
+
+    adapter.doStart();
+    callback.accept(buildPublish("site/a", Mqtt5UserProperties.of()));
+    callback.accept(buildPublish("site/b", Mqtt5UserProperties.of()));
+    callback.accept(buildPublish("site/c", Mqtt5UserProperties.of()));
+
+    Message<?> batch = received.poll(1, TimeUnit.SECONDS);
+    assertThat((List<Object>) batch.getPayload()).containsExactly("payload", "payload");
+    assertThat(
+            (List<Map<String, Object>>)
+                batch.getHeaders().get(MqttV5MessageDrivenChannelAdapter.BATCHED_HEADERS))
+        .extracting(headers -> headers.get("mqtt_receivedTopic"))
+        .containsExactly("site/a", "site/b");
+
+    // stopping emits the partial batch
+    adapter.doStop();
+    assertThat((List<Object>) received.poll(1, TimeUnit.SECONDS).getPayload()).hasSize(1);
+  }
+
+  @Test
+  public void doStart_shouldHandOutReceivedByteBuffer() throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter = buildCollectingAdapter(received);
+    adapter.setPayloadMode(PayloadMode.BYTE_BUFFER);
+    Mqtt5Publish mqtt5Publish = buildPublish(topic, Mqtt5UserProperties.of());
+
+    adapter.doStart();
+    callback.accept(mqtt5Publish);
+
+    ByteBuffer payload = (ByteBuffer) received.poll(1, TimeUnit.SECONDS).getPayload();
+    assertThat(payload.isReadOnly()).isTrue();
+    assertThat(payload).isEqualTo(mqtt5Publish.getPayload().get());
+    // consuming the payload must not move the position of the received buffer
+    payload.get(new byte[payload.remaining()]);
+    assertThat(mqtt5Publish.getPayload().get().remaining()).isEqualTo("payload".length());
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldHandOutUtf8CharSequence() throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter = buildCollectingAdapter(received);
+    adapter.setPayloadMode(PayloadMode.CHAR_SEQUENCE);
+
+    adapter.doStart();
+    callback.accept(
+        Mqtt5Publish.builder()
+            .topic(topic)
+            .payload("{\"name\":\"Grüße\"}".getBytes(StandardCharsets.UTF_8))
+            .build());
+
+    CharSequence payload = (CharSequence) received.poll(1, TimeUnit.SECONDS).getPayload();
+    assertThat(payload.toString()).isEqualTo("{\"name\":\"Grüße\"}");
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldDecompressPayloadBeforeConversion() throws Exception {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter = buildCollectingAdapter(received);
+
+    adapter.doStart();
+    callback.accept(
+        Mqtt5Publish.builder()
+            .topic(topic)
+            .payload(PayloadCompression.DEFLATE.compress("{\"name\":\"value\"}".getBytes()))
+            .contentType("application/json")
+            .userProperties(
+                Mqtt5UserProperties.builder()
+                    .add(PayloadCompression.USER_PROPERTY, PayloadCompression.DEFLATE.getEncoding())
+                    .build())
+            .build());
+
+    Message<?> message = received.poll(1, TimeUnit.SECONDS);
+    assertThat(message.getPayload()).isEqualTo("{\"name\":\"value\"}");
+    assertThat(message.getHeaders()).doesNotContainKey(PayloadCompression.USER_PROPERTY);
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldRejectPayloadInflatingBeyondMaximumSize() throws Exception {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter = buildCollectingAdapter(received);
+    adapter.setMaxDecompressedSize(1024);
+
+    adapter.doStart();
+    callback.accept(
+        Mqtt5Publish.builder()
+            .topic(topic)
+            .payload(PayloadCompression.GZIP.compress(new byte[1024 * 1024]))
+            .userProperties(
+                Mqtt5UserProperties.builder()
+                    .add(PayloadCompression.USER_PROPERTY, PayloadCompression.GZIP.getEncoding())
+                    .build())
+            .build());
+    callback.accept(Mqtt5Publish.builder().topic(topic).payload("next".getBytes()).build());
+
+    assertThat(received.poll(1, TimeUnit.SECONDS).getPayload()).isEqualTo("next");
+    assertThat(received).isEmpty();
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldPassPayloadOfUnknownEncodingThrough() throws Exception {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter = buildCollectingAdapter(received);
+
+    adapter.doStart();
+    callback.accept(
+        Mqtt5Publish.builder()
+            .topic(topic)
+            .payload(new byte[] {1, 2, 3})
+            .contentType("application/octet-stream")
+            .userProperties(
+                Mqtt5UserProperties.builder().add(PayloadCompression.USER_PROPERTY, "br").build())
+            .build());
+
+    Message<?> message = received.poll(1, TimeUnit.SECONDS);
+    assertThat(message.getPayload()).isEqualTo(new byte[] {1, 2, 3});
+    assertThat(message.getHeaders())
+        .containsEntry(
+            MqttHeaders.RECEIVED_USER_PROPERTIES,
+            Collections.singletonMap(PayloadCompression.USER_PROPERTY, "br"));
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldAcknowledgeOnlyAfterMessageWasHandled() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch handled = new CountDownLatch(1);
+    AtomicReference<Object> acknowledgmentCallback = new AtomicReference<>();
+    Mqtt5Publish mqtt5Publish = mockPublish();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            acknowledgmentCallback.set(
+                message.getHeaders().get(IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK));
+            verify(mqtt5Publish, never()).acknowledge();
+            handled.countDown();
+          }
+        };
+    adapter.setManualAcknowledgement(true);
+
+    adapter.doStart();
+    callback.accept(mqtt5Publish);
 
-    Mockito.doReturn(mqtt5SubscribeBuilder).when(mqtt5BlockingClient).subscribeWith();
-    Mockito.doReturn(complete).when(mqtt5SubscribeBuilder).topicFilter(topic);
-    Mockito.doReturn(completeBuilder).when(complete).qos(MqttQos.AT_LEAST_ONCE);
+    assertThat(awaitQuietly(handled, 1)).isTrue();
+    verify(mqtt5Publish, timeout(1000)).acknowledge();
+    assertThat(acknowledgmentCallback.get()).isInstanceOf(AcknowledgmentCallback.class);
 
-    Mockito.doReturn(publishes)
-        .when(mqtt5BlockingClient)
-        .publishes(MqttGlobalPublishFilter.SUBSCRIBED);
-    Mockito.doReturn(Optional.of(mqtt5Publish), Optional.empty()).when(publishes).receiveNow();
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldAcknowledgeOnceLastDeliveryAttemptFailed() throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch firstAttempt = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Mqtt5Publish mqtt5Publish = mockPublish();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            if (firstAttempt.getCount() == 0) {
+              awaitQuietly(release, 5);
+            }
+            firstAttempt.countDown();
+            throw new IllegalStateException("database down");
+          }
+        };
+    adapter.setManualAcknowledgement(true);
+    adapter.setMaxAttempts(2);
+    adapter.setBackOffInitialInterval(1);
+
+    adapter.doStart();
+    callback.accept(mqtt5Publish);
+
+    assertThat(awaitQuietly(firstAttempt, 1)).isTrue();
+    Thread.sleep(100);
+    // the failed message must not hold a receive maximum slot until the session is resumed
+    verify(mqtt5Publish, never()).acknowledge();
+    release.countDown();
+    verify(mqtt5Publish, timeout(1000)).acknowledge();
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldRetryFailedMessageWithoutHoldingUpFollowingMessages()
+      throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            int attempt = StaticMessageHeaderAccessor.getDeliveryAttempt(message).get();
+            if (message.getPayload().equals("poison") && attempt < 3) {
+              throw new IllegalStateException("attempt " + attempt);
+            }
+            delivered.add(message.getPayload() + "@" + attempt);
+          }
+        };
+    adapter.setMaxAttempts(3);
+    adapter.setBackOffInitialInterval(50);
+
+    adapter.doStart();
+    callback.accept(buildPublish("poison"));
+    callback.accept(buildPublish("payload"));
+
+    assertThat(delivered.poll(1, TimeUnit.SECONDS)).isEqualTo("payload@1");
+    assertThat(delivered.poll(1, TimeUnit.SECONDS)).isEqualTo("poison@3");
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldPublishDeadLetterAfterLastAttempt() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    Mqtt5Publish mqtt5Publish =
+        Mockito.mock(
+            Mqtt5Publish.class,
+            withSettings()
+                .defaultAnswer(
+                    AdditionalAnswers.delegatesTo(
+                        Mqtt5Publish.builder()
+                            .topic(topic)
+                            .qos(MqttQos.AT_LEAST_ONCE)
+                            .payload("payload".getBytes())
+                            .userProperties(Mqtt5UserProperties.of(Mqtt5UserProperty.of("k", "v")))
+                            .build())));
+    Mockito.doNothing().when(mqtt5Publish).acknowledge();
+    Mqtt5AsyncClient mqtt5AsyncClient = mqtt5BlockingClient.toAsync();
+    ArgumentCaptor<Mqtt5Publish> deadLetter = ArgumentCaptor.forClass(Mqtt5Publish.class);
+    Mockito.doReturn(
+            CompletableFuture.completedFuture(
+                Mockito.mock(
+                    Mqtt5PublishResult.class,
+                    withSettings().defaultAnswer(inv -> Optional.empty()))))
+        .when(mqtt5AsyncClient)
+        .publish(deadLetter.capture());
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            throw new MessagingException(message, new IllegalStateException("database down"));
+          }
+        };
+    adapter.setManualAcknowledgement(true);
+    adapter.setMaxAttempts(2);
+    adapter.setBackOffInitialInterval(10);
+    adapter.setDeadLetterTopic("dead-letters");
+
+    adapter.doStart();
+    callback.accept(mqtt5Publish);
+
+    verify(mqtt5Publish, timeout(1000)).acknowledge();
+    assertThat(deadLetter.getValue().getTopic()).isEqualTo(MqttTopic.of("dead-letters"));
+    assertThat(deadLetter.getValue().getPayloadAsBytes()).isEqualTo("payload".getBytes());
+    assertThat(deadLetter.getValue().getUserProperties())
+        .isEqualTo(
+            Mqtt5UserProperties.of(
+                Mqtt5UserProperty.of("k", "v"),
+                Mqtt5UserProperty.of(MqttHeaders.ORIGINAL_TOPIC, topic),
+                Mqtt5UserProperty.of(MqttHeaders.EXCEPTION_MESSAGE, "database down")));
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStop_shouldDeadLetterMessagesWaitingForRetry() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    Mqtt5Publish mqtt5Publish =
+        Mockito.mock(
+            Mqtt5Publish.class,
+            withSettings().defaultAnswer(AdditionalAnswers.delegatesTo(buildPublish("payload"))));
+    Mockito.doNothing().when(mqtt5Publish).acknowledge();
+    Mqtt5AsyncClient mqtt5AsyncClient = mqtt5BlockingClient.toAsync();
+    ArgumentCaptor<Mqtt5Publish> deadLetter = ArgumentCaptor.forClass(Mqtt5Publish.class);
+    Mockito.doReturn(
+            CompletableFuture.completedFuture(
+                Mockito.mock(
+                    Mqtt5PublishResult.class,
+                    withSettings().defaultAnswer(inv -> Optional.empty()))))
+        .when(mqtt5AsyncClient)
+        .publish(deadLetter.capture());
+    CountDownLatch failed = new CountDownLatch(1);
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            failed.countDown();
+            throw new IllegalStateException("database down");
+          }
+        };
+    adapter.setManualAcknowledgement(true);
+    adapter.setMaxAttempts(3);
+    adapter.setBackOffInitialInterval(60_000);
+    adapter.setDeadLetterTopic("dead-letters");
+
+    adapter.doStart();
+    callback.accept(mqtt5Publish);
+    assertThat(awaitQuietly(failed, 1)).isTrue();
+    adapter.doStop();
+
+    // the retry is not waited for, the message is dead lettered and acknowledged while stopping
+    assertThat(deadLetter.getValue().getTopic()).isEqualTo(MqttTopic.of("dead-letters"));
+    verify(mqtt5Publish).acknowledge();
+    verify(clientRegistry).release(mqtt5BlockingClient);
+  }
+
+  @Test
+  public void doStop_shouldWaitForMessagesBeingHandledBeforeReleasingClient() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch handling = new CountDownLatch(1);
+    AtomicBoolean handled = new AtomicBoolean();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            handling.countDown();
+            try {
+              Thread.sleep(200);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            handled.set(true);
+          }
+        };
+
+    adapter.doStart();
+    callback.accept(mockPublish());
+    assertThat(awaitQuietly(handling, 1)).isTrue();
+    adapter.doStop();
+
+    assertThat(handled).isTrue();
+    verify(clientRegistry).release(mqtt5BlockingClient);
+  }
+
+  @Test
+  public void doStart_shouldLeaveAcknowledgementToHandlerAfterNoAutoAck() throws Exception {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CompletableFuture<AcknowledgmentCallback> pending = new CompletableFuture<>();
+    Mqtt5Publish mqtt5Publish = mockPublish();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            AcknowledgmentCallback acknowledgmentCallback =
+                StaticMessageHeaderAccessor.getAcknowledgmentCallback(message);
+            acknowledgmentCallback.noAutoAck();
+            pending.complete(acknowledgmentCallback);
+          }
+        };
+    adapter.setManualAcknowledgement(true);
+
+    adapter.doStart();
+    callback.accept(mqtt5Publish);
+
+    AcknowledgmentCallback acknowledgmentCallback = pending.get(1, TimeUnit.SECONDS);
+    Thread.sleep(100);
+    verify(mqtt5Publish, never()).acknowledge();
+    acknowledgmentCallback.acknowledge();
+    verify(mqtt5Publish).acknowledge();
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldAcknowledgeWhenDispatchThreadPicksMessageUp() {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch release = new CountDownLatch(1);
+    Mqtt5Publish first = mockPublish();
+    Mqtt5Publish second = mockPublish();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            awaitQuietly(release, 5);
+          }
+        };
+
+    adapter.doStart();
+    callback.accept(first);
+    callback.accept(second);
+
+    // the first message is being handled, the second one still waits for the dispatch thread
+    verify(first, timeout(1000)).acknowledge();
+    verify(second, never()).acknowledge();
+    release.countDown();
+    verify(second, timeout(1000)).acknowledge();
+
+    adapter.doStop();
+  }
+
+  @Test
+  public void doStart_shouldDropOnlyQos0MessagesWhenDispatchQueueIsFull()
+      throws InterruptedException {
+    Consumer<Mqtt5Publish> callback = initMockForSubscribe(mqtt5BlockingClient);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+          @Override
+          public void sendMessage(Message<?> message) {
+            started.countDown();
+            awaitQuietly(release, 5);
+            received.add(message);
+          }
+        };
+    adapter.setQos0QueueCapacity(1);
+    Mqtt5Publish dropped = atMostOnce();
+
+    adapter.doStart();
+    callback.accept(atMostOnce());
+    assertThat(awaitQuietly(started, 1)).isTrue();
+    callback.accept(atMostOnce());
+    callback.accept(dropped);
+    callback.accept(buildPublish(topic, Mqtt5UserProperties.of()));
+    release.countDown();
+
+    verify(dropped).acknowledge();
+    List<Object> qos = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      qos.add(received.poll(1, TimeUnit.SECONDS).getHeaders().get(MqttHeaders.RECEIVED_QOS));
+    }
+    assertThat(qos).containsExactly(0, 0, 1);
+    assertThat(received.poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+    adapter.doStop();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void receive_shouldPassDemandOnToClient() {
+    initMockForSubscribe(mqtt5BlockingClient);
+    List<Long> requested = new CopyOnWriteArrayList<>();
+    Flowable<Mqtt5Publish> publishes =
+        Flowable.range(0, 10).map(i -> buildPublish("payload-" + i)).doOnRequest(requested::add);
+    FlowableWithSingle<Mqtt5Publish, Mqtt5SubAck> flowable = Mockito.mock(FlowableWithSingle.class);
+    Mockito.doAnswer(
+            inv -> {
+              publishes.subscribe((Subscriber<Mqtt5Publish>) inv.getArgument(0));
+              return null;
+            })
+        .when(flowable)
+        .subscribe(Mockito.any(Subscriber.class));
+    Mqtt5RxClient mqtt5RxClient = Mockito.mock(Mqtt5RxClient.class);
+    Mockito.doReturn(mqtt5RxClient).when(mqtt5BlockingClient).toRx();
+    Mockito.doReturn(flowable)
+        .when(mqtt5RxClient)
+        .subscribePublishes(Mockito.any(Mqtt5Subscribe.class), Mockito.eq(false));
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic);
+    // verifying with a timeout would hold the monitor of the synchronized release meanwhile
+    CountDownLatch released = new CountDownLatch(1);
+    Mockito.doAnswer(
+            inv -> {
+              released.countDown();
+              return null;
+            })
+        .when(clientRegistry)
+        .release(mqtt5BlockingClient);
+    List<Object> received = new CopyOnWriteArrayList<>();
+    CountDownLatch latch = new CountDownLatch(2);
+    BaseSubscriber<Message<?>> subscriber =
+        new BaseSubscriber<Message<?>>() {
+          @Override
+          protected void hookOnSubscribe(Subscription subscription) {
+            subscription.request(2);
+          }
+
+          @Override
+          protected void hookOnNext(Message<?> message) {
+            received.add(message.getPayload());
+            latch.countDown();
+          }
+        };
+
+    adapter.receive().subscribe(subscriber);
+
+    assertThat(awaitQuietly(latch, 5)).isTrue();
+    assertThat(received).containsExactly("payload-0", "payload-1");
+    assertThat(requested).containsExactly(2L);
+
+    subscriber.dispose();
+
+    assertThat(awaitQuietly(released, 5)).isTrue();
+  }
+
+  @Test
+  public void receive_shouldRejectPersistentSession() {
+    MqttV5MessageDrivenChannelAdapter adapter =
+        new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic);
+    adapter.setConnectionOptions(new ConnectionOptions(null, null, false, 3600L));
+
+    assertThatThrownBy(() -> adapter.receive().blockFirst())
+        .isInstanceOf(IllegalStateException.class);
+    verify(clientRegistry, never())
+        .acquire(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+  }
+
+  private Mqtt5Publish atMostOnce() {
+    Mqtt5Publish mqtt5Publish = mockPublish();
+    Mockito.doReturn(MqttQos.AT_MOST_ONCE).when(mqtt5Publish).getQos();
+
+    return mqtt5Publish;
+  }
+
+  private MqttV5MessageDrivenChannelAdapter buildCollectingAdapter(
+      BlockingQueue<Message<?>> received) {
+    return new MqttV5MessageDrivenChannelAdapter(clientRegistry, clientId, topic) {
+      @Override
+      public void sendMessage(Message<?> message) {
+        received.add(message);
+      }
+    };
+  }
+
+  private String topicOnOtherDispatchThread(String topic) {
+    StripedExecutor stripes = new StripedExecutor(4, Thread::new);
+    for (int i = 0; ; i++) {
+      String candidate = "site/fast-" + i;
+      if (stripes.stripeOf(MqttTopic.of(candidate)) != stripes.stripeOf(MqttTopic.of(topic))) {
+        stripes.shutdown();
+        return candidate;
+      }
+    }
+  }
+
+  private Mqtt5Publish buildPublish(String payload) {
+    return Mqtt5Publish.builder()
+        .topic(topic)
+        .qos(MqttQos.AT_LEAST_ONCE)
+        .payload(payload.getBytes())
+        .build();
+  }
+
+  private Mqtt5Publish buildPublish(String topic, Mqtt5UserProperties userProperties) {
+    return Mqtt5Publish.builder()
+        .topic(topic)
+        .qos(MqttQos.AT_LEAST_ONCE)
+        .payload("payload".getBytes())
+        .userProperties(userProperties)
+        .build();
+  }
+
+  private long inboundThreadsCpuTime() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    long cpuTime = 0;
+    for (ThreadInfo threadInfo : threadMXBean.dumpAllThreads(false, false)) {
+      if (threadInfo.getThreadName().startsWith(clientId + "-inbound-")) {
+        cpuTime += Math.max(0, threadMXBean.getThreadCpuTime(threadInfo.getThreadId()));
+      }
+    }
+
+    return cpuTime;
+  }
+
+  private boolean awaitQuietly(CountDownLatch latch, long seconds) {
+    try {
+      return latch.await(seconds, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Consumer<Mqtt5Publish> initMockForSubscribe(Mqtt5BlockingClient mqtt5BlockingClient) {
+    Mqtt5AsyncClient mqtt5AsyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        Mockito.mock(
+            Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete.class,
+            withSettings()
+                .extraInterfaces(Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex.class)
+                .defaultAnswer(Mockito.RETURNS_SELF));
+    Mqtt5UnsubscribeBuilder.Send.Start<CompletableFuture<Mqtt5UnsubAck>> unsubscribeBuilder =
+        Mockito.mock(
+            Mqtt5UnsubscribeBuilder.Send.Start.class,
+            withSettings()
+                .extraInterfaces(Mqtt5UnsubscribeBuilder.Send.Complete.class)
+                .defaultAnswer(Mockito.RETURNS_SELF));
+    AtomicReference<Consumer<Mqtt5Publish>> callback = new AtomicReference<>();
+
+    Mockito.doReturn(mqtt5AsyncClient).when(mqtt5BlockingClient).toAsync();
+    Mockito.doReturn(subscribeBuilder).when(mqtt5AsyncClient).subscribeWith();
+    Mockito.doAnswer(
+            inv -> {
+              callback.set(inv.getArgument(0));
+              return subscribeBuilder;
+            })
+        .when(subscribeBuilder)
+        .callback(Mockito.any());
+    Mockito.doReturn(subscribeBuilder)
+        .when((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) subscribeBuilder)
+        .executor(Mockito.any());
+    Mockito.doReturn(subscribeBuilder)
+        .when((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) subscribeBuilder)
+        .manualAcknowledgement(Mockito.anyBoolean());
+    Mockito.doReturn(new CompletableFuture<>()).when(subscribeBuilder).send();
+    Mockito.doReturn(unsubscribeBuilder).when(mqtt5AsyncClient).unsubscribeWith();
+    Mockito.doReturn(unsubscribeBuilder).when(unsubscribeBuilder).topicFilter(Mockito.anyString());
+
+    return publish -> callback.get().accept(acknowledgeable(publish));
+  }
+
+  /** Publishes built by hand cannot be acknowledged, unlike those received with manual ack. */
+  private static Mqtt5Publish acknowledgeable(Mqtt5Publish mqtt5Publish) {
+    if (Mockito.mockingDetails(mqtt5Publish).isMock()) {
+      return mqtt5Publish;
+    }
+    Mqtt5Publish delegate =
+        Mockito.mock(
+            Mqtt5Publish.class,
+            withSettings().defaultAnswer(AdditionalAnswers.delegatesTo(mqtt5Publish)).stubOnly());
+    Mockito.doNothing().when(delegate).acknowledge();
+
+    return delegate;
+  }
+
+  private Mqtt5Publish mockPublish() {
+    Mqtt5Publish mqtt5Publish = Mockito.mock(Mqtt5Publish.class);
     Mockito.doReturn(Mockito.mock(MqttQos.class, withSettings().defaultAnswer(inv -> 1)))
         .when(mqtt5Publish)
         .getQos();
@@ -107,58 +957,8 @@ public class MqttV5MessageDrivenChannelAdapterTest {
         .getContentType();
     Mockito.doReturn("payload".getBytes()).when(mqtt5Publish).getPayloadAsBytes();
     Mockito.doReturn(false).when(mqtt5Publish).isRetain();
-    Mockito.doNothing().when(adapter).sendMessage(Mockito.any(Message.class));
-    ArgumentCaptor<Message<String>> messageArgumentCaptor = ArgumentCaptor.forClass(Message.class);
-
-    adapter.onInit();
-    adapter.doStart();
+    Mockito.doReturn(Mqtt5UserProperties.of()).when(mqtt5Publish).getUserProperties();
 
-    Thread.sleep(250);
-    adapter.doStop();
-
-    verify(adapter).sendMessage(messageArgumentCaptor.capture());
-    assertThat(messageArgumentCaptor.getValue().getPayload()).isEqualTo("payload");
-
-    mqttClientMockedStatic.close();
-  }
-
-  @SuppressWarnings("unchecked")
-  private void initMockForMqttClient(
-      MockedStatic<MqttClient> mqttClientMockedStatic, Mqtt5BlockingClient mqtt5BlockingClient) {
-    MqttClientBuilder mqttClientBuilder = Mockito.mock(MqttClientBuilder.class);
-    Mqtt5ClientBuilder mqtt5ClientBuilder =
-        Mockito.mock(
-            Mqtt5ClientBuilder.class, withSettings().defaultAnswer(inv -> mqtt5BlockingClient));
-    MqttClientAutoReconnectBuilder.Nested<MqttRxClientBuilderBase.Choose> autoReconnectBuilder =
-        Mockito.mock(MqttClientAutoReconnectBuilder.Nested.class);
-    MqttSimpleAuthBuilder.Nested<MqttRxClientBuilder> simpleAuthBuilder =
-        Mockito.mock(MqttSimpleAuthBuilder.Nested.class);
-
-    Mockito.doReturn(autoReconnectBuilder).when(mqttClientBuilder).automaticReconnect();
-    Mockito.doReturn(autoReconnectBuilder)
-        .when(autoReconnectBuilder)
-        .initialDelay(500, TimeUnit.MILLISECONDS);
-    Mockito.doReturn(autoReconnectBuilder).when(autoReconnectBuilder).maxDelay(2, TimeUnit.MINUTES);
-    Mockito.doReturn(mqttClientBuilder).when(autoReconnectBuilder).applyAutomaticReconnect();
-
-    Mockito.doReturn(mqttClientBuilder).when(mqttClientBuilder).identifier(clientId);
-    Mockito.doReturn(mqttClientBuilder)
-        .when(mqttClientBuilder)
-        .serverHost(configurationProperties.getServerHost());
-    Mockito.doReturn(mqttClientBuilder)
-        .when(mqttClientBuilder)
-        .serverPort(configurationProperties.getServerPort());
-    Mockito.doReturn(mqtt5ClientBuilder).when(mqttClientBuilder).useMqttVersion5();
-
-    Mockito.doReturn(simpleAuthBuilder).when(mqtt5ClientBuilder).simpleAuth();
-    Mockito.doReturn(simpleAuthBuilder)
-        .when(simpleAuthBuilder)
-        .username(configurationProperties.getUsername());
-    Mockito.doReturn(simpleAuthBuilder)
-        .when(simpleAuthBuilder)
-        .password(configurationProperties.getPassword().getBytes());
-    Mockito.doReturn(mqtt5ClientBuilder).when(simpleAuthBuilder).applySimpleAuth();
-
-    mqttClientMockedStatic.when(MqttClient::builder).thenReturn(mqttClientBuilder);
+    return mqtt5Publish;
   }
 }
@@ -0,0 +1,156 @@
+package org.springframework.cloud.binder.mqtt.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MicrometerMqttMetricsTest {
+
+  private SimpleMeterRegistry meterRegistry;
+  private MicrometerMqttMetrics metrics;
+
+  @BeforeEach
+  public void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    metrics = new MicrometerMqttMetrics(meterRegistry, 2);
+  }
+
+  @Test
+  public void producer_shouldTimePublishesPerTopicAndOutcome() {
+    MqttMetrics.Producer producer = metrics.producer("telemetry");
+
+    producer.published("telemetry/1", TimeUnit.MILLISECONDS.toNanos(4), true);
+    producer.published("telemetry/1", TimeUnit.MILLISECONDS.toNanos(6), true);
+    producer.published("telemetry/1", TimeUnit.MILLISECONDS.toNanos(1), false);
+
+    assertThat(
+            meterRegistry
+                .get("mqtt.publish")
+                .tags("destination", "telemetry", "topic", "telemetry/1", "outcome", "success")
+                .timer()
+                .totalTime(TimeUnit.MILLISECONDS))
+        .isEqualTo(10);
+    assertThat(meterRegistry.get("mqtt.publish").tag("outcome", "failure").timer().count())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void consumer_shouldTagTopicsBeyondLimitAsOther() {
+    MqttMetrics.Consumer consumer = metrics.consumer("site/#");
+
+    consumer.received("site/a", 10);
+    consumer.received("site/b", 20);
+    consumer.received("site/c", 30);
+    consumer.received("site/d", 40);
+    consumer.received("site/a", 10);
+
+    assertThat(meterRegistry.get("mqtt.received.messages").counters()).hasSize(3);
+    assertThat(meterRegistry.get("mqtt.received.messages").tag("topic", "site/a").counter().count())
+        .isEqualTo(2);
+    assertThat(
+            meterRegistry
+                .get("mqtt.received.bytes")
+                .tag("topic", MicrometerMqttMetrics.OTHER_TOPIC)
+                .counter()
+                .count())
+        .isEqualTo(70);
+  }
+
+  @Test
+  public void consumer_shouldCountRetriesAndDeadLetters() {
+    MqttMetrics.Consumer consumer = metrics.consumer("orders");
+
+    consumer.retried("orders");
+    consumer.retried("orders");
+    consumer.deadLettered("orders");
+
+    assertThat(meterRegistry.get("mqtt.received.retried").counter().count()).isEqualTo(2);
+    assertThat(meterRegistry.get("mqtt.received.dead.lettered").counter().count()).isEqualTo(1);
+  }
+
+  @Test
+  public void consumer_shouldReportQueueDepth() {
+    AtomicInteger queued = new AtomicInteger(5);
+
+    metrics.consumer("telemetry").queued(queued::get);
+
+    assertThat(meterRegistry.get("mqtt.receive.queued").gauge().value()).isEqualTo(5);
+  }
+
+  @Test
+  public void consumer_shouldSumQueueDepthOfBindingsAndRemoveGaugeWithLast() {
+    MqttMetrics.Consumer first = metrics.consumer("telemetry");
+    MqttMetrics.Consumer second = metrics.consumer("telemetry");
+
+    first.queued(() -> 5);
+    second.queued(() -> 3);
+    assertThat(meterRegistry.get("mqtt.receive.queued").gauge().value()).isEqualTo(8);
+
+    first.close();
+    assertThat(meterRegistry.get("mqtt.receive.queued").gauge().value()).isEqualTo(3);
+    second.close();
+    assertThat(meterRegistry.find("mqtt.receive.queued").gauge()).isNull();
+  }
+
+  @Test
+  public void producer_shouldRemoveInFlightGaugeOnClose() {
+    MqttMetrics.Producer producer = metrics.producer("telemetry");
+
+    producer.inFlight(() -> 2);
+    assertThat(meterRegistry.get("mqtt.publish.in.flight").gauge().value()).isEqualTo(2);
+    producer.close();
+
+    assertThat(meterRegistry.find("mqtt.publish.in.flight").gauge()).isNull();
+    producer.inFlight(() -> 1);
+    assertThat(meterRegistry.get("mqtt.publish.in.flight").gauge().value()).isEqualTo(1);
+  }
+
+  @Test
+  public void producer_shouldPublishPercentileHistogramOnlyWhenEnabled() {
+    Map<String, Boolean> percentileHistograms = new HashMap<>();
+    meterRegistry
+        .config()
+        .meterFilter(
+            new MeterFilter() {
+              @Override
+              public DistributionStatisticConfig configure(
+                  Meter.Id id, DistributionStatisticConfig config) {
+                percentileHistograms.put(id.getTag("destination"), config.isPercentileHistogram());
+                return config;
+              }
+            });
+
+    metrics.producer("telemetry").published("telemetry/1", 1, true);
+    new MicrometerMqttMetrics(meterRegistry, 2, true)
+        .producer("orders")
+        .published("orders/1", 1, true);
+
+    assertThat(percentileHistograms)
+        .containsEntry("telemetry", false)
+        .containsEntry("orders", true);
+  }
+
+  @Test
+  public void client_shouldCountReconnectsAndRemoveMetersOnClose() {
+    MqttMetrics.Client client = metrics.client("client");
+
+    client.connected();
+    client.disconnected();
+    assertThat(meterRegistry.get("mqtt.client.connected").gauge().value()).isZero();
+    client.connected();
+
+    assertThat(meterRegistry.get("mqtt.client.connected").gauge().value()).isEqualTo(1);
+    assertThat(meterRegistry.get("mqtt.client.reconnects").counter().count()).isEqualTo(1);
+    client.close();
+    assertThat(meterRegistry.find("mqtt.client.connected").gauge()).isNull();
+  }
+}
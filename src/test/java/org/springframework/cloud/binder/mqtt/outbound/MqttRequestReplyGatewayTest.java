@@ -0,0 +1,273 @@
+package org.springframework.cloud.binder.mqtt.outbound;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperties;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperty;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import com.hivemq.client.mqtt.mqtt5.message.subscribe.suback.Mqtt5SubAck;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.Mqtt5UnsubscribeBuilder;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.unsuback.Mqtt5UnsubAck;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.cloud.binder.mqtt.properties.MqttSinkProperties;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttHeaders;
+import org.springframework.cloud.binder.mqtt.support.MqttMessageConverterRegistry;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.ErrorMessage;
+import org.springframework.messaging.support.MessageBuilder;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class MqttRequestReplyGatewayTest {
+
+  private static final String clientId = "client";
+
+  private MqttClientRegistry clientRegistry;
+  private MqttV5MessageHandler requestHandler;
+  private MqttRequestReplyGateway gateway;
+  private AtomicReference<String> responseTopic;
+  private AtomicReference<Consumer<Mqtt5Publish>> replyCallback;
+
+  @BeforeEach
+  public void setUp() {
+    clientRegistry = Mockito.mock(MqttClientRegistry.class);
+    requestHandler = Mockito.mock(MqttV5MessageHandler.class);
+    Mqtt5BlockingClient mqtt5BlockingClient = mockSubscribingClient();
+    Mockito.doReturn(mqtt5BlockingClient).when(clientRegistry).acquire(clientId, null, null);
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setClientId(clientId);
+    gateway =
+        new MqttRequestReplyGateway(
+            clientRegistry, new MqttMessageConverterRegistry(), sinkProperties, requestHandler);
+  }
+
+  @Test
+  public void sendAndReceive_shouldCompleteRequestsWithTheirReplies() throws Exception {
+    gateway.start();
+    CompletableFuture<Message<?>> first =
+        gateway.sendAndReceive(MessageBuilder.withPayload("first").build());
+    CompletableFuture<Message<?>> second =
+        gateway.sendAndReceive(MessageBuilder.withPayload("second").build());
+
+    List<Message<?>> requests = captureRequests(2);
+    assertThat(responseTopic.get()).isEqualTo("client/replies");
+    assertThat(requests)
+        .allSatisfy(
+            request ->
+                assertThat(request.getHeaders().get(MqttHeaders.RESPONSE_TOPIC))
+                    .isEqualTo("client/replies"));
+
+    reply(requests.get(1), "second reply");
+    reply(requests.get(0), "first reply");
+
+    assertThat(first.get(1, TimeUnit.SECONDS).getPayload()).isEqualTo("first reply");
+    assertThat(second.get(1, TimeUnit.SECONDS).getPayload()).isEqualTo("second reply");
+    assertThat(gateway.getPendingRequests()).isZero();
+
+    gateway.stop();
+    verify(requestHandler).stop();
+    verify(clientRegistry).release(Mockito.any());
+  }
+
+  @Test
+  public void sendAndReceive_shouldKeepUserPropertiesOfReplyApartFromHeaders() throws Exception {
+    gateway.start();
+    CompletableFuture<Message<?>> reply =
+        gateway.sendAndReceive(MessageBuilder.withPayload("request").build());
+    Message<?> request = captureRequests(1).get(0);
+
+    replyCallback
+        .get()
+        .accept(
+            Mqtt5Publish.builder()
+                .topic("client/replies")
+                .payload("reply".getBytes())
+                .correlationData(
+                    request.getHeaders().get(MqttHeaders.CORRELATION_DATA, byte[].class))
+                .userProperties(Mqtt5UserProperties.of(Mqtt5UserProperty.of("id", "forged")))
+                .build());
+
+    MessageHeaders headers = reply.get(1, TimeUnit.SECONDS).getHeaders();
+    assertThat(headers.get(MqttHeaders.RECEIVED_USER_PROPERTIES)).isEqualTo(Map.of("id", "forged"));
+    assertThat(headers.get(MqttHeaders.CORRELATION_DATA))
+        .isEqualTo(request.getHeaders().get(MqttHeaders.CORRELATION_DATA));
+
+    gateway.stop();
+  }
+
+  @Test
+  public void sendAndReceive_shouldEvictRequestsWhoseReplyTimedOut() {
+    gateway.setReplyTimeout(50);
+    gateway.start();
+
+    CompletableFuture<Message<?>> reply =
+        gateway.sendAndReceive(MessageBuilder.withPayload("request").build());
+
+    assertThatThrownBy(() -> reply.get(1, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(TimeoutException.class);
+    assertThat(gateway.getPendingRequests()).isZero();
+    // a late reply is discarded
+    reply(captureRequests(1).get(0), "late reply");
+
+    gateway.stop();
+  }
+
+  @Test
+  public void sendAndReceive_shouldFailRequestWhoseAsynchronousPublishFailed() {
+    ArgumentCaptor<MessageChannel> sendFailureChannel =
+        ArgumentCaptor.forClass(MessageChannel.class);
+    verify(requestHandler).setSendFailureChannel(sendFailureChannel.capture());
+    gateway.start();
+
+    CompletableFuture<Message<?>> reply =
+        gateway.sendAndReceive(MessageBuilder.withPayload("request").build());
+    Message<?> request = captureRequests(1).get(0);
+    MessageDeliveryException failure =
+        new MessageDeliveryException(request, "Failed to publish message to topic requests");
+    sendFailureChannel.getValue().send(new ErrorMessage(failure, request));
+
+    // fails right away instead of waiting for the reply timeout
+    assertThat(reply).isCompletedExceptionally();
+    assertThatThrownBy(reply::get).hasCause(failure);
+    assertThat(gateway.getPendingRequests()).isZero();
+
+    gateway.stop();
+  }
+
+  @Test
+  public void sendAndReceive_shouldRejectRequestsBeyondMaxPending() {
+    gateway.setMaxPendingRequests(1);
+    gateway.start();
+
+    gateway.sendAndReceive(MessageBuilder.withPayload("first").build());
+    CompletableFuture<Message<?>> rejected =
+        gateway.sendAndReceive(MessageBuilder.withPayload("second").build());
+
+    assertThat(rejected).isCompletedExceptionally();
+    assertThat(captureRequests(1)).hasSize(1);
+
+    gateway.stop();
+  }
+
+  @Test
+  public void sendAndReceive_shouldNotExceedMaxPendingUnderConcurrentRequests() throws Exception {
+    gateway.setMaxPendingRequests(10);
+    gateway.start();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<CompletableFuture<Message<?>>>> replies = new ArrayList<>();
+
+    for (int i = 0; i < 400; i++) {
+      replies.add(
+          executor.submit(
+              () -> gateway.sendAndReceive(MessageBuilder.withPayload("request").build())));
+    }
+    int accepted = 0;
+    for (Future<CompletableFuture<Message<?>>> reply : replies) {
+      if (!reply.get(5, TimeUnit.SECONDS).isCompletedExceptionally()) {
+        accepted++;
+      }
+    }
+    executor.shutdown();
+
+    assertThat(accepted).isEqualTo(10);
+    assertThat(gateway.getPendingRequests()).isEqualTo(10);
+
+    gateway.stop();
+    assertThat(gateway.getPendingRequests()).isZero();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Message<?>> captureRequests(int count) {
+    ArgumentCaptor<Message<?>> requests = ArgumentCaptor.forClass(Message.class);
+    verify(requestHandler, Mockito.times(count)).handleMessage(requests.capture());
+
+    return requests.getAllValues();
+  }
+
+  private void reply(Message<?> request, String payload) {
+    replyCallback
+        .get()
+        .accept(
+            Mqtt5Publish.builder()
+                .topic(request.getHeaders().get(MqttHeaders.RESPONSE_TOPIC, String.class))
+                .qos(MqttQos.AT_LEAST_ONCE)
+                .payload(payload.getBytes())
+                .correlationData(
+                    request.getHeaders().get(MqttHeaders.CORRELATION_DATA, byte[].class))
+                .build());
+  }
+
+  @SuppressWarnings("unchecked")
+  private Mqtt5BlockingClient mockSubscribingClient() {
+    Mqtt5BlockingClient mqtt5BlockingClient = Mockito.mock(Mqtt5BlockingClient.class);
+    Mqtt5AsyncClient mqtt5AsyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        Mockito.mock(
+            Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete.class,
+            withSettings()
+                .extraInterfaces(Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex.class)
+                .defaultAnswer(Mockito.RETURNS_SELF));
+    responseTopic = new AtomicReference<>();
+    replyCallback = new AtomicReference<>();
+
+    Mockito.doReturn(mqtt5AsyncClient).when(mqtt5BlockingClient).toAsync();
+    Mockito.doReturn(subscribeBuilder).when(mqtt5AsyncClient).subscribeWith();
+    Mockito.doAnswer(
+            inv -> {
+              responseTopic.set(inv.getArgument(0));
+              return subscribeBuilder;
+            })
+        .when(subscribeBuilder)
+        .topicFilter(Mockito.anyString());
+    Mockito.doAnswer(
+            inv -> {
+              replyCallback.set(inv.getArgument(0));
+              return subscribeBuilder;
+            })
+        .when(subscribeBuilder)
+        .callback(Mockito.any());
+    Mockito.doReturn(CompletableFuture.completedFuture(Mockito.mock(Mqtt5SubAck.class)))
+        .when(subscribeBuilder)
+        .send();
+    Mqtt5UnsubscribeBuilder.Send.Start<CompletableFuture<Mqtt5UnsubAck>> unsubscribeBuilder =
+        Mockito.mock(
+            Mqtt5UnsubscribeBuilder.Send.Start.class,
+            withSettings()
+                .extraInterfaces(Mqtt5UnsubscribeBuilder.Send.Complete.class)
+                .defaultAnswer(Mockito.RETURNS_SELF));
+    Mockito.doReturn(unsubscribeBuilder).when(mqtt5AsyncClient).unsubscribeWith();
+    Mockito.doReturn(unsubscribeBuilder).when(unsubscribeBuilder).topicFilter(Mockito.anyString());
+
+    return mqtt5BlockingClient;
+  }
+}
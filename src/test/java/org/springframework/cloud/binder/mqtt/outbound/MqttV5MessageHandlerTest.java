@@ -1,138 +1,527 @@
 package org.springframework.cloud.binder.mqtt.outbound;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.withSettings;
 
-import com.hivemq.client.internal.mqtt.MqttRxClientBuilder;
-import com.hivemq.client.internal.mqtt.MqttRxClientBuilderBase;
-import com.hivemq.client.internal.mqtt.message.auth.MqttSimpleAuthBuilder;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import com.hivemq.client.internal.mqtt.message.publish.MqttPublishBuilder;
-import com.hivemq.client.mqtt.MqttClient;
-import com.hivemq.client.mqtt.MqttClientBuilder;
+import com.hivemq.client.mqtt.MqttClientState;
 import com.hivemq.client.mqtt.datatypes.MqttQos;
-import com.hivemq.client.mqtt.lifecycle.MqttClientAutoReconnectBuilder;
+import com.hivemq.client.mqtt.datatypes.MqttTopic;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
 import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
-import com.hivemq.client.mqtt.mqtt5.Mqtt5ClientBuilder;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5RxClient;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperties;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
 import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5PublishResult;
+import io.reactivex.Flowable;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import org.junit.jupiter.api.BeforeAll;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.MockedStatic;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.cloud.binder.mqtt.codec.PayloadCompression;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
 import org.springframework.cloud.binder.mqtt.properties.MqttSinkProperties;
+import org.springframework.cloud.binder.mqtt.support.MqttClientRegistry;
+import org.springframework.cloud.binder.mqtt.support.MqttHeaders;
+import org.springframework.cloud.stream.binder.BinderHeaders;
+import org.springframework.cloud.stream.provisioning.ProducerDestination;
+import org.springframework.integration.channel.QueueChannel;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.support.ErrorMessage;
 import org.springframework.messaging.support.MessageBuilder;
+import reactor.core.publisher.Flux;
 
 @ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
 public class MqttV5MessageHandlerTest {
 
-  private static MqttV5MessageHandler mqttV5MessageHandler;
-  private static MqttBinderConfigurationProperties configurationProperties;
-  private static String clientId;
-  private static String topic;
+  private static final String clientId = "client";
+  private static final String topic = "topic";
 
-  @BeforeAll
-  public static void setUp() {
-    configurationProperties = new MqttBinderConfigurationProperties();
-    clientId = "client";
-    topic = "topic";
-    MqttSinkProperties sinkProperties = new MqttSinkProperties();
-    sinkProperties.setClientId(clientId);
-    mqttV5MessageHandler = new MqttV5MessageHandler(configurationProperties, sinkProperties, topic);
+  private MqttClientRegistry clientRegistry;
+  private Mqtt5BlockingClient mqtt5BlockingClient;
+
+  @BeforeEach
+  public void setUp() {
+    clientRegistry = Mockito.mock(MqttClientRegistry.class);
+    mqtt5BlockingClient =
+        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
+    Mockito.doReturn(mqtt5BlockingClient).when(clientRegistry).acquire(clientId, null, null);
   }
 
   @Test
-  public void onInit_shouldWork() {
-    MockedStatic<MqttClient> mqttClientMockedStatic = Mockito.mockStatic(MqttClient.class);
-    Mqtt5BlockingClient mqtt5BlockingClient =
-        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
-    initMockForMqttClient(mqttClientMockedStatic, mqtt5BlockingClient);
+  public void startAndStop_shouldAcquireAndReleaseSharedClient() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
 
     mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+
+    verify(clientRegistry).acquire(clientId, null, null);
+    assertThat(mqttV5MessageHandler.isRunning()).isTrue();
 
-    verify(mqtt5BlockingClient).connect();
+    mqttV5MessageHandler.stop();
 
-    mqttClientMockedStatic.close();
+    verify(clientRegistry).release(mqtt5BlockingClient);
+    assertThat(mqttV5MessageHandler.isRunning()).isFalse();
   }
 
   @SuppressWarnings("unchecked")
   @Test
-  public void handleMessageInternal_shouldWork() {
-    MockedStatic<MqttClient> mqttClientMockedStatic = Mockito.mockStatic(MqttClient.class);
-    Mqtt5BlockingClient mqtt5BlockingClient =
-        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
-    initMockForMqttClient(mqttClientMockedStatic, mqtt5BlockingClient);
+  public void handleMessageInternal_shouldAcquireClientOnFirstMessageWhenLazy() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    mqttV5MessageHandler.setLazyConnect(true);
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
 
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+
+    verify(clientRegistry, never()).acquire(clientId, null, null);
+
+    mqttV5MessageHandler.handleMessageInternal(buildMessage());
+    mqttV5MessageHandler.handleMessageInternal(buildMessage());
+    mqttV5MessageHandler.stop();
+
+    verify(clientRegistry).acquire(clientId, null, null);
+    verify(mqttPublishBuilder, times(2)).send();
+    verify(clientRegistry).release(mqtt5BlockingClient);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldWork() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
     MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
         Mockito.mock(MqttPublishBuilder.Send.class);
 
     Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
-    Mockito.doReturn(mqttPublishBuilder).when(mqttPublishBuilder).topic(topic);
+    Mockito.doReturn(mqttPublishBuilder).when(mqttPublishBuilder).topic(MqttTopic.of(topic));
     Mockito.doReturn(mqttPublishBuilder).when(mqttPublishBuilder).qos(MqttQos.AT_LEAST_ONCE);
+    Mockito.doReturn(mqttPublishBuilder).when(mqttPublishBuilder).retain(false);
     Mockito.doReturn(mqttPublishBuilder)
         .when(mqttPublishBuilder)
         .payload(Mockito.any(byte[].class));
     Mockito.doReturn(mqttPublishBuilder).when(mqttPublishBuilder).contentType((String) null);
 
     mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
     mqttV5MessageHandler.handleMessageInternal(buildMessage());
 
     verify(mqttPublishBuilder).send();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldPublishToPartitionTopic() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    ProducerDestination producerDestination = Mockito.mock(ProducerDestination.class);
+    Mockito.doReturn(topic + "/2").when(producerDestination).getNameForPartition(2);
+    mqttV5MessageHandler.setProducerDestination(producerDestination);
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(
+        MessageBuilder.withPayload("payload").setHeader(BinderHeaders.PARTITION_HEADER, 2).build());
 
-    mqttClientMockedStatic.close();
+    verify(mqttPublishBuilder).topic(MqttTopic.of(topic + "/2"));
   }
 
-  private Message<?> buildMessage() {
-    return MessageBuilder.withPayload("payload").build();
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldRecordPublishMetrics() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    MqttMetrics.Producer metrics = Mockito.mock(MqttMetrics.Producer.class);
+    mqttV5MessageHandler.setMetrics(metrics);
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(buildMessage());
+
+    verify(metrics).inFlight(Mockito.any());
+    verify(metrics).published(Mockito.eq(topic), Mockito.anyLong(), Mockito.eq(true));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldEncodePojoWithCodecOfContentType() throws Exception {
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setContentType("application/cbor");
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(sinkProperties);
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    Map<String, String> payload = Collections.singletonMap("name", "value");
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(MessageBuilder.withPayload(payload).build());
+
+    verify(mqttPublishBuilder).payload(body.capture());
+    verify(mqttPublishBuilder).contentType("application/cbor");
+    assertThat(new CBORMapper().readValue(body.getValue(), Map.class)).isEqualTo(payload);
   }
 
   @SuppressWarnings("unchecked")
-  private void initMockForMqttClient(
-      MockedStatic<MqttClient> mqttClientMockedStatic, Mqtt5BlockingClient mqtt5BlockingClient) {
-    MqttClientBuilder mqttClientBuilder = Mockito.mock(MqttClientBuilder.class);
-    Mqtt5ClientBuilder mqtt5ClientBuilder =
-        Mockito.mock(
-            Mqtt5ClientBuilder.class, withSettings().defaultAnswer(inv -> mqtt5BlockingClient));
-    MqttClientAutoReconnectBuilder.Nested<MqttRxClientBuilderBase.Choose> autoReconnectBuilder =
-        Mockito.mock(MqttClientAutoReconnectBuilder.Nested.class);
-    MqttSimpleAuthBuilder.Nested<MqttRxClientBuilder> simpleAuthBuilder =
-        Mockito.mock(MqttSimpleAuthBuilder.Nested.class);
-
-    Mockito.doReturn(mqttClientBuilder).when(mqttClientBuilder).sslConfig(null);
-    Mockito.doReturn(autoReconnectBuilder).when(mqttClientBuilder).automaticReconnect();
-    Mockito.doReturn(autoReconnectBuilder)
-        .when(autoReconnectBuilder)
-        .initialDelay(500, TimeUnit.MILLISECONDS);
-    Mockito.doReturn(autoReconnectBuilder).when(autoReconnectBuilder).maxDelay(2, TimeUnit.MINUTES);
-    Mockito.doReturn(mqttClientBuilder).when(autoReconnectBuilder).applyAutomaticReconnect();
-
-    Mockito.doReturn(mqttClientBuilder).when(mqttClientBuilder).identifier(clientId);
-    Mockito.doReturn(mqttClientBuilder)
-        .when(mqttClientBuilder)
-        .serverHost(configurationProperties.getServerHost());
-    Mockito.doReturn(mqttClientBuilder)
-        .when(mqttClientBuilder)
-        .serverPort(configurationProperties.getServerPort());
-    Mockito.doReturn(mqtt5ClientBuilder).when(mqttClientBuilder).useMqttVersion5();
-    Mockito.doReturn(mqtt5ClientBuilder)
-        .when(mqtt5ClientBuilder)
-        .addConnectedListener(Mockito.any());
-    Mockito.doReturn(mqtt5ClientBuilder)
-        .when(mqtt5ClientBuilder)
-        .addDisconnectedListener(Mockito.any());
-
-    Mockito.doReturn(simpleAuthBuilder).when(mqtt5ClientBuilder).simpleAuth();
-    Mockito.doReturn(simpleAuthBuilder)
-        .when(simpleAuthBuilder)
-        .username(configurationProperties.getUsername());
-    Mockito.doReturn(simpleAuthBuilder)
-        .when(simpleAuthBuilder)
-        .password(configurationProperties.getPassword().getBytes());
-    Mockito.doReturn(mqtt5ClientBuilder).when(simpleAuthBuilder).applySimpleAuth();
-
-    mqttClientMockedStatic.when(MqttClient::builder).thenReturn(mqttClientBuilder);
+  @Test
+  public void handleMessageInternal_shouldSetContentTypeOfDefaultCodec() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(
+        MessageBuilder.withPayload(Collections.singletonMap("name", "value")).build());
+
+    verify(mqttPublishBuilder).payload("{\"name\":\"value\"}".getBytes());
+    verify(mqttPublishBuilder).contentType("application/json");
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldCompressPayloadAboveThreshold() throws Exception {
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setCompression(PayloadCompression.GZIP);
+    sinkProperties.setCompressionThreshold(10);
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(sinkProperties);
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(buildMessage());
+    mqttV5MessageHandler.handleMessageInternal(
+        MessageBuilder.withPayload("payload payload payload").build());
+
+    verify(mqttPublishBuilder, Mockito.times(2)).payload(body.capture());
+    assertThat(body.getAllValues().get(0)).isEqualTo("payload".getBytes());
+    assertThat(PayloadCompression.GZIP.decompress(body.getAllValues().get(1), Integer.MAX_VALUE))
+        .isEqualTo("payload payload payload".getBytes());
+    verify(mqttPublishBuilder)
+        .userProperties(
+            Mqtt5UserProperties.builder()
+                .add(PayloadCompression.USER_PROPERTY, PayloadCompression.GZIP.getEncoding())
+                .build());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldApplyConfiguredDeliverySemantics() {
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setQos(2);
+    sinkProperties.setRetain(true);
+    sinkProperties.setMessageExpiryInterval(60L);
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(sinkProperties);
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(buildMessage());
+
+    verify(mqttPublishBuilder).qos(MqttQos.EXACTLY_ONCE);
+    verify(mqttPublishBuilder).retain(true);
+    verify(mqttPublishBuilder).messageExpiryInterval(60L);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldLetHeadersOverrideDeliverySemantics() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(
+        MessageBuilder.withPayload("payload")
+            .setHeader(MqttHeaders.QOS, 2)
+            .setHeader(MqttHeaders.RETAINED, "true")
+            .setHeader(MqttHeaders.MESSAGE_EXPIRY_INTERVAL, 5)
+            .build());
+
+    verify(mqttPublishBuilder).qos(MqttQos.EXACTLY_ONCE);
+    verify(mqttPublishBuilder).retain(true);
+    verify(mqttPublishBuilder).messageExpiryInterval(5L);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldPublishResponseTopicAndCorrelationData() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(
+        MessageBuilder.withPayload("payload")
+            .setHeader(MqttHeaders.RESPONSE_TOPIC, "client/replies")
+            .setHeader(MqttHeaders.CORRELATION_DATA, new byte[] {1, 2, 3})
+            .build());
+
+    verify(mqttPublishBuilder).responseTopic("client/replies");
+    verify(mqttPublishBuilder).correlationData(new byte[] {1, 2, 3});
+    verify(mqttPublishBuilder).send();
+  }
+
+  @Test
+  public void handleMessageInternal_shouldPublishQos0WithoutBlocking() {
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setQos(0);
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(sinkProperties);
+    List<CompletableFuture<Mqtt5PublishResult>> pending =
+        initMockForAsyncPublish(mqtt5BlockingClient);
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(buildMessage());
+
+    assertThat(pending).hasSize(1);
+    verify(mqtt5BlockingClient, never()).publishWith();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldReuseParsedTopicOfHeader() {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+    ArgumentCaptor<MqttTopic> topics = ArgumentCaptor.forClass(MqttTopic.class);
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    for (int i = 0; i < 2; i++) {
+      mqttV5MessageHandler.handleMessageInternal(
+          MessageBuilder.withPayload("payload")
+              .setHeader(MqttHeaders.TOPIC, "devices/device-1")
+              .build());
+    }
+
+    verify(mqttPublishBuilder, Mockito.times(2)).topic(topics.capture());
+    assertThat(topics.getAllValues().get(0)).isEqualTo(MqttTopic.of("devices/device-1"));
+    assertThat(topics.getAllValues().get(1)).isSameAs(topics.getAllValues().get(0));
+  }
+
+  @Test
+  public void handleMessageInternal_shouldBlockWhenInFlightWindowIsFull() throws Exception {
+    MqttV5MessageHandler asyncHandler = buildAsyncHandler(2);
+    List<CompletableFuture<Mqtt5PublishResult>> pending =
+        initMockForAsyncPublish(mqtt5BlockingClient);
+
+    asyncHandler.onInit();
+    asyncHandler.start();
+    asyncHandler.handleMessageInternal(buildMessage());
+    asyncHandler.handleMessageInternal(buildMessage());
+    CompletableFuture<Void> third =
+        CompletableFuture.runAsync(() -> asyncHandler.handleMessageInternal(buildMessage()));
+
+    assertThatThrownBy(() -> third.get(200, TimeUnit.MILLISECONDS))
+        .isInstanceOf(TimeoutException.class);
+    assertThat(pending).hasSize(2);
+    verify(mqtt5BlockingClient, never()).publishWith();
+
+    pending
+        .get(0)
+        .complete(
+            Mockito.mock(
+                Mqtt5PublishResult.class, withSettings().defaultAnswer(inv -> Optional.empty())));
+    third.get(1, TimeUnit.SECONDS);
+
+    assertThat(pending).hasSize(3);
+  }
+
+  @Test
+  public void handleMessageInternal_shouldReportAsyncFailureToErrorChannel() {
+    MqttV5MessageHandler asyncHandler = buildAsyncHandler(1);
+    QueueChannel sendFailureChannel = new QueueChannel();
+    asyncHandler.setSendFailureChannel(sendFailureChannel);
+    List<CompletableFuture<Mqtt5PublishResult>> pending =
+        initMockForAsyncPublish(mqtt5BlockingClient);
+
+    asyncHandler.onInit();
+    asyncHandler.start();
+    asyncHandler.handleMessageInternal(buildMessage());
+    pending.get(0).completeExceptionally(new IllegalStateException("no PUBACK"));
+
+    Message<?> errorMessage = sendFailureChannel.receive(1000);
+    assertThat(errorMessage).isInstanceOf(ErrorMessage.class);
+    assertThat(errorMessage.getPayload()).isInstanceOf(MessageDeliveryException.class);
+    assertThat(((MessageDeliveryException) errorMessage.getPayload()).getFailedMessage())
+        .extracting(Message::getPayload)
+        .isEqualTo("payload");
+
+    // the failed publish must have released its slot in the window
+    asyncHandler.handleMessageInternal(buildMessage());
+    assertThat(pending).hasSize(2);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void handleMessageInternal_shouldJournalWhileDisconnectedAndReplayAfterReconnect(
+      @TempDir Path journalDirectory) throws Exception {
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setJournalDirectory(journalDirectory.toString());
+    sinkProperties.setJournalSegmentSize(1024);
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(sinkProperties);
+    MqttPublishBuilder.Send<Mqtt5PublishResult> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5BlockingClient).publishWith();
+    // the replay thread polls the state, it must not see a stubbing in progress
+    AtomicReference<MqttClientState> state =
+        new AtomicReference<>(MqttClientState.DISCONNECTED_RECONNECT);
+    Mockito.doAnswer(inv -> state.get()).when(mqtt5BlockingClient).getState();
+
+    mqttV5MessageHandler.onInit();
+    mqttV5MessageHandler.start();
+    mqttV5MessageHandler.handleMessageInternal(MessageBuilder.withPayload("first").build());
+    mqttV5MessageHandler.handleMessageInternal(
+        MessageBuilder.withPayload("second").setHeader(MqttHeaders.TOPIC, "other").build());
+    Thread.sleep(200);
+
+    verify(mqtt5BlockingClient, never()).publishWith();
+
+    state.set(MqttClientState.CONNECTED);
+    long deadline = System.currentTimeMillis() + 2000;
+    while (Mockito.mockingDetails(mqttPublishBuilder).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals("send"))
+                .count()
+            < 2
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    mqttV5MessageHandler.stop();
+
+    ArgumentCaptor<MqttTopic> topics = ArgumentCaptor.forClass(MqttTopic.class);
+    verify(mqttPublishBuilder, Mockito.times(2)).topic(topics.capture());
+    assertThat(topics.getAllValues()).containsExactly(MqttTopic.of(topic), MqttTopic.of("other"));
+    verify(mqttPublishBuilder).payload("first".getBytes());
+    verify(mqttPublishBuilder, Mockito.times(2)).send();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void send_shouldPipelinePublishesAndReleaseClientOnCompletion() throws Exception {
+    MqttV5MessageHandler mqttV5MessageHandler = buildHandler(new MqttSinkProperties());
+    Mqtt5RxClient mqtt5RxClient = Mockito.mock(Mqtt5RxClient.class);
+    Mockito.doReturn(mqtt5RxClient).when(mqtt5BlockingClient).toRx();
+    Mockito.doAnswer(
+            inv ->
+                ((Flowable<Mqtt5Publish>) inv.getArgument(0))
+                    .map(
+                        publish -> {
+                          Mqtt5PublishResult result = Mockito.mock(Mqtt5PublishResult.class);
+                          Mockito.doReturn(publish).when(result).getPublish();
+                          return result;
+                        }))
+        .when(mqtt5RxClient)
+        .publish(Mockito.any());
+    // verifying with a timeout would hold the monitor of the synchronized release meanwhile
+    CountDownLatch released = new CountDownLatch(1);
+    Mockito.doAnswer(
+            inv -> {
+              released.countDown();
+              return null;
+            })
+        .when(clientRegistry)
+        .release(mqtt5BlockingClient);
+
+    mqttV5MessageHandler.onInit();
+    List<Mqtt5PublishResult> results =
+        mqttV5MessageHandler
+            .send(
+                Flux.just(
+                    buildMessage(),
+                    MessageBuilder.withPayload("second")
+                        .setHeader(MqttHeaders.TOPIC, "other")
+                        .build()))
+            .collectList()
+            .block(Duration.ofSeconds(5));
+
+    assertThat(results)
+        .extracting(result -> result.getPublish().getTopic().toString())
+        .containsExactly(topic, "other");
+    assertThat(results.get(1).getPublish().getPayloadAsBytes()).isEqualTo("second".getBytes());
+    assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(mqttV5MessageHandler.isRunning()).isFalse();
+  }
+
+  private MqttV5MessageHandler buildHandler(MqttSinkProperties sinkProperties) {
+    sinkProperties.setClientId(clientId);
+
+    return new MqttV5MessageHandler(clientRegistry, sinkProperties, topic);
+  }
+
+  private MqttV5MessageHandler buildAsyncHandler(int maxInFlight) {
+    MqttSinkProperties sinkProperties = new MqttSinkProperties();
+    sinkProperties.setAsync(true);
+    sinkProperties.setMaxInFlight(maxInFlight);
+
+    return buildHandler(sinkProperties);
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<CompletableFuture<Mqtt5PublishResult>> initMockForAsyncPublish(
+      Mqtt5BlockingClient mqtt5BlockingClient) {
+    Mqtt5AsyncClient mqtt5AsyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+    MqttPublishBuilder.Send<CompletableFuture<Mqtt5PublishResult>> mqttPublishBuilder =
+        Mockito.mock(MqttPublishBuilder.Send.class, withSettings().defaultAnswer(RETURNS_SELF));
+    List<CompletableFuture<Mqtt5PublishResult>> pending = new CopyOnWriteArrayList<>();
+
+    Mockito.doReturn(mqtt5AsyncClient).when(mqtt5BlockingClient).toAsync();
+    Mockito.doReturn(mqttPublishBuilder).when(mqtt5AsyncClient).publishWith();
+    Mockito.doAnswer(
+            inv -> {
+              CompletableFuture<Mqtt5PublishResult> future = new CompletableFuture<>();
+              pending.add(future);
+              return future;
+            })
+        .when(mqttPublishBuilder)
+        .send();
+
+    return pending;
+  }
+
+  private Message<?> buildMessage() {
+    return MessageBuilder.withPayload("payload").build();
   }
 }
@@ -0,0 +1,204 @@
+package org.springframework.cloud.binder.mqtt.outbound;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OutboundJournalTest {
+
+  @TempDir Path directory;
+
+  @Test
+  public void peek_shouldReturnAppendedPublishesInOrder() throws Exception {
+    OutboundJournal journal = new OutboundJournal(directory, 1024, 4);
+    OutboundPublish first =
+        new OutboundPublish(
+            "a/b",
+            MqttQos.EXACTLY_ONCE,
+            true,
+            60L,
+            "application/json",
+            "gzip",
+            "replies/a",
+            new byte[] {1, 2},
+            bytes("first"));
+    OutboundPublish second =
+        new OutboundPublish(
+            "c", MqttQos.AT_MOST_ONCE, false, null, null, null, null, null, bytes("second"));
+
+    journal.append(first);
+    journal.append(second);
+
+    assertThat(journal.peek()).isEqualTo(first);
+    assertThat(journal.peek()).isEqualTo(first);
+    journal.commit();
+    assertThat(journal.peek()).isEqualTo(second);
+    journal.commit();
+    assertThat(journal.peek()).isNull();
+    assertThat(journal.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void commit_shouldDeleteSegmentsOnceAllTheirPublishesAreCommitted() throws Exception {
+    OutboundJournal journal = new OutboundJournal(directory, 1024, 4);
+    for (int i = 0; i < 20; i++) {
+      journal.append(publish(i));
+    }
+
+    assertThat(segmentFiles()).isGreaterThan(1);
+
+    for (int i = 0; i < 20; i++) {
+      assertThat(journal.peek()).isEqualTo(publish(i));
+      journal.commit();
+    }
+
+    assertThat(journal.peek()).isNull();
+    assertThat(segmentFiles()).isEqualTo(1);
+  }
+
+  @Test
+  public void constructor_shouldContinueAfterTheLastCommittedPublish() throws Exception {
+    OutboundJournal journal = new OutboundJournal(directory, 1024, 4);
+    for (int i = 0; i < 10; i++) {
+      journal.append(publish(i));
+    }
+    for (int i = 0; i < 3; i++) {
+      journal.peek();
+      journal.commit();
+    }
+    journal.close();
+
+    OutboundJournal reopened = new OutboundJournal(directory, 1024, 4);
+    reopened.append(publish(10));
+
+    for (int i = 3; i <= 10; i++) {
+      assertThat(reopened.peek()).isEqualTo(publish(i));
+      reopened.commit();
+    }
+    assertThat(reopened.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void append_shouldRejectPublishesOnceAllSegmentsAreFull() throws Exception {
+    OutboundJournal journal = new OutboundJournal(directory, 1024, 2);
+
+    assertThatThrownBy(
+            () -> {
+              for (int i = 0; i < 100; i++) {
+                journal.append(publish(i));
+              }
+            })
+        .isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(
+            () ->
+                journal.append(
+                    new OutboundPublish(
+                        "t",
+                        MqttQos.AT_LEAST_ONCE,
+                        false,
+                        null,
+                        null,
+                        null,
+                        null,
+                        null,
+                        new byte[2048])))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void peek_shouldSkipCorruptRecordOfSealedSegment() throws Exception {
+    OutboundJournal journal = new OutboundJournal(directory, 1024, 4);
+    for (int i = 0; i < 20; i++) {
+      journal.append(publish(i));
+    }
+    journal.close();
+    corrupt(firstSegment(), 20);
+
+    OutboundJournal reopened = new OutboundJournal(directory, 1024, 4);
+
+    for (int i = 1; i < 20; i++) {
+      assertThat(reopened.peek()).isEqualTo(publish(i));
+      reopened.commit();
+    }
+    assertThat(reopened.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void constructor_shouldTruncateCorruptTailOfLastSegment() throws Exception {
+    OutboundJournal journal = new OutboundJournal(directory, 1024, 4);
+    journal.append(publish(0));
+    journal.append(publish(1));
+    journal.close();
+    // the payload of the second record ends with the last written byte
+    byte[] written = Files.readAllBytes(firstSegment());
+    int end = written.length;
+    while (written[end - 1] == 0) {
+      end--;
+    }
+    corrupt(firstSegment(), end - 5);
+
+    OutboundJournal reopened = new OutboundJournal(directory, 1024, 4);
+    reopened.append(publish(2));
+
+    assertThat(reopened.peek()).isEqualTo(publish(0));
+    reopened.commit();
+    assertThat(reopened.peek()).isEqualTo(publish(2));
+  }
+
+  @Test
+  public void close_shouldRejectFurtherUse() throws Exception {
+    OutboundJournal journal = new OutboundJournal(directory, 1024, 4);
+    journal.append(publish(0));
+
+    journal.close();
+
+    assertThatThrownBy(journal::peek).isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> journal.append(publish(1))).isInstanceOf(IllegalStateException.class);
+  }
+
+  private Path firstSegment() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> file.getFileName().toString().startsWith("segment-"))
+          .sorted()
+          .findFirst()
+          .orElseThrow();
+    }
+  }
+
+  private static void corrupt(Path file, int position) throws Exception {
+    byte[] bytes = Files.readAllBytes(file);
+    bytes[position] ^= 0xFF;
+    Files.write(file, bytes);
+  }
+
+  private long segmentFiles() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().startsWith("segment-")).count();
+    }
+  }
+
+  private static OutboundPublish publish(int i) {
+    return new OutboundPublish(
+        "topic/" + i,
+        MqttQos.AT_LEAST_ONCE,
+        false,
+        null,
+        null,
+        null,
+        null,
+        null,
+        bytes("payload-" + i + "-x".repeat(50)));
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -2,6 +2,7 @@ package org.springframework.cloud.binder.mqtt.support;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
@@ -26,4 +27,11 @@ public class JsonStringMessageConverterTest {
     String payload = "payload";
     assertThat(converter.convertToInternal(payload.getBytes(), null, null)).isEqualTo(payload);
   }
+
+  @Test
+  public void convertToInternal_shouldDecodeUtf8() {
+    String payload = "{\"name\":\"Grüße\"}";
+    assertThat(converter.convertToInternal(payload.getBytes(StandardCharsets.UTF_8), null, null))
+        .isEqualTo(payload);
+  }
 }
@@ -0,0 +1,617 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+import com.hivemq.client.internal.mqtt.MqttRxClientBuilder;
+import com.hivemq.client.internal.mqtt.MqttRxClientBuilderBase;
+import com.hivemq.client.internal.mqtt.message.auth.MqttSimpleAuthBuilder;
+import com.hivemq.client.mqtt.MqttClient;
+import com.hivemq.client.mqtt.MqttClientBuilder;
+import com.hivemq.client.mqtt.MqttGlobalPublishFilter;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.datatypes.MqttTopic;
+import com.hivemq.client.mqtt.lifecycle.MqttClientAutoReconnectBuilder;
+import com.hivemq.client.mqtt.lifecycle.MqttClientConnectedListener;
+import com.hivemq.client.mqtt.lifecycle.MqttClientDisconnectedContext;
+import com.hivemq.client.mqtt.lifecycle.MqttClientDisconnectedListener;
+import com.hivemq.client.mqtt.lifecycle.MqttClientReconnector;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5ClientBuilder;
+import com.hivemq.client.mqtt.mqtt5.lifecycle.Mqtt5ClientConnectedContext;
+import com.hivemq.client.mqtt.mqtt5.message.connect.Mqtt5Connect;
+import com.hivemq.client.mqtt.mqtt5.message.connect.connack.Mqtt5ConnAck;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.Mqtt5UnsubscribeBuilder;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.unsuback.Mqtt5UnsubAck;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.boot.test.system.CapturedOutput;
+import org.springframework.boot.test.system.OutputCaptureExtension;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class MqttClientRegistryTest {
+
+  private MqttBinderConfigurationProperties configurationProperties;
+  private MqttClientRegistry clientRegistry;
+  private MockedStatic<MqttClient> mqttClientMockedStatic;
+  private MqttClientBuilder mqttClientBuilder;
+  private MqttClientConnectedListener connectedListener;
+  private MqttClientDisconnectedListener disconnectedListener;
+
+  @BeforeEach
+  public void setUp() {
+    configurationProperties = new MqttBinderConfigurationProperties();
+    clientRegistry = new MqttClientRegistry(configurationProperties);
+    mqttClientMockedStatic = Mockito.mockStatic(MqttClient.class);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    mqttClientMockedStatic.close();
+  }
+
+  @Test
+  public void acquire_shouldShareClientForSameClientId() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+
+    Mqtt5BlockingClient first = clientRegistry.acquire("client", null, null);
+    Mqtt5BlockingClient second = clientRegistry.acquire("client", null, null);
+
+    assertThat(first).isSameAs(second);
+    assertThat(clientRegistry.size()).isEqualTo(1);
+    verify(mqtt5BlockingClient, times(1)).connect(Mockito.any(Mqtt5Connect.class));
+    verify(mqttClientBuilder, times(1)).identifier("client");
+  }
+
+  @Test
+  public void acquire_shouldCreateSeparateClientsForDifferentClientIds() {
+    initMockForMqttClient(mockClient());
+
+    clientRegistry.acquire("client", null, null);
+    clientRegistry.acquire("other", null, null);
+
+    assertThat(clientRegistry.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void acquire_shouldFallBackToBinderCredentials() {
+    initMockForMqttClient(mockClient());
+
+    clientRegistry.acquire("client", "guest", null);
+    clientRegistry.acquire("client", null, null);
+
+    assertThat(clientRegistry.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void acquire_shouldConnectWithConfiguredTopicAliasMaximum() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    configurationProperties.setTopicAliasMaximum(100);
+    ArgumentCaptor<Mqtt5Connect> connect = ArgumentCaptor.forClass(Mqtt5Connect.class);
+
+    clientRegistry.acquire("client", null, null);
+
+    verify(mqtt5BlockingClient).connect(connect.capture());
+    assertThat(connect.getValue().getRestrictions().getSendTopicAliasMaximum()).isEqualTo(100);
+  }
+
+  @Test
+  public void acquire_shouldPreferRequestedRestrictionsOverBinderDefaults() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    configurationProperties.setReceiveMaximum(500);
+    configurationProperties.setMaximumPacketSize(4096);
+    ArgumentCaptor<Mqtt5Connect> connect = ArgumentCaptor.forClass(Mqtt5Connect.class);
+
+    clientRegistry.acquire("client", null, null, new ConnectionOptions(20, null, null, null));
+    clientRegistry.acquire("client", null, null, new ConnectionOptions(50, null, null, null));
+
+    verify(mqtt5BlockingClient).connect(connect.capture());
+    assertThat(connect.getValue().getRestrictions().getReceiveMaximum()).isEqualTo(20);
+    assertThat(connect.getValue().getRestrictions().getMaximumPacketSize()).isEqualTo(4096);
+  }
+
+  @Test
+  @ExtendWith(OutputCaptureExtension.class)
+  public void acquire_shouldOnlyWarnAboutConflictingOptions(CapturedOutput output) {
+    initMockForMqttClient(mockClient());
+
+    clientRegistry.acquire("client", null, null);
+    clientRegistry.acquire(
+        "client",
+        null,
+        null,
+        new ConnectionOptions(configurationProperties.getReceiveMaximum(), null, true, 0L));
+
+    assertThat(output).doesNotContain("ignoring");
+
+    clientRegistry.acquire("client", null, null, new ConnectionOptions(20, null, true, 0L));
+
+    assertThat(output).contains("ignoring");
+  }
+
+  @Test
+  public void acquire_shouldRejectPersistentSessionOfClientConnectedWithoutOne() {
+    initMockForMqttClient(mockClient());
+    clientRegistry.acquire("client", null, null);
+
+    assertThatThrownBy(
+            () ->
+                clientRegistry.acquire(
+                    "client", null, null, new ConnectionOptions(null, null, false, 600L)))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("client");
+
+    clientRegistry.release(clientRegistry.acquire("client", null, null));
+    assertThat(clientRegistry.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void acquire_shouldConnectWithRequestedSessionSettings() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    ArgumentCaptor<Mqtt5Connect> connect = ArgumentCaptor.forClass(Mqtt5Connect.class);
+
+    clientRegistry.acquire("client", null, null, new ConnectionOptions(null, null, true, 600L));
+
+    verify(mqtt5BlockingClient).connect(connect.capture());
+    assertThat(connect.getValue().isCleanStart()).isTrue();
+    assertThat(connect.getValue().getSessionExpiryInterval()).isEqualTo(600);
+  }
+
+  @Test
+  public void acquire_shouldConnectAsynchronouslyWhenConfigured() {
+    configurationProperties.setConnectMode(ConnectMode.ASYNC);
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    CompletableFuture<Mqtt5ConnAck> connAck = new CompletableFuture<>();
+    mockAsyncConnect(mqtt5BlockingClient, connAck);
+
+    assertThat(clientRegistry.acquire("client", null, null)).isSameAs(mqtt5BlockingClient);
+
+    verify(mqtt5BlockingClient, never()).connect(Mockito.any(Mqtt5Connect.class));
+    assertThatThrownBy(() -> clientRegistry.awaitConnections(10, TimeUnit.MILLISECONDS))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("[client]");
+
+    connAck.complete(Mockito.mock(Mqtt5ConnAck.class));
+
+    clientRegistry.awaitConnections(10, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void acquire_shouldConnectOtherClientsWhileAConnectBlocks() throws Exception {
+    CountDownLatch connecting = new CountDownLatch(1);
+    CountDownLatch brokerAnswers = new CountDownLatch(1);
+    Mqtt5BlockingClient slow = mockClient();
+    Mockito.doAnswer(
+            inv -> {
+              connecting.countDown();
+              brokerAnswers.await(10, TimeUnit.SECONDS);
+              return null;
+            })
+        .when(slow)
+        .connect(Mockito.any(Mqtt5Connect.class));
+    Mqtt5BlockingClient fast = mockClient();
+    MqttClientRegistry registry =
+        new MqttClientRegistry(configurationProperties) {
+          @Override
+          Mqtt5BlockingClient createClient(
+              ConnectionKey key,
+              MqttMetrics.Client clientMetrics,
+              ConnectionOptions options,
+              SubscriptionMultiplexer multiplexer) {
+            return "slow".equals(key.getClientId()) ? slow : fast;
+          }
+        };
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Mqtt5BlockingClient> acquired =
+          executor.submit(() -> registry.acquire("slow", null, null));
+      assertThat(connecting.await(10, TimeUnit.SECONDS)).isTrue();
+
+      assertThat(registry.acquire("fast", null, null)).isSameAs(fast);
+      assertThat(acquired.isDone()).isFalse();
+
+      brokerAnswers.countDown();
+      assertThat(acquired.get(10, TimeUnit.SECONDS)).isSameAs(slow);
+    } finally {
+      brokerAnswers.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void acquire_shouldRemoveClientWhenConnectFails() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    Mockito.doThrow(new IllegalStateException("refused"))
+        .when(mqtt5BlockingClient)
+        .connect(Mockito.any(Mqtt5Connect.class));
+
+    assertThatThrownBy(() -> clientRegistry.acquire("client", null, null)).hasMessage("refused");
+
+    assertThat(clientRegistry.size()).isZero();
+  }
+
+  @Test
+  public void subscribe_shouldSubscribeOnceAsynchronousClientHasConnected() {
+    configurationProperties.setConnectMode(ConnectMode.ASYNC);
+    configurationProperties.setMultiplexSubscriptions(true);
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    CompletableFuture<Mqtt5ConnAck> connAck = new CompletableFuture<>();
+    Mqtt5AsyncClient mqtt5AsyncClient = mockAsyncConnect(mqtt5BlockingClient, connAck);
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        mockSubscribe(mqtt5AsyncClient);
+
+    clientRegistry.acquire("client", null, null);
+    clientRegistry.subscribe(
+        mqtt5BlockingClient, "devices/+", MqttQos.AT_LEAST_ONCE, (p, ack) -> {});
+
+    verify(mqtt5AsyncClient, never()).subscribeWith();
+
+    connAck.complete(Mockito.mock(Mqtt5ConnAck.class));
+    connected(false);
+
+    verify(subscribeBuilder).topicFilter("devices/+");
+    verify((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) subscribeBuilder).send();
+  }
+
+  @Test
+  public void subscribe_shouldRouteMessagesOfResumedSessionWithoutSubscribing() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    Mqtt5AsyncClient mqtt5AsyncClient = mockPersistentSession(mqtt5BlockingClient, true);
+    mockSubscribe(mqtt5AsyncClient);
+    List<Mqtt5Publish> received = new ArrayList<>();
+
+    clientRegistry.acquire("client", null, null, new ConnectionOptions(null, null, false, 60L));
+    connected(true);
+    Consumer<Mqtt5Publish> routingCallback = captureRoutingCallback(mqtt5AsyncClient);
+    // the broker delivers messages of the session before the binding has subscribed
+    Mqtt5Publish early = Mqtt5Publish.builder().topic("devices/1").build();
+    routingCallback.accept(early);
+    clientRegistry.subscribe(
+        mqtt5BlockingClient,
+        "$share/group/devices/+",
+        MqttQos.AT_LEAST_ONCE,
+        (p, ack) -> received.add(p));
+    Mqtt5Publish late = Mqtt5Publish.builder().topic("devices/2").build();
+    routingCallback.accept(late);
+
+    assertThat(received).containsExactly(early, late);
+    verify(mqtt5AsyncClient, never()).subscribeWith();
+  }
+
+  @Test
+  public void subscribe_shouldSubscribeWhenSessionIsNotPresent() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    Mqtt5AsyncClient mqtt5AsyncClient = mockPersistentSession(mqtt5BlockingClient, false);
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        mockSubscribe(mqtt5AsyncClient);
+
+    clientRegistry.acquire("client", null, null, new ConnectionOptions(null, null, false, 60L));
+    connected(false);
+    clientRegistry.subscribe(
+        mqtt5BlockingClient, "devices/+", MqttQos.EXACTLY_ONCE, (p, ack) -> {});
+
+    verify(subscribeBuilder).topicFilter("devices/+");
+    verify(subscribeBuilder).qos(MqttQos.EXACTLY_ONCE);
+    verify((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) subscribeBuilder).send();
+  }
+
+  @Test
+  public void subscribe_shouldSubscribeOnceAgainWhenReconnectLostSession() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    Mqtt5AsyncClient mqtt5AsyncClient = mockPersistentSession(mqtt5BlockingClient, false);
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        mockSubscribe(mqtt5AsyncClient);
+    MqttClientDisconnectedContext disconnectedContext =
+        Mockito.mock(MqttClientDisconnectedContext.class);
+    MqttClientReconnector reconnector = Mockito.mock(MqttClientReconnector.class);
+    Mockito.doReturn(reconnector).when(disconnectedContext).getReconnector();
+
+    clientRegistry.acquire("client", null, null, new ConnectionOptions(null, null, false, 60L));
+    connected(false);
+    clientRegistry.subscribe(
+        mqtt5BlockingClient, "devices/+", MqttQos.AT_LEAST_ONCE, (p, ack) -> {});
+    disconnectedListener.onDisconnected(disconnectedContext);
+
+    // the client must not subscribe again on its own, the registry does
+    verify(reconnector).resubscribeIfSessionExpired(false);
+
+    connected(false);
+    connected(true);
+
+    verify(subscribeBuilder, times(2)).topicFilter("devices/+");
+  }
+
+  @Test
+  public void subscribe_shouldRejectClientWithoutPersistentSession() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+
+    clientRegistry.acquire("client", null, null);
+
+    assertThatThrownBy(
+            () ->
+                clientRegistry.subscribe(
+                    mqtt5BlockingClient, "devices/+", MqttQos.AT_LEAST_ONCE, (p, ack) -> {}))
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void subscribe_shouldMultiplexOverlappingFiltersOverOneSubscription() {
+    configurationProperties.setMultiplexSubscriptions(true);
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+    Mqtt5AsyncClient mqtt5AsyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+    Mockito.doReturn(mqtt5AsyncClient).when(mqtt5BlockingClient).toAsync();
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        mockSubscribe(mqtt5AsyncClient);
+    Mqtt5UnsubscribeBuilder.Send.Start<CompletableFuture<Mqtt5UnsubAck>> unsubscribeBuilder =
+        Mockito.mock(
+            Mqtt5UnsubscribeBuilder.Send.Start.class,
+            withSettings().extraInterfaces(Mqtt5UnsubscribeBuilder.Send.Complete.class));
+    Mockito.doReturn(unsubscribeBuilder).when(mqtt5AsyncClient).unsubscribeWith();
+    Mockito.doReturn(unsubscribeBuilder).when(unsubscribeBuilder).topicFilter(Mockito.anyString());
+    Mockito.doReturn(new CompletableFuture<>())
+        .when((Mqtt5UnsubscribeBuilder.Send.Complete<?>) (Object) unsubscribeBuilder)
+        .send();
+    List<Runnable> temperatures = new ArrayList<>();
+    List<Runnable> all = new ArrayList<>();
+
+    clientRegistry.acquire("client", null, null);
+    connected(false);
+    clientRegistry.subscribe(
+        mqtt5BlockingClient,
+        "site/+/temp",
+        MqttQos.AT_LEAST_ONCE,
+        (p, ack) -> temperatures.add(ack));
+    clientRegistry.subscribe(
+        mqtt5BlockingClient, "site/#", MqttQos.AT_MOST_ONCE, (p, ack) -> all.add(ack));
+    Mqtt5Publish publish = Mockito.mock(Mqtt5Publish.class);
+    Mockito.doReturn(MqttTopic.of("site/1/temp")).when(publish).getTopic();
+    ArgumentCaptor<Consumer<Mqtt5Publish>> callbacks = ArgumentCaptor.forClass(Consumer.class);
+    verify(subscribeBuilder, times(2)).callback(callbacks.capture());
+    callbacks.getAllValues().get(1).accept(publish);
+
+    ArgumentCaptor<String> topicFilters = ArgumentCaptor.forClass(String.class);
+    verify(subscribeBuilder, times(2)).topicFilter(topicFilters.capture());
+    assertThat(topicFilters.getAllValues()).containsExactly("site/+/temp", "site/#");
+    // the covering filter takes over the QoS of the filter it covers
+    verify(subscribeBuilder, times(2)).qos(MqttQos.AT_LEAST_ONCE);
+    verify(subscribeBuilder, never()).qos(MqttQos.AT_MOST_ONCE);
+    verify(unsubscribeBuilder).topicFilter("site/+/temp");
+    assertThat(temperatures).hasSize(1);
+    assertThat(all).hasSize(1);
+    temperatures.get(0).run();
+    verify(publish, never()).acknowledge();
+    all.get(0).run();
+    verify(publish).acknowledge();
+  }
+
+  @Test
+  public void release_shouldDisconnectWhenLastReferenceIsReleased() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+
+    clientRegistry.acquire("client", null, null);
+    clientRegistry.acquire("client", null, null);
+
+    clientRegistry.release(mqtt5BlockingClient);
+    verify(mqtt5BlockingClient, never()).disconnect();
+
+    clientRegistry.release(mqtt5BlockingClient);
+    verify(mqtt5BlockingClient).disconnect();
+    assertThat(clientRegistry.size()).isZero();
+  }
+
+  @Test
+  public void release_shouldUseOtherClientsWhileADisconnectBlocks() throws Exception {
+    CountDownLatch disconnecting = new CountDownLatch(1);
+    CountDownLatch brokerAnswers = new CountDownLatch(1);
+    Mqtt5BlockingClient slow = mockClient();
+    Mockito.doAnswer(
+            inv -> {
+              disconnecting.countDown();
+              brokerAnswers.await(10, TimeUnit.SECONDS);
+              return null;
+            })
+        .when(slow)
+        .disconnect();
+    Mqtt5BlockingClient fast = mockClient();
+    MqttClientRegistry registry =
+        new MqttClientRegistry(configurationProperties) {
+          @Override
+          Mqtt5BlockingClient createClient(
+              ConnectionKey key,
+              MqttMetrics.Client clientMetrics,
+              ConnectionOptions options,
+              SubscriptionMultiplexer multiplexer) {
+            return "slow".equals(key.getClientId()) ? slow : fast;
+          }
+        };
+    registry.acquire("slow", null, null);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> released = executor.submit(() -> registry.release(slow));
+      assertThat(disconnecting.await(10, TimeUnit.SECONDS)).isTrue();
+
+      assertThat(registry.acquire("fast", null, null)).isSameAs(fast);
+      registry.release(fast);
+      assertThat(released.isDone()).isFalse();
+
+      brokerAnswers.countDown();
+      released.get(10, TimeUnit.SECONDS);
+      assertThat(registry.size()).isZero();
+    } finally {
+      brokerAnswers.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void destroy_shouldDisconnectRemainingClients() {
+    Mqtt5BlockingClient mqtt5BlockingClient = mockClient();
+    initMockForMqttClient(mqtt5BlockingClient);
+
+    clientRegistry.acquire("client", null, null);
+    clientRegistry.destroy();
+
+    verify(mqtt5BlockingClient).disconnect();
+    assertThat(clientRegistry.size()).isZero();
+  }
+
+  private Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete mockSubscribe(
+      Mqtt5AsyncClient mqtt5AsyncClient) {
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        Mockito.mock(
+            Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete.class,
+            withSettings()
+                .extraInterfaces(Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex.class)
+                // returns itself from the builder methods of the extra interface too
+                .defaultAnswer(
+                    inv ->
+                        inv.getMethod().getReturnType().isInstance(inv.getMock())
+                            ? inv.getMock()
+                            : Mockito.RETURNS_DEFAULTS.answer(inv)));
+    Mockito.doReturn(subscribeBuilder).when(mqtt5AsyncClient).subscribeWith();
+    Mockito.doReturn(new CompletableFuture<>())
+        .when((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) subscribeBuilder)
+        .send();
+
+    return subscribeBuilder;
+  }
+
+  private Mqtt5AsyncClient mockPersistentSession(
+      Mqtt5BlockingClient mqtt5BlockingClient, boolean sessionPresent) {
+    Mqtt5AsyncClient mqtt5AsyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+    Mqtt5ConnAck connAck = Mockito.mock(Mqtt5ConnAck.class);
+    Mockito.doReturn(sessionPresent).when(connAck).isSessionPresent();
+    Mockito.doReturn(connAck).when(mqtt5BlockingClient).connect(Mockito.any(Mqtt5Connect.class));
+    Mockito.doReturn(mqtt5AsyncClient).when(mqtt5BlockingClient).toAsync();
+
+    return mqtt5AsyncClient;
+  }
+
+  private Mqtt5AsyncClient mockAsyncConnect(
+      Mqtt5BlockingClient mqtt5BlockingClient, CompletableFuture<Mqtt5ConnAck> connAck) {
+    Mqtt5AsyncClient mqtt5AsyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+    Mockito.doReturn(connAck).when(mqtt5AsyncClient).connect(Mockito.any(Mqtt5Connect.class));
+    Mockito.doReturn(mqtt5AsyncClient).when(mqtt5BlockingClient).toAsync();
+
+    return mqtt5AsyncClient;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Consumer<Mqtt5Publish> captureRoutingCallback(Mqtt5AsyncClient mqtt5AsyncClient) {
+    ArgumentCaptor<Consumer<Mqtt5Publish>> callback = ArgumentCaptor.forClass(Consumer.class);
+    verify(mqtt5AsyncClient)
+        .publishes(
+            Mockito.eq(MqttGlobalPublishFilter.REMAINING), callback.capture(), Mockito.eq(true));
+
+    return callback.getValue();
+  }
+
+  /**
+   * Tells the listeners of the client that it has connected, as the client does on every CONNACK.
+   */
+  private void connected(boolean sessionPresent) {
+    Mqtt5ConnAck connAck = Mockito.mock(Mqtt5ConnAck.class);
+    Mockito.doReturn(sessionPresent).when(connAck).isSessionPresent();
+    Mqtt5ClientConnectedContext context = Mockito.mock(Mqtt5ClientConnectedContext.class);
+    Mockito.doReturn(connAck).when(context).getConnAck();
+    connectedListener.onConnected(context);
+  }
+
+  private Mqtt5BlockingClient mockClient() {
+    return Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void initMockForMqttClient(Mqtt5BlockingClient mqtt5BlockingClient) {
+    mqttClientBuilder = Mockito.mock(MqttClientBuilder.class);
+    Mqtt5ClientBuilder mqtt5ClientBuilder =
+        Mockito.mock(
+            Mqtt5ClientBuilder.class, withSettings().defaultAnswer(inv -> mqtt5BlockingClient));
+    MqttClientAutoReconnectBuilder.Nested<MqttRxClientBuilderBase.Choose> autoReconnectBuilder =
+        Mockito.mock(MqttClientAutoReconnectBuilder.Nested.class);
+    MqttSimpleAuthBuilder.Nested<MqttRxClientBuilder> simpleAuthBuilder =
+        Mockito.mock(MqttSimpleAuthBuilder.Nested.class);
+
+    Mockito.doReturn(mqttClientBuilder).when(mqttClientBuilder).sslConfig(null);
+    Mockito.doReturn(autoReconnectBuilder).when(mqttClientBuilder).automaticReconnect();
+    Mockito.doReturn(autoReconnectBuilder)
+        .when(autoReconnectBuilder)
+        .initialDelay(500, TimeUnit.MILLISECONDS);
+    Mockito.doReturn(autoReconnectBuilder).when(autoReconnectBuilder).maxDelay(2, TimeUnit.MINUTES);
+    Mockito.doReturn(mqttClientBuilder).when(autoReconnectBuilder).applyAutomaticReconnect();
+
+    Mockito.doReturn(mqttClientBuilder).when(mqttClientBuilder).identifier(Mockito.anyString());
+    Mockito.doReturn(mqttClientBuilder)
+        .when(mqttClientBuilder)
+        .serverHost(configurationProperties.getServerHost());
+    Mockito.doReturn(mqttClientBuilder)
+        .when(mqttClientBuilder)
+        .serverPort(configurationProperties.getServerPort());
+    Mockito.doReturn(mqtt5ClientBuilder).when(mqttClientBuilder).useMqttVersion5();
+    Mockito.doAnswer(
+            inv -> {
+              connectedListener = inv.getArgument(0);
+              return mqtt5ClientBuilder;
+            })
+        .when(mqtt5ClientBuilder)
+        .addConnectedListener(Mockito.any());
+    Mockito.doAnswer(
+            inv -> {
+              disconnectedListener = inv.getArgument(0);
+              return mqtt5ClientBuilder;
+            })
+        .when(mqtt5ClientBuilder)
+        .addDisconnectedListener(Mockito.any());
+
+    Mockito.doReturn(simpleAuthBuilder).when(mqtt5ClientBuilder).simpleAuth();
+    Mockito.doReturn(simpleAuthBuilder)
+        .when(simpleAuthBuilder)
+        .username(configurationProperties.getUsername());
+    Mockito.doReturn(simpleAuthBuilder)
+        .when(simpleAuthBuilder)
+        .password(configurationProperties.getPassword().getBytes());
+    Mockito.doReturn(mqtt5ClientBuilder).when(simpleAuthBuilder).applySimpleAuth();
+
+    mqttClientMockedStatic.when(MqttClient::builder).thenReturn(mqttClientBuilder);
+  }
+}
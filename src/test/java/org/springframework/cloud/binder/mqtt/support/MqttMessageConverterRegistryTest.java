@@ -0,0 +1,95 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.util.MimeTypeUtils;
+
+public class MqttMessageConverterRegistryTest {
+
+  private final MqttMessageConverterRegistry registry = new MqttMessageConverterRegistry();
+
+  @Test
+  public void toMessage_shouldDecodeJsonToString() {
+    Message<?> message = registry.toMessage("{}".getBytes(), headers("application/json"));
+
+    assertThat(message.getPayload()).isEqualTo("{}");
+  }
+
+  @Test
+  public void toMessage_shouldDecodeTextToString() {
+    Message<?> message = registry.toMessage("a,b".getBytes(), headers("text/csv;charset=UTF-8"));
+
+    assertThat(message.getPayload()).isEqualTo("a,b");
+  }
+
+  @Test
+  public void toMessage_shouldDecodePayloadWithoutContentTypeToString() {
+    Message<?> message =
+        registry.toMessage("payload".getBytes(), new MessageHeaders(Collections.emptyMap()));
+
+    assertThat(message.getPayload()).isEqualTo("payload");
+  }
+
+  @Test
+  public void toMessage_shouldPassBinaryPayloadThrough() {
+    byte[] payload = {0, 1, 2, (byte) 0xff};
+
+    Message<?> message = registry.toMessage(payload, headers("application/octet-stream"));
+
+    assertThat(message.getPayload()).isSameAs(payload);
+  }
+
+  @Test
+  public void getConverter_shouldReuseConverterPerContentType() {
+    assertThat(registry.getConverter(headers("image/png")))
+        .isSameAs(registry.getConverter(headers("image/png")))
+        .isNotSameAs(registry.getConverter(headers("application/json")));
+  }
+
+  @Test
+  public void getConverter_shouldEvictConvertersOfLeastRecentlyReceivedContentTypes() {
+    MessageConverter first = registry.getConverter(headers("application/x-type-0"));
+    for (int i = 1; i <= MqttMessageConverterRegistry.CONVERTER_CACHE_SIZE; i++) {
+      registry.getConverter(headers("application/x-type-" + i));
+    }
+
+    assertThat(registry.getConverter(headers("application/x-type-0"))).isNotSameAs(first);
+  }
+
+  @Test
+  public void getConverter_shouldNeverEvictRegisteredConverter() {
+    JsonStringMessageConverter converter = new JsonStringMessageConverter();
+    registry.register(MimeTypeUtils.APPLICATION_JSON, converter);
+    for (int i = 0; i < MqttMessageConverterRegistry.CONVERTER_CACHE_SIZE; i++) {
+      registry.getConverter(headers("application/x-type-" + i));
+    }
+
+    assertThat(registry.getConverter(headers("application/json"))).isSameAs(converter);
+  }
+
+  @Test
+  public void toMessage_shouldKeepReceivedHeaders() {
+    MessageHeaders headers = headers("application/json");
+
+    Message<?> message = registry.toMessage("{}".getBytes(), headers);
+
+    assertThat(message.getHeaders()).isSameAs(headers);
+  }
+
+  @Test
+  public void toMessage_shouldUseRegisteredConverter() {
+    JsonStringMessageConverter converter = new JsonStringMessageConverter();
+    registry.register(MimeTypeUtils.APPLICATION_JSON, converter);
+
+    assertThat(registry.getConverter(headers("application/json"))).isSameAs(converter);
+  }
+
+  private MessageHeaders headers(String contentType) {
+    return new MessageHeaders(Collections.singletonMap(MessageHeaders.CONTENT_TYPE, contentType));
+  }
+}
@@ -0,0 +1,109 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.withSettings;
+
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
+import com.hivemq.client.mqtt.mqtt5.message.connect.Mqtt5Connect;
+import com.hivemq.client.mqtt.mqtt5.message.connect.connack.Mqtt5ConnAck;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.cloud.binder.mqtt.metrics.MqttMetrics;
+import org.springframework.cloud.binder.mqtt.properties.MqttBinderConfigurationProperties;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.GenericApplicationContext;
+
+public class MqttStartupGateTest {
+
+  private CompletableFuture<Mqtt5ConnAck> connAck;
+  private MqttClientRegistry clientRegistry;
+  private GenericApplicationContext applicationContext;
+  private GenericApplicationContext binderContext;
+  private ExecutorService executor;
+
+  @BeforeEach
+  public void setUp() {
+    MqttBinderConfigurationProperties configurationProperties =
+        new MqttBinderConfigurationProperties();
+    configurationProperties.setConnectMode(ConnectMode.ASYNC);
+    connAck = new CompletableFuture<>();
+    Mqtt5BlockingClient client =
+        Mockito.mock(Mqtt5BlockingClient.class, withSettings().defaultAnswer(inv -> null));
+    Mqtt5AsyncClient asyncClient = Mockito.mock(Mqtt5AsyncClient.class);
+    Mockito.doReturn(asyncClient).when(client).toAsync();
+    Mockito.doReturn(connAck).when(asyncClient).connect(Mockito.any(Mqtt5Connect.class));
+    clientRegistry =
+        new MqttClientRegistry(configurationProperties) {
+          @Override
+          Mqtt5BlockingClient createClient(
+              ConnectionKey key,
+              MqttMetrics.Client clientMetrics,
+              ConnectionOptions options,
+              SubscriptionMultiplexer multiplexer) {
+            return client;
+          }
+        };
+    clientRegistry.acquire("client", null, null);
+    applicationContext = new GenericApplicationContext();
+    binderContext = new GenericApplicationContext(applicationContext);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void onApplicationEvent_shouldReleaseStartupOnceClientsHaveConnected() throws Exception {
+    MqttStartupGate gate = new MqttStartupGate(clientRegistry, 10);
+    gate.setApplicationContext(binderContext);
+
+    Future<?> startup =
+        executor.submit(
+            () -> gate.onApplicationEvent(new ContextRefreshedEvent(applicationContext)));
+
+    Thread.sleep(100);
+    assertThat(startup.isDone()).isFalse();
+
+    connAck.complete(Mockito.mock(Mqtt5ConnAck.class));
+
+    startup.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void onApplicationEvent_shouldFailStartupWhenClientsDoNotConnectInTime() {
+    MqttStartupGate gate = new MqttStartupGate(clientRegistry, 1);
+    gate.setApplicationContext(binderContext);
+
+    assertThatThrownBy(() -> gate.onApplicationEvent(new ContextRefreshedEvent(applicationContext)))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("[client]");
+  }
+
+  @Test
+  public void onApplicationEvent_shouldOnlyWaitForRefreshOfApplicationContext() {
+    MqttStartupGate gate = new MqttStartupGate(clientRegistry, 1);
+    gate.setApplicationContext(binderContext);
+
+    gate.onApplicationEvent(new ContextRefreshedEvent(binderContext));
+  }
+
+  @Test
+  public void onApplicationEvent_shouldNotWaitWithoutTimeout() {
+    MqttStartupGate gate = new MqttStartupGate(clientRegistry, 0);
+    gate.setApplicationContext(binderContext);
+
+    gate.onApplicationEvent(new ContextRefreshedEvent(applicationContext));
+    gate.onApplicationEvent(new ContextRefreshedEvent(binderContext));
+  }
+}
@@ -0,0 +1,78 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.mqtt5.datatypes.Mqtt5UserProperties;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.binder.mqtt.codec.PayloadCompression;
+import org.springframework.messaging.MessageHeaders;
+
+public class ReceivedPublishesTest {
+
+  @Test
+  public void getHeaders_shouldReadPropertiesOfPublish() {
+    Mqtt5Publish mqtt5Publish =
+        Mqtt5Publish.builder()
+            .topic("rpc/replies")
+            .qos(MqttQos.EXACTLY_ONCE)
+            .retain(true)
+            .messageExpiryInterval(60)
+            .responseTopic("rpc/next")
+            .correlationData(new byte[] {1, 2})
+            .contentType("application/json")
+            .userProperties(
+                Mqtt5UserProperties.builder()
+                    .add("deviceId", "device-1")
+                    .add("deviceId", "device-2")
+                    .add(PayloadCompression.USER_PROPERTY, "deflate")
+                    .build())
+            .build();
+
+    Map<String, Object> headers = ReceivedPublishes.getHeaders(mqtt5Publish);
+
+    assertThat(headers)
+        .contains(
+            entry(MqttHeaders.RECEIVED_TOPIC, "rpc/replies"),
+            entry(MqttHeaders.RECEIVED_QOS, 2),
+            entry(MqttHeaders.RECEIVED_RETAINED, true),
+            entry(MqttHeaders.RECEIVED_MESSAGE_EXPIRY_INTERVAL, 60L),
+            entry(MqttHeaders.RESPONSE_TOPIC, "rpc/next"),
+            entry(MessageHeaders.CONTENT_TYPE, "application/json"))
+        .doesNotContainKey("deviceId");
+    assertThat((byte[]) headers.get(MqttHeaders.CORRELATION_DATA)).containsExactly(1, 2);
+    // the payload is decompressed, its encoding is not handed out
+    assertThat(headers.get(MqttHeaders.RECEIVED_USER_PROPERTIES))
+        .isEqualTo(Map.of("deviceId", "device-1"));
+  }
+
+  @Test
+  public void getPayload_shouldDecompressPayloadOfKnownEncodingOnly() throws Exception {
+    byte[] payload = "payload".getBytes(StandardCharsets.UTF_8);
+    Mqtt5Publish compressed =
+        Mqtt5Publish.builder()
+            .topic("topic")
+            .payload(PayloadCompression.DEFLATE.compress(payload))
+            .userProperties(
+                Mqtt5UserProperties.builder()
+                    .add(PayloadCompression.USER_PROPERTY, PayloadCompression.DEFLATE.getEncoding())
+                    .build())
+            .build();
+    Mqtt5Publish unknown =
+        Mqtt5Publish.builder()
+            .topic("topic")
+            .payload(payload)
+            .userProperties(
+                Mqtt5UserProperties.builder().add(PayloadCompression.USER_PROPERTY, "br").build())
+            .build();
+
+    assertThat(ReceivedPublishes.getPayload(compressed, 1024)).isEqualTo(payload);
+    assertThat(ReceivedPublishes.getPayload(unknown, 1024)).isEqualTo(payload);
+    assertThat(ReceivedPublishes.getHeaders(unknown).get(MqttHeaders.RECEIVED_USER_PROPERTIES))
+        .isEqualTo(Map.of(PayloadCompression.USER_PROPERTY, "br"));
+  }
+}
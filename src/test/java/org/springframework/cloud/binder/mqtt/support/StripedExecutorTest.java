@@ -0,0 +1,105 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+@ExtendWith(MockitoExtension.class)
+public class StripedExecutorTest {
+
+  private StripedExecutor executor;
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void execute_shouldKeepSubmissionOrderPerKey() throws InterruptedException {
+    executor = new StripedExecutor(4, new CustomizableThreadFactory("striped-"));
+    List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(1000);
+
+    for (int i = 0; i < 1000; i++) {
+      int sequence = i;
+      executor.execute(
+          "device/1",
+          () -> {
+            processed.add(sequence);
+            done.countDown();
+          });
+    }
+
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(processed).isSorted().hasSize(1000);
+  }
+
+  @Test
+  public void execute_shouldNotLetSlowKeyStallOtherStripes() throws InterruptedException {
+    executor = new StripedExecutor(2, new CustomizableThreadFactory("striped-"));
+    String slowKey = "device/1";
+    String fastKey = keyOnOtherStripe(slowKey);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch fastDone = new CountDownLatch(1);
+
+    executor.execute(slowKey, () -> awaitQuietly(release));
+    executor.execute(fastKey, fastDone::countDown);
+
+    assertThat(fastDone.await(1, TimeUnit.SECONDS)).isTrue();
+    release.countDown();
+  }
+
+  @Test
+  public void tryExecute_shouldRejectTaskWhenStripeQueueIsFull() throws InterruptedException {
+    executor = new StripedExecutor(1, new CustomizableThreadFactory("striped-"));
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    executor.execute(
+        "device/1",
+        () -> {
+          started.countDown();
+          awaitQuietly(release);
+        });
+    assertThat(started.await(1, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(executor.tryExecute("device/1", () -> {}, 2)).isTrue();
+    assertThat(executor.tryExecute("device/1", () -> {}, 2)).isTrue();
+    assertThat(executor.tryExecute("device/1", () -> {}, 2)).isFalse();
+    release.countDown();
+  }
+
+  @Test
+  public void stripeOf_shouldUseSingleStripeWithoutConcurrency() {
+    executor = new StripedExecutor(1, new CustomizableThreadFactory("striped-"));
+
+    assertThat(executor.stripeOf("device/1")).isZero();
+    assertThat(executor.stripeOf("device/2")).isZero();
+  }
+
+  private String keyOnOtherStripe(String key) {
+    for (int i = 2; ; i++) {
+      String candidate = "device/" + i;
+      if (executor.stripeOf(candidate) != executor.stripeOf(key)) {
+        return candidate;
+      }
+    }
+  }
+
+  private void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
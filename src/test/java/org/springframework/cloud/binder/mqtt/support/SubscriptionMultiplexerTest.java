@@ -0,0 +1,304 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+import com.hivemq.client.mqtt.MqttGlobalPublishFilter;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.datatypes.MqttTopic;
+import com.hivemq.client.mqtt.mqtt5.Mqtt5AsyncClient;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
+import com.hivemq.client.mqtt.mqtt5.message.unsubscribe.Mqtt5UnsubscribeBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class SubscriptionMultiplexerTest {
+
+  private Mqtt5AsyncClient client;
+  /** Broker subscriptions in the order they were sent, as {@code topicFilter@qos}. */
+  private final List<String> subscribed = new ArrayList<>();
+
+  private final List<String> unsubscribed = new ArrayList<>();
+  /** Callback of the last subscription of each topic filter. */
+  private final Map<String, Consumer<Mqtt5Publish>> callbacks = new HashMap<>();
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    client = Mockito.mock(Mqtt5AsyncClient.class);
+    Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete subscribeBuilder =
+        Mockito.mock(
+            Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Start.Complete.class,
+            withSettings()
+                .extraInterfaces(Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex.class)
+                .defaultAnswer(
+                    inv ->
+                        inv.getMethod().getReturnType().isInstance(inv.getMock())
+                            ? inv.getMock()
+                            : Mockito.RETURNS_DEFAULTS.answer(inv)));
+    Mockito.doReturn(subscribeBuilder).when(client).subscribeWith();
+    String[] topicFilter = new String[1];
+    Mockito.doAnswer(
+            inv -> {
+              topicFilter[0] = inv.getArgument(0);
+              return subscribeBuilder;
+            })
+        .when(subscribeBuilder)
+        .topicFilter(Mockito.anyString());
+    Mockito.doAnswer(
+            inv -> {
+              subscribed.add(topicFilter[0] + "@" + ((MqttQos) inv.getArgument(0)).getCode());
+              return subscribeBuilder;
+            })
+        .when(subscribeBuilder)
+        .qos(Mockito.any());
+    Mockito.doAnswer(
+            inv -> {
+              callbacks.put(topicFilter[0], inv.getArgument(0));
+              return subscribeBuilder;
+            })
+        .when(subscribeBuilder)
+        .callback(Mockito.any());
+    Mockito.doReturn(new CompletableFuture<>())
+        .when((Mqtt5AsyncClient.Mqtt5SubscribeAndCallbackBuilder.Call.Ex) subscribeBuilder)
+        .send();
+
+    Mqtt5UnsubscribeBuilder.Send.Start<?> unsubscribeBuilder =
+        Mockito.mock(
+            Mqtt5UnsubscribeBuilder.Send.Start.class,
+            withSettings().extraInterfaces(Mqtt5UnsubscribeBuilder.Send.Complete.class));
+    Mockito.doReturn(unsubscribeBuilder).when(client).unsubscribeWith();
+    Mockito.doAnswer(
+            inv -> {
+              unsubscribed.add(inv.getArgument(0));
+              return unsubscribeBuilder;
+            })
+        .when(unsubscribeBuilder)
+        .topicFilter(Mockito.anyString());
+    Mockito.doReturn(new CompletableFuture<>())
+        .when((Mqtt5UnsubscribeBuilder.Send.Complete<?>) (Object) unsubscribeBuilder)
+        .send();
+  }
+
+  @Test
+  public void add_shouldOnlySubscribeCoveringFilterWithHighestQos() {
+    SubscriptionMultiplexer multiplexer = connectedMultiplexer(false);
+
+    multiplexer.add("site/+/temp", MqttQos.EXACTLY_ONCE, (p, ack) -> {});
+    multiplexer.add("site/#", MqttQos.AT_MOST_ONCE, (p, ack) -> {});
+
+    assertThat(subscribed).containsExactly("site/+/temp@2", "site/#@2");
+    assertThat(unsubscribed).containsExactly("site/+/temp");
+  }
+
+  @Test
+  public void add_shouldSubscribeCoveringFilterAgainForHigherQos() {
+    SubscriptionMultiplexer multiplexer = connectedMultiplexer(false);
+
+    multiplexer.add("site/#", MqttQos.AT_MOST_ONCE, (p, ack) -> {});
+    multiplexer.add("site/+/temp", MqttQos.AT_LEAST_ONCE, (p, ack) -> {});
+    multiplexer.add("site/+/humidity", MqttQos.AT_MOST_ONCE, (p, ack) -> {});
+
+    assertThat(subscribed).containsExactly("site/#@0", "site/#@1");
+    assertThat(unsubscribed).isEmpty();
+  }
+
+  @Test
+  public void remove_shouldSubscribeCoveredFilterAndUnsubscribeUnneededOne() {
+    SubscriptionMultiplexer multiplexer = connectedMultiplexer(false);
+    BiConsumer<Mqtt5Publish, Runnable> all = (p, ack) -> {};
+    BiConsumer<Mqtt5Publish, Runnable> temperatures = (p, ack) -> {};
+    multiplexer.add("site/#", MqttQos.AT_LEAST_ONCE, all);
+    multiplexer.add("site/+/temp", MqttQos.AT_LEAST_ONCE, temperatures);
+
+    multiplexer.remove("site/#", all);
+    assertThat(subscribed).containsExactly("site/#@1", "site/+/temp@1");
+    assertThat(unsubscribed).containsExactly("site/#");
+
+    multiplexer.remove("site/+/temp", temperatures);
+    assertThat(unsubscribed).containsExactly("site/#", "site/+/temp");
+  }
+
+  @Test
+  public void route_shouldHandMessageToEveryBindingOfCoveringSubscriptionOnce() {
+    SubscriptionMultiplexer multiplexer = connectedMultiplexer(false);
+    List<Runnable> temperatures = new ArrayList<>();
+    List<Runnable> all = new ArrayList<>();
+    multiplexer.add("site/+/temp", MqttQos.AT_LEAST_ONCE, (p, ack) -> temperatures.add(ack));
+    multiplexer.add("site/#", MqttQos.AT_LEAST_ONCE, (p, ack) -> all.add(ack));
+    Mqtt5Publish publish = publish("site/1/temp", MqttQos.AT_LEAST_ONCE);
+
+    callbacks.get("site/#").accept(publish);
+
+    assertThat(temperatures).hasSize(1);
+    assertThat(all).hasSize(1);
+    temperatures.get(0).run();
+    verify(publish, never()).acknowledge();
+    all.get(0).run();
+    verify(publish).acknowledge();
+  }
+
+  @Test
+  public void route_shouldHandCopiesOfOverlappingFiltersToTheirBindingsOnly() {
+    SubscriptionMultiplexer multiplexer = connectedMultiplexer(false);
+    List<Mqtt5Publish> temperatures = new ArrayList<>();
+    List<Mqtt5Publish> siteA = new ArrayList<>();
+    multiplexer.add("site/+/temp", MqttQos.AT_LEAST_ONCE, into(temperatures));
+    multiplexer.add("site/a/#", MqttQos.AT_LEAST_ONCE, into(siteA));
+    Mqtt5Publish first = publish("site/a/temp", MqttQos.AT_LEAST_ONCE);
+    Mqtt5Publish second = publish("site/a/temp", MqttQos.AT_LEAST_ONCE);
+
+    // the broker sends a copy for each subscription
+    callbacks.get("site/+/temp").accept(first);
+    callbacks.get("site/a/#").accept(second);
+
+    assertThat(subscribed).containsExactly("site/+/temp@1", "site/a/#@1");
+    assertThat(temperatures).containsExactly(first);
+    assertThat(siteA).containsExactly(second);
+  }
+
+  @Test
+  public void route_shouldHandMessagesOfSharedSubscriptionToItsBindingOnly() {
+    SubscriptionMultiplexer multiplexer = connectedMultiplexer(false);
+    List<Mqtt5Publish> shared = new ArrayList<>();
+    List<Mqtt5Publish> own = new ArrayList<>();
+    multiplexer.add("$share/group/devices/#", MqttQos.AT_LEAST_ONCE, into(shared));
+    multiplexer.add("devices/+", MqttQos.AT_LEAST_ONCE, into(own));
+    Mqtt5Publish balanced = publish("devices/1", MqttQos.AT_LEAST_ONCE);
+    Mqtt5Publish copy = publish("devices/1", MqttQos.AT_LEAST_ONCE);
+
+    callbacks.get("$share/group/devices/#").accept(balanced);
+    callbacks.get("devices/+").accept(copy);
+
+    assertThat(subscribed).containsExactly("$share/group/devices/#@1", "devices/+@1");
+    assertThat(shared).containsExactly(balanced);
+    assertThat(own).containsExactly(copy);
+  }
+
+  @Test
+  public void add_shouldHandHeldBackMessagesToBindingsClaimingThem() {
+    SubscriptionMultiplexer multiplexer = new SubscriptionMultiplexer(true);
+    Consumer<Mqtt5Publish> unclaimed = attach(multiplexer);
+    List<Mqtt5Publish> devices = new ArrayList<>();
+    List<Runnable> all = new ArrayList<>();
+    Mqtt5Publish early = publish("devices/1", MqttQos.AT_LEAST_ONCE);
+    Mqtt5Publish other = publish("other/1", MqttQos.AT_LEAST_ONCE);
+
+    // messages of the resumed session arrive before any binding has subscribed
+    unclaimed.accept(early);
+    unclaimed.accept(other);
+    multiplexer.connected(true);
+    multiplexer.add("devices/+", MqttQos.AT_LEAST_ONCE, into(devices));
+    assertThat(devices).containsExactly(early);
+
+    multiplexer.add("#", MqttQos.AT_LEAST_ONCE, (p, ack) -> all.add(ack));
+
+    assertThat(all).hasSize(1);
+    all.get(0).run();
+    verify(other).acknowledge();
+    verify(early, never()).acknowledge();
+  }
+
+  @Test
+  public void connected_shouldOnlySubscribeOnceResumedSessionIsLost() {
+    SubscriptionMultiplexer multiplexer = new SubscriptionMultiplexer(true);
+    Consumer<Mqtt5Publish> unclaimed = attach(multiplexer);
+    List<Mqtt5Publish> devices = new ArrayList<>();
+    Mqtt5Publish publish = publish("devices/1", MqttQos.AT_LEAST_ONCE);
+
+    multiplexer.connected(true);
+    multiplexer.add("devices/+", MqttQos.AT_LEAST_ONCE, into(devices));
+    multiplexer.add("site/#", MqttQos.EXACTLY_ONCE, (p, ack) -> {});
+    unclaimed.accept(publish);
+
+    assertThat(subscribed).isEmpty();
+    assertThat(devices).containsExactly(publish);
+
+    multiplexer.connected(false);
+
+    assertThat(subscribed).containsExactlyInAnyOrder("devices/+@1", "site/#@2");
+  }
+
+  @Test
+  public void dispatch_shouldNotAcknowledgeUnclaimedMessagesBeyondLimitUnlessQos0() {
+    SubscriptionMultiplexer multiplexer = new SubscriptionMultiplexer(true);
+    Consumer<Mqtt5Publish> unclaimed = attach(multiplexer);
+    Mqtt5Publish held = publish("devices/1", MqttQos.AT_LEAST_ONCE);
+    for (int i = 0; i < 10_000; i++) {
+      unclaimed.accept(held);
+    }
+    Mqtt5Publish qos1 = publish("devices/1", MqttQos.AT_LEAST_ONCE);
+    Mqtt5Publish qos0 = publish("devices/1", MqttQos.AT_MOST_ONCE);
+
+    unclaimed.accept(qos1);
+    unclaimed.accept(qos0);
+
+    verify(qos1, never()).acknowledge();
+    verify(qos0).acknowledge();
+  }
+
+  @Test
+  public void route_shouldHoldBackMessagesOfStoppedBindingForItsSubscription() {
+    SubscriptionMultiplexer multiplexer = new SubscriptionMultiplexer(true);
+    attach(multiplexer);
+    multiplexer.connected(false);
+    List<Mqtt5Publish> all = new ArrayList<>();
+    List<Mqtt5Publish> devices = new ArrayList<>();
+    BiConsumer<Mqtt5Publish, Runnable> stopped = (p, ack) -> {};
+    multiplexer.add("#", MqttQos.AT_LEAST_ONCE, into(all));
+    multiplexer.add("devices/+", MqttQos.AT_LEAST_ONCE, stopped);
+    multiplexer.remove("devices/+", stopped);
+    Mqtt5Publish publish = publish("devices/1", MqttQos.AT_LEAST_ONCE);
+
+    // the subscription stays in the session, the broker sends its copy meanwhile
+    callbacks.get("devices/+").accept(publish);
+    multiplexer.add("devices/+", MqttQos.AT_LEAST_ONCE, into(devices));
+
+    assertThat(unsubscribed).isEmpty();
+    assertThat(devices).containsExactly(publish);
+    assertThat(all).isEmpty();
+  }
+
+  private SubscriptionMultiplexer connectedMultiplexer(boolean persistentSession) {
+    SubscriptionMultiplexer multiplexer = new SubscriptionMultiplexer(persistentSession);
+    attach(multiplexer);
+    multiplexer.connected(false);
+
+    return multiplexer;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Consumer<Mqtt5Publish> attach(SubscriptionMultiplexer multiplexer) {
+    multiplexer.attach(client);
+    ArgumentCaptor<Consumer<Mqtt5Publish>> callback = ArgumentCaptor.forClass(Consumer.class);
+    verify(client)
+        .publishes(
+            Mockito.eq(MqttGlobalPublishFilter.REMAINING), callback.capture(), Mockito.eq(true));
+
+    return callback.getValue();
+  }
+
+  /** Collects the messages handed to a binding, without acknowledging them. */
+  private static BiConsumer<Mqtt5Publish, Runnable> into(List<Mqtt5Publish> received) {
+    return (publish, acknowledgement) -> received.add(publish);
+  }
+
+  private static Mqtt5Publish publish(String topic, MqttQos qos) {
+    Mqtt5Publish publish = Mockito.mock(Mqtt5Publish.class);
+    Mockito.doReturn(MqttTopic.of(topic)).when(publish).getTopic();
+    Mockito.doReturn(qos).when(publish).getQos();
+
+    return publish;
+  }
+}
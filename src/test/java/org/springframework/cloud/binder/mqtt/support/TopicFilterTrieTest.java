@@ -0,0 +1,70 @@
+package org.springframework.cloud.binder.mqtt.support;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class TopicFilterTrieTest {
+
+  private final TopicFilterTrie<String> trie = new TopicFilterTrie<>();
+
+  @Test
+  public void match_shouldFollowExactAndWildcardLevels() {
+    trie.add("site/+/temp", "single");
+    trie.add("site/#", "multi");
+    trie.add("site/1/temp", "exact");
+    trie.add("site/+/alarm", "alarm");
+    trie.add("#", "all");
+
+    assertThat(match("site/1/temp")).containsExactlyInAnyOrder("single", "multi", "exact", "all");
+    assertThat(match("site/2/temp")).containsExactlyInAnyOrder("single", "multi", "all");
+    assertThat(match("site/2/alarm")).containsExactlyInAnyOrder("alarm", "multi", "all");
+    assertThat(match("site")).containsExactlyInAnyOrder("multi", "all");
+    assertThat(match("other/1/temp")).containsExactly("all");
+  }
+
+  @Test
+  public void match_shouldNotMatchSystemTopicsWithLeadingWildcards() {
+    trie.add("#", "all");
+    trie.add("+/broker", "single");
+    trie.add("$SYS/#", "system");
+
+    assertThat(match("$SYS/broker")).containsExactly("system");
+  }
+
+  @Test
+  public void match_shouldHandEachOccurrenceOnce() {
+    trie.add("site/+", "a");
+    trie.add("site/+", "b");
+    trie.add("site/+", "a");
+
+    assertThat(match("site/1")).containsExactly("a", "b", "a");
+  }
+
+  @Test
+  public void remove_shouldRemoveSingleOccurrenceAndPruneEmptyBranches() {
+    trie.add("site/+/temp", "a");
+    trie.add("site/+/temp", "b");
+    trie.add("site/#", "c");
+
+    assertThat(trie.remove("site/+/temp", "a")).isTrue();
+    assertThat(trie.remove("site/+/temp", "a")).isFalse();
+    assertThat(trie.remove("site/+/other", "b")).isFalse();
+    assertThat(match("site/1/temp")).containsExactlyInAnyOrder("b", "c");
+
+    trie.remove("site/+/temp", "b");
+    trie.remove("site/#", "c");
+
+    assertThat(trie.size()).isZero();
+    assertThat(match("site/1/temp")).isEmpty();
+  }
+
+  private List<String> match(String topic) {
+    List<String> matches = new ArrayList<>();
+    trie.match(topic, matches::add);
+
+    return matches;
+  }
+}